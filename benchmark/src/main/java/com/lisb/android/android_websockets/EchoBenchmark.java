@@ -0,0 +1,119 @@
+package com.lisb.android.android_websockets;
+
+import java.net.URI;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Binary messages echoed by a {@link LoopbackEchoServer} through a
+ * {@link LoopbackTransport}: the client's threads, framing and masking end to
+ * end, without a network.
+ *
+ * roundTrip sends one message at a time; run in sample mode, JMH reports its
+ * latency percentiles, p99 included. throughput keeps a window of messages in
+ * flight.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EchoBenchmark {
+
+	private static final int WINDOW = 64;
+
+	@Param({ "16", "1024", "65536" })
+	public int size;
+
+	private WebSocketClient client;
+	private byte[] message;
+	private final Semaphore echoes = new Semaphore(0);
+	private final CountDownLatch opened = new CountDownLatch(1);
+	private final CountDownLatch closed = new CountDownLatch(1);
+	private volatile Exception error;
+
+	@Setup
+	public void setUp() throws Exception {
+		message = new byte[size];
+		new Random(0).nextBytes(message);
+		client = new WebSocketClient(URI.create("ws://loopback/"), new WebSocketClient.SliceListener() {
+			@Override
+			public void onOpen() {
+				opened.countDown();
+			}
+
+			@Override
+			public void onMessage(String message) {
+			}
+
+			@Override
+			public void onMessage(byte[] data) {
+			}
+
+			@Override
+			public void onMessage(byte[] data, int offset, int length) {
+				echoes.release();
+			}
+
+			@Override
+			public void onClose(int code, String reason) {
+				closed.countDown();
+			}
+
+			@Override
+			public void onError(Exception e) {
+				error = e;
+			}
+		}, null, new WebSocketClient.Options()
+				.setTransportFactory(new LoopbackTransport.Factory(new LoopbackEchoServer())));
+		if (!opened.await(10, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("Not connected.", error);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		client.close();
+		closed.await(10, TimeUnit.SECONDS);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void roundTrip() throws InterruptedException {
+		client.send(message);
+		awaitEchoes(1);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(WINDOW)
+	public void throughput() throws InterruptedException {
+		for (int i = 0; i < WINDOW; i++) {
+			client.send(message);
+		}
+		awaitEchoes(WINDOW);
+	}
+
+	private void awaitEchoes(int count) throws InterruptedException {
+		if (!echoes.tryAcquire(count, 10, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("No echo.", error);
+		}
+	}
+}
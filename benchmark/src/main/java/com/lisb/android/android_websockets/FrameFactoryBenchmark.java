@@ -0,0 +1,86 @@
+package com.lisb.android.android_websockets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building outbound frames with {@link FrameFactory}, and writing them out,
+ * masked, through a {@link FrameWriter} into a stream that drops the bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameFactoryBenchmark {
+
+	@Param({ "16", "125", "1024", "65536", "1048576" })
+	public int size;
+
+	private FrameFactory factory;
+	private FrameWriter writer;
+	private String text;
+	private byte[] binary;
+
+	@Setup
+	public void setUp() {
+		final Random random = new Random(0);
+		factory = new FrameFactory();
+		writer = new FrameWriter(new NullOutputStream());
+		// mostly ASCII, like JSON, with a few two-byte characters.
+		final StringBuilder builder = new StringBuilder(size);
+		for (int i = 0; i < size; i++) {
+			builder.append(random.nextInt(32) == 0 ? '\u00e9' : (char) ('a' + random.nextInt(26)));
+		}
+		text = builder.toString();
+		binary = new byte[size];
+		random.nextBytes(binary);
+	}
+
+	@Benchmark
+	public Frame createTextFrame() {
+		return factory.createFrame(text);
+	}
+
+	@Benchmark
+	public Frame createBinaryFrame() {
+		return factory.createFrame(binary);
+	}
+
+	@Benchmark
+	public void writeTextFrame() throws IOException {
+		writer.write(factory.createFrame(text));
+		writer.flush();
+	}
+
+	@Benchmark
+	public void writeBinaryFrame() throws IOException {
+		writer.write(factory.createFrame(binary));
+		writer.flush();
+	}
+
+	private static class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package com.lisb.android.android_websockets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link FrameHandler} parsing a stream of server frames, fed in reads of a
+ * receive buffer's size as the read thread does. Each invocation parses the
+ * whole stream.
+ *
+ * <ul>
+ * <li>small: 256 binary frames of 16 bytes.</li>
+ * <li>text: 256 text frames of 125 bytes of JSON-like ASCII.</li>
+ * <li>large: a binary frame of 1 MB.</li>
+ * <li>fragmented: a binary message of 1 MB in 64 fragments.</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameHandlerBenchmark {
+
+	@Param({ "small", "text", "large", "fragmented" })
+	public String stream;
+
+	private WebSocketClient client;
+	private OutputStream serverOutput;
+	private FrameHandler handler;
+	private byte[] frames;
+	private int received;
+
+	@Setup
+	public void setUp() throws IOException {
+		// the client only lends its buffer pool and listener to the handler:
+		// its own connection never gets past the handshake.
+		final LoopbackTransport.Acceptor silent = new LoopbackTransport.Acceptor() {
+			@Override
+			public void accept(String host, int port, InputStream in, OutputStream out) {
+				serverOutput = out;
+			}
+		};
+		client = new WebSocketClient(URI.create("ws://loopback/"), new WebSocketClient.Listener() {
+			@Override
+			public void onOpen() {
+			}
+
+			@Override
+			public void onMessage(String message) {
+				received++;
+			}
+
+			@Override
+			public void onMessage(byte[] data) {
+				received++;
+			}
+
+			@Override
+			public void onClose(int code, String reason) {
+			}
+
+			@Override
+			public void onError(Exception error) {
+			}
+		}, null, new WebSocketClient.Options().setTransportFactory(new LoopbackTransport.Factory(silent)));
+		handler = new FrameHandler(client);
+		frames = createStream(stream);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		// ends the client's connection.
+		if (serverOutput != null) {
+			serverOutput.close();
+		}
+	}
+
+	@Benchmark
+	public int parse() throws IOException {
+		final int chunk = ReceiveBuffer.DEFAULT_SIZE;
+		for (int offset = 0; offset < frames.length; offset += chunk) {
+			handler.decode(frames, offset, Math.min(chunk, frames.length - offset));
+		}
+		return received;
+	}
+
+	private static byte[] createStream(String kind) throws IOException {
+		final Random random = new Random(0);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (kind.equals("small")) {
+			final byte[] payload = new byte[16];
+			for (int i = 0; i < 256; i++) {
+				random.nextBytes(payload);
+				writeFrame(out, Frames.OP_BINARY, true, payload);
+			}
+		} else if (kind.equals("text")) {
+			final StringBuilder text = new StringBuilder();
+			while (text.length() < 125) {
+				text.append("{\"id\":").append(random.nextInt(1000)).append(",\"name\":\"value\"}");
+			}
+			final byte[] payload = text.substring(0, 125).getBytes("UTF-8");
+			for (int i = 0; i < 256; i++) {
+				writeFrame(out, Frames.OP_TEXT, true, payload);
+			}
+		} else if (kind.equals("large")) {
+			final byte[] payload = new byte[1024 * 1024];
+			random.nextBytes(payload);
+			writeFrame(out, Frames.OP_BINARY, true, payload);
+		} else if (kind.equals("fragmented")) {
+			final byte[] payload = new byte[16 * 1024];
+			for (int i = 0; i < 64; i++) {
+				random.nextBytes(payload);
+				writeFrame(out, i == 0 ? Frames.OP_BINARY : Frames.OP_CONTINUATION, i == 63, payload);
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown stream: " + kind);
+		}
+		return out.toByteArray();
+	}
+
+	// unmasked, as sent by a server.
+	private static void writeFrame(OutputStream out, int opcode, boolean fin, byte[] payload)
+			throws IOException {
+		out.write((fin ? Frames.FIN : 0) | opcode);
+		if (payload.length < 126) {
+			out.write(payload.length);
+		} else if (payload.length < 65536) {
+			out.write(126);
+			out.write(payload.length >>> 8);
+			out.write(payload.length);
+		} else {
+			out.write(127);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				out.write((int) ((long) payload.length >>> shift));
+			}
+		}
+		out.write(payload);
+	}
+}
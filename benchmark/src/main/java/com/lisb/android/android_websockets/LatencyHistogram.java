@@ -0,0 +1,79 @@
+package com.lisb.android.android_websockets;
+
+/**
+ * Histogram of latencies in microseconds, in buckets growing with the value so
+ * that any percentile is within about 6% of the truth. Not thread-safe.
+ */
+class LatencyHistogram {
+
+	// each power of two is split into 16 buckets.
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final long[] mCounts = new long[64 * SUB_BUCKETS];
+	private long mCount;
+	private long mMax;
+
+	void recordNanos(long nanos) {
+		record(Math.max(0, nanos / 1000));
+	}
+
+	void record(long micros) {
+		mCounts[index(micros)]++;
+		mCount++;
+		mMax = Math.max(mMax, micros);
+	}
+
+	void add(LatencyHistogram other) {
+		for (int i = 0; i < mCounts.length; i++) {
+			mCounts[i] += other.mCounts[i];
+		}
+		mCount += other.mCount;
+		mMax = Math.max(mMax, other.mMax);
+	}
+
+	long getCount() {
+		return mCount;
+	}
+
+	long getMax() {
+		return mMax;
+	}
+
+	/**
+	 * @param percentile 0 to 100.
+	 * @return upper bound of the bucket the percentile falls into, 0 if empty.
+	 */
+	long getPercentile(double percentile) {
+		if (mCount == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(mCount * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < mCounts.length; i++) {
+			seen += mCounts[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), mMax);
+			}
+		}
+		return mMax;
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		final int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		final int shift = index / SUB_BUCKETS - 1;
+		final long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
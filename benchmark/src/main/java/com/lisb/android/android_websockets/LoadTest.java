@@ -0,0 +1,278 @@
+package com.lisb.android.android_websockets;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.lisb.android.android_websockets.testserver.TestServer;
+
+/**
+ * Soak and load test of {@link WebSocketClient} against a local
+ * {@link TestServer}, over real sockets. Each scenario runs for the given
+ * time, then prints messages and bytes received a second, the latency
+ * histogram of echoed messages, garbage collections, and how often sends
+ * backed up.
+ *
+ *   ./gradlew :benchmark:loadtest
+ *   ./gradlew :benchmark:loadtest -Pseconds=600
+ */
+public class LoadTest {
+
+	public static void main(String[] args) throws Exception {
+		final long seconds = args.length > 0 ? Long.parseLong(args[0]) : 10;
+		final TestServer server = new TestServer();
+		try {
+			System.out.printf("%-18s %10s %9s %8s %8s %8s %8s %5s %7s %6s %6s%n",
+					"scenario", "msgs/s", "MB/s", "p50 us", "p99 us", "p99.9 us", "max us",
+					"GCs", "GC ms", "backpr", "errors");
+			echo(server, "echo 16 B", "/echo", 4, 16, 32, seconds);
+			echo(server, "echo 1 KB pinged", "/echo?ping=50", 4, 1024, 16, seconds);
+			echo(server, "echo 64 KB", "/echo", 2, 64 * 1024, 4, seconds);
+			echo(server, "echo 64 KB in 16", "/echo?fragments=16", 2, 64 * 1024, 4, seconds);
+			echo(server, "echo stalled", "/echo?stall=200&stallEvery=1000", 1, 64 * 1024, 64, seconds);
+			flood(server, "flood 1 KB", "/flood?size=1024", 1, seconds);
+			flood(server, "flood 4 x 10k/s", "/flood?size=128&rate=10000", 4, seconds);
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Each client keeps {@code window} messages in flight, the send time
+	 * written in their first bytes.
+	 */
+	private static void echo(TestServer server, String name, String path, int clients,
+			final int size, final int window, long seconds) throws Exception {
+		final List<LoadClient> loadClients = connect(server.getUri(path), clients, window);
+		final Snapshot start = new Snapshot();
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+		final List<Thread> senders = new ArrayList<Thread>();
+		for (final LoadClient loadClient : loadClients) {
+			final Thread sender = new Thread("load-test-sender") {
+				@Override
+				public void run() {
+					try {
+						loadClient.sendUntil(deadline, size);
+					} catch (InterruptedException e) {
+						// stopped.
+					}
+				}
+			};
+			sender.start();
+			senders.add(sender);
+		}
+		for (Thread sender : senders) {
+			sender.join();
+		}
+		report(name, start, close(loadClients));
+	}
+
+	private static void flood(TestServer server, String name, String path, int clients,
+			long seconds) throws Exception {
+		final List<LoadClient> loadClients = connect(server.getUri(path), clients, 0);
+		final Snapshot start = new Snapshot();
+		Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+		report(name, start, close(loadClients));
+	}
+
+	private static List<LoadClient> connect(URI uri, int clients, int window)
+			throws InterruptedException {
+		final List<LoadClient> loadClients = new ArrayList<LoadClient>();
+		for (int i = 0; i < clients; i++) {
+			loadClients.add(new LoadClient(uri, window));
+		}
+		for (LoadClient loadClient : loadClients) {
+			loadClient.awaitOpen();
+		}
+		return loadClients;
+	}
+
+	private static LoadClient close(List<LoadClient> loadClients) throws InterruptedException {
+		final LoadClient total = new LoadClient();
+		for (LoadClient loadClient : loadClients) {
+			loadClient.close();
+			total.add(loadClient);
+		}
+		return total;
+	}
+
+	private static void report(String name, Snapshot start, LoadClient total) {
+		final Snapshot end = new Snapshot();
+		final double seconds = (end.mTime - start.mTime) / 1e9;
+		final LatencyHistogram latencies = total.mLatencies;
+		System.out.printf("%-18s %10.0f %9.2f %8d %8d %8d %8d %5d %7d %6d %6d%n",
+				name,
+				total.mMessages / seconds,
+				total.mBytes / seconds / (1024 * 1024),
+				latencies.getPercentile(50),
+				latencies.getPercentile(99),
+				latencies.getPercentile(99.9),
+				latencies.getMax(),
+				end.mCollections - start.mCollections,
+				end.mCollectionTime - start.mCollectionTime,
+				total.mBackpressures.get(),
+				total.mErrors.get());
+	}
+
+	/**
+	 * Clock and garbage collector counts at a point in time.
+	 */
+	private static class Snapshot {
+		final long mTime = System.nanoTime();
+		long mCollections;
+		long mCollectionTime;
+
+		Snapshot() {
+			for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+				mCollections += Math.max(0, collector.getCollectionCount());
+				mCollectionTime += Math.max(0, collector.getCollectionTime());
+			}
+		}
+	}
+
+	/**
+	 * A client and what it received. The counts are only updated on its read
+	 * thread, and read once it's closed.
+	 */
+	private static class LoadClient implements WebSocketClient.SliceListener,
+			WebSocketClient.BackpressureListener {
+
+		private final WebSocketClient mClient;
+		private final int mWindow;
+		private final Semaphore mInFlight;
+		private final CountDownLatch mOpened = new CountDownLatch(1);
+		private final CountDownLatch mClosed = new CountDownLatch(1);
+
+		final LatencyHistogram mLatencies = new LatencyHistogram();
+		long mMessages;
+		long mBytes;
+		final AtomicInteger mBackpressures = new AtomicInteger();
+		final AtomicInteger mErrors = new AtomicInteger();
+
+		// totals only.
+		LoadClient() {
+			mClient = null;
+			mWindow = 0;
+			mInFlight = null;
+		}
+
+		LoadClient(URI uri, int window) {
+			mWindow = window;
+			mInFlight = new Semaphore(window);
+			mClient = new WebSocketClient(uri, this, null);
+		}
+
+		void awaitOpen() throws InterruptedException {
+			if (!mOpened.await(10, TimeUnit.SECONDS)) {
+				throw new IllegalStateException("Not connected to the test server.");
+			}
+		}
+
+		void sendUntil(long deadline, int size) throws InterruptedException {
+			// messages are echoed in order, so the buffer of a message
+			// window sends ago is free again once a slot is.
+			final byte[][] messages = new byte[mWindow][size];
+			final Random random = new Random(0);
+			for (byte[] message : messages) {
+				random.nextBytes(message);
+			}
+			long sent = 0;
+			while (System.nanoTime() < deadline) {
+				if (!mInFlight.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+					continue;
+				}
+				final byte[] message = messages[(int) (sent++ % mWindow)];
+				if (size >= 8) {
+					writeLong(message, System.nanoTime());
+				}
+				mClient.send(message);
+			}
+			// lets the last echoes come back.
+			mInFlight.tryAcquire(mWindow, 10, TimeUnit.SECONDS);
+		}
+
+		void close() throws InterruptedException {
+			mClient.close();
+			if (!mClosed.await(10, TimeUnit.SECONDS)) {
+				mErrors.incrementAndGet();
+			}
+		}
+
+		void add(LoadClient other) {
+			mLatencies.add(other.mLatencies);
+			mMessages += other.mMessages;
+			mBytes += other.mBytes;
+			mBackpressures.addAndGet(other.mBackpressures.get());
+			mErrors.addAndGet(other.mErrors.get());
+		}
+
+		@Override
+		public void onOpen() {
+			mOpened.countDown();
+		}
+
+		@Override
+		public void onMessage(String message) {
+			mMessages++;
+			mBytes += message.length();
+		}
+
+		@Override
+		public void onMessage(byte[] data) {
+			onMessage(data, 0, data.length);
+		}
+
+		@Override
+		public void onMessage(byte[] data, int offset, int length) {
+			mMessages++;
+			mBytes += length;
+			if (mInFlight != null && mWindow > 0) {
+				if (length >= 8) {
+					mLatencies.recordNanos(System.nanoTime() - readLong(data, offset));
+				}
+				mInFlight.release();
+			}
+		}
+
+		@Override
+		public void onClose(int code, String reason) {
+			mClosed.countDown();
+		}
+
+		@Override
+		public void onError(Exception error) {
+			mErrors.incrementAndGet();
+		}
+
+		@Override
+		public void onBackpressure() {
+			mBackpressures.incrementAndGet();
+		}
+
+		@Override
+		public void onWritable() {
+		}
+
+		private static void writeLong(byte[] data, long value) {
+			for (int i = 0; i < 8; i++) {
+				data[i] = (byte) (value >>> (56 - 8 * i));
+			}
+		}
+
+		private static long readLong(byte[] data, int offset) {
+			long value = 0;
+			for (int i = 0; i < 8; i++) {
+				value = (value << 8) | (data[offset + i] & 0xFF);
+			}
+			return value;
+		}
+	}
+}
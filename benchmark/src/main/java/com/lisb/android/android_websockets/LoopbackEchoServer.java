@@ -0,0 +1,141 @@
+package com.lisb.android.android_websockets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.util.Base64;
+
+/**
+ * Minimal WebSocket server on the far end of a {@link LoopbackTransport},
+ * sending every data frame back as is. Answers pings and the close handshake.
+ */
+class LoopbackEchoServer implements LoopbackTransport.Acceptor {
+
+	private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+	@Override
+	public void accept(String host, int port, final InputStream in, final OutputStream out) {
+		new Thread("loopback-echo-server") {
+			@Override
+			public void run() {
+				try {
+					serve(new DataInputStream(new BufferedInputStream(in)),
+							new BufferedOutputStream(out));
+				} catch (IOException e) {
+					// the client went away.
+				} finally {
+					try {
+						out.close();
+					} catch (IOException e) {
+						// ignore.
+					}
+				}
+			}
+		}.start();
+	}
+
+	private static void serve(DataInputStream in, OutputStream out) throws IOException {
+		String key = null;
+		String line;
+		while ((line = readLine(in)).length() > 0) {
+			if (line.regionMatches(true, 0, "Sec-WebSocket-Key:", 0, 18)) {
+				key = line.substring(18).trim();
+			}
+		}
+		out.write(("HTTP/1.1 101 Switching Protocols\r\n"
+				+ "Upgrade: websocket\r\n"
+				+ "Connection: Upgrade\r\n"
+				+ "Sec-WebSocket-Accept: " + accept(key) + "\r\n"
+				+ "\r\n").getBytes("US-ASCII"));
+		out.flush();
+
+		byte[] payload = new byte[4096];
+		final byte[] mask = new byte[4];
+		while (true) {
+			final int b0 = in.readUnsignedByte();
+			final int b1 = in.readUnsignedByte();
+			long length = b1 & Frames.LENGTH;
+			if (length == 126) {
+				length = in.readUnsignedShort();
+			} else if (length == 127) {
+				length = in.readLong();
+			}
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("Frame too large.");
+			}
+			if ((b1 & Frames.MASK) != 0) {
+				in.readFully(mask);
+			}
+			if (payload.length < length) {
+				payload = new byte[(int) length];
+			}
+			in.readFully(payload, 0, (int) length);
+			if ((b1 & Frames.MASK) != 0) {
+				Frames.mask(payload, 0, (int) length, mask);
+			}
+
+			final int opcode = b0 & Frames.OPCODE;
+			if (opcode == Frames.OP_PING) {
+				writeHeader(out, Frames.FIN | Frames.OP_PONG, length);
+			} else {
+				writeHeader(out, b0, length);
+			}
+			out.write(payload, 0, (int) length);
+			if (opcode == Frames.OP_CLOSE) {
+				out.flush();
+				return;
+			}
+			// batches the echoes of frames which arrived together.
+			if (in.available() == 0) {
+				out.flush();
+			}
+		}
+	}
+
+	private static void writeHeader(OutputStream out, int b0, long length) throws IOException {
+		out.write(b0);
+		if (length < 126) {
+			out.write((int) length);
+		} else if (length < 65536) {
+			out.write(126);
+			out.write((int) (length >>> 8));
+			out.write((int) length);
+		} else {
+			out.write(127);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				out.write((int) (length >>> shift));
+			}
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		final StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c == -1) {
+				throw new EOFException();
+			}
+			if (c != '\r') {
+				line.append((char) c);
+			}
+		}
+		return line.toString();
+	}
+
+	private static String accept(String key) throws IOException {
+		try {
+			final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			return Base64.encodeToString(sha1.digest((key + GUID).getBytes("US-ASCII")),
+					Base64.NO_WRAP);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.toString());
+		}
+	}
+}
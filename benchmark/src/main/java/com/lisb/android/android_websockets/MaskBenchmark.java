@@ -0,0 +1,66 @@
+package com.lisb.android.android_websockets;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Frames#mask} against the former byte-by-byte loop.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MaskBenchmark {
+
+	@Param({ "16", "125", "1024", "65536", "1048576" })
+	public int size;
+
+	private byte[] payload;
+	private ByteBuffer words;
+	private byte[] mask;
+
+	@Setup
+	public void setUp() {
+		final Random random = new Random(0);
+		payload = new byte[size];
+		mask = new byte[4];
+		random.nextBytes(payload);
+		random.nextBytes(mask);
+		words = ByteBuffer.wrap(payload);
+	}
+
+	@Benchmark
+	public byte[] byteAtATime() {
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) (payload[i] ^ mask[i % 4]);
+		}
+		return payload;
+	}
+
+	@Benchmark
+	public byte[] fourAtATime() {
+		Frames.mask(payload, 0, payload.length, mask);
+		return payload;
+	}
+
+	@Benchmark
+	public byte[] wordAtATime() {
+		Frames.mask(words, 0, payload.length, mask, 0);
+		return payload;
+	}
+}
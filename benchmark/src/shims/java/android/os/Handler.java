@@ -0,0 +1,40 @@
+package android.os;
+
+/**
+ * JVM stand-in for the Android class, enough to run the library off a device.
+ */
+public class Handler {
+
+	private final Looper mLooper;
+
+	public Handler() {
+		this(Looper.myLooper());
+	}
+
+	public Handler(Looper looper) {
+		if (looper == null) {
+			throw new RuntimeException("Can't create handler without a Looper");
+		}
+		mLooper = looper;
+	}
+
+	public final Looper getLooper() {
+		return mLooper;
+	}
+
+	public final boolean post(Runnable task) {
+		return mLooper.enqueue(this, task, SystemClock.uptimeMillis());
+	}
+
+	public final boolean postDelayed(Runnable task, long delayMillis) {
+		return mLooper.enqueue(this, task, SystemClock.uptimeMillis() + Math.max(0, delayMillis));
+	}
+
+	public final boolean postAtTime(Runnable task, long uptimeMillis) {
+		return mLooper.enqueue(this, task, uptimeMillis);
+	}
+
+	public final void removeCallbacks(Runnable task) {
+		mLooper.remove(this, task);
+	}
+}
@@ -0,0 +1,58 @@
+package android.os;
+
+/**
+ * JVM stand-in for the Android class, enough to run the library off a device.
+ */
+public class HandlerThread extends Thread {
+
+	private Looper mLooper;
+
+	public HandlerThread(String name) {
+		super(name);
+	}
+
+	@Override
+	public void run() {
+		Looper.prepare();
+		synchronized (this) {
+			mLooper = Looper.myLooper();
+			notifyAll();
+		}
+		onLooperPrepared();
+		Looper.loop();
+	}
+
+	protected void onLooperPrepared() {
+	}
+
+	/**
+	 * Blocks until the thread has started.
+	 *
+	 * @return null if the thread isn't alive.
+	 */
+	public Looper getLooper() {
+		boolean interrupted = false;
+		synchronized (this) {
+			while (isAlive() && mLooper == null) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return mLooper;
+	}
+
+	public boolean quit() {
+		final Looper looper = getLooper();
+		if (looper == null) {
+			return false;
+		}
+		looper.quit();
+		return true;
+	}
+}
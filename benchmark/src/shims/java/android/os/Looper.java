@@ -0,0 +1,114 @@
+package android.os;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * JVM stand-in for the Android class, enough to run the library off a device:
+ * runs the messages of its thread in time order, then in posting order.
+ */
+public final class Looper {
+
+	private static final ThreadLocal<Looper> sThreadLocal = new ThreadLocal<Looper>();
+
+	/** Must lock this. */
+	private final PriorityQueue<Message> mQueue = new PriorityQueue<Message>();
+	private long mSequence;
+	private boolean mQuit;
+	private final Thread mThread;
+
+	private Looper() {
+		mThread = Thread.currentThread();
+	}
+
+	public static void prepare() {
+		if (sThreadLocal.get() != null) {
+			throw new RuntimeException("Only one Looper may be created per thread");
+		}
+		sThreadLocal.set(new Looper());
+	}
+
+	public static Looper myLooper() {
+		return sThreadLocal.get();
+	}
+
+	public static void loop() {
+		final Looper looper = myLooper();
+		if (looper == null) {
+			throw new RuntimeException("No Looper; Looper.prepare() wasn't called on this thread.");
+		}
+		Runnable task;
+		while ((task = looper.next()) != null) {
+			task.run();
+		}
+	}
+
+	public Thread getThread() {
+		return mThread;
+	}
+
+	public synchronized void quit() {
+		mQuit = true;
+		mQueue.clear();
+		notifyAll();
+	}
+
+	synchronized boolean enqueue(Handler handler, Runnable task, long when) {
+		if (mQuit) {
+			return false;
+		}
+		mQueue.add(new Message(handler, task, when, mSequence++));
+		notifyAll();
+		return true;
+	}
+
+	synchronized void remove(Handler handler, Runnable task) {
+		final Iterator<Message> messages = mQueue.iterator();
+		while (messages.hasNext()) {
+			final Message message = messages.next();
+			if (message.mHandler == handler && message.mTask == task) {
+				messages.remove();
+			}
+		}
+	}
+
+	// @return null once quit.
+	private synchronized Runnable next() {
+		while (!mQuit) {
+			final Message message = mQueue.peek();
+			final long now = SystemClock.uptimeMillis();
+			if (message != null && message.mWhen <= now) {
+				mQueue.poll();
+				return message.mTask;
+			}
+			try {
+				wait(message == null ? 0 : Math.max(1, message.mWhen - now));
+			} catch (InterruptedException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private static class Message implements Comparable<Message> {
+		final Handler mHandler;
+		final Runnable mTask;
+		final long mWhen;
+		final long mSequence;
+
+		Message(Handler handler, Runnable task, long when, long sequence) {
+			mHandler = handler;
+			mTask = task;
+			mWhen = when;
+			mSequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Message another) {
+			if (mWhen != another.mWhen) {
+				return mWhen < another.mWhen ? -1 : 1;
+			}
+			return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package android.text;
+
+/**
+ * JVM stand-in for the Android class, enough to run the library off a device.
+ */
+public class TextUtils {
+
+	private TextUtils() {
+	}
+
+	public static boolean isEmpty(CharSequence str) {
+		return str == null || str.length() == 0;
+	}
+}
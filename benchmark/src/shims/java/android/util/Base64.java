@@ -0,0 +1,42 @@
+package android.util;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * JVM stand-in for the Android class, enough to run the library off a device.
+ * Encodes only, without line breaks whatever the flags.
+ */
+public class Base64 {
+
+	public static final int DEFAULT = 0;
+	public static final int NO_WRAP = 2;
+
+	private static final char[] ALPHABET =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	private Base64() {
+	}
+
+	public static String encodeToString(byte[] input, int flags) {
+		final StringBuilder out = new StringBuilder((input.length + 2) / 3 * 4);
+		for (int i = 0; i < input.length; i += 3) {
+			final int remaining = input.length - i;
+			final int bits = (input[i] & 0xFF) << 16
+					| (remaining > 1 ? (input[i + 1] & 0xFF) << 8 : 0)
+					| (remaining > 2 ? input[i + 2] & 0xFF : 0);
+			out.append(ALPHABET[bits >>> 18]);
+			out.append(ALPHABET[(bits >>> 12) & 0x3F]);
+			out.append(remaining > 1 ? ALPHABET[(bits >>> 6) & 0x3F] : '=');
+			out.append(remaining > 2 ? ALPHABET[bits & 0x3F] : '=');
+		}
+		return out.toString();
+	}
+
+	public static byte[] encode(byte[] input, int flags) {
+		try {
+			return encodeToString(input, flags).getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
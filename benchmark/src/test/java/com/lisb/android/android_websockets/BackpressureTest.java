@@ -0,0 +1,130 @@
+package com.lisb.android.android_websockets;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import junit.framework.TestCase;
+
+import com.lisb.android.android_websockets.testserver.TestServer;
+
+/**
+ * The buffered amount and the backpressure callbacks of a client sending to
+ * the test server.
+ */
+public class BackpressureTest extends TestCase {
+
+	// reads nothing after the handshake, and so never answers.
+	private static final String STALLED = "/echo?stall=10000&stallEvery=0";
+
+	private static final String CALLBACK_THREAD = "callback-thread";
+
+	private TestServer server;
+	private ExecutorService executor;
+	private WebSocketClient client;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new TestServer();
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, CALLBACK_THREAD);
+			}
+		});
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (client != null) {
+			client.close();
+		}
+		server.stop();
+		executor.shutdown();
+	}
+
+	/** Also writes down the thread of each backpressure callback. */
+	private static class BackpressureEvents extends Events
+			implements WebSocketClient.BackpressureListener {
+		@Override
+		public void onBackpressure() {
+			mEvents.add("backpressure " + Thread.currentThread().getName());
+		}
+
+		@Override
+		public void onWritable() {
+			mEvents.add("writable " + Thread.currentThread().getName());
+		}
+	}
+
+	private WebSocketClient connect(String path, Events events) throws InterruptedException {
+		final WebSocketClient.Options options = new WebSocketClient.Options();
+		options.setCallbackExecutor(executor);
+		final WebSocketClient client = new WebSocketClient(server.getUri(path), events, null, options);
+		assertEquals("open", events.next());
+		return client;
+	}
+
+	/**
+	 * Takes the calls until none comes for a while.
+	 *
+	 * @return the backpressure calls taken, which must alternate, starting
+	 * with onBackpressure, and be made through the executor.
+	 */
+	private static List<String> backpressureCalls(Events events) throws InterruptedException {
+		final List<String> calls = new ArrayList<String>();
+		String event;
+		while ((event = events.next(500)) != null) {
+			if (event.startsWith("backpressure") || event.startsWith("writable")) {
+				final String expected = calls.size() % 2 == 0 ? "backpressure " : "writable ";
+				assertEquals(expected + CALLBACK_THREAD, event);
+				calls.add(event);
+			}
+		}
+		return calls;
+	}
+
+	public void testBackpressureThroughExecutor() throws Exception {
+		final Events events = new BackpressureEvents();
+		client = connect("/echo", events);
+		client.setBufferWatermarks(16 * 1024, 64 * 1024);
+
+		final byte[] data = new byte[20000];
+		int sent = 0;
+		for (int i = 0; i < 200; i++) {
+			if (client.trySend(data)) {
+				sent++;
+			} else {
+				Thread.sleep(1);
+			}
+		}
+		assertTrue(sent > 0);
+		final List<String> calls = backpressureCalls(events);
+		assertFalse(calls.isEmpty());
+		// all written by now.
+		assertEquals(0, calls.size() % 2);
+		assertEquals(0, client.getBufferedAmount());
+	}
+
+	/**
+	 * A server that doesn't read: the sent data piles up, trySend is refused
+	 * and onWritable isn't called.
+	 */
+	public void testStalledServer() throws Exception {
+		final Events events = new BackpressureEvents();
+		client = connect(STALLED, events);
+		final long high = 256 * 1024;
+		client.setBufferWatermarks(high / 2, high);
+
+		// more than the socket buffers take.
+		final byte[] data = new byte[64 * 1024];
+		for (int i = 0; i < 320; i++) {
+			client.send(data);
+		}
+		assertEquals(1, backpressureCalls(events).size() % 2);
+		assertTrue(client.getBufferedAmount() > high);
+		assertFalse(client.trySend("refused"));
+	}
+}
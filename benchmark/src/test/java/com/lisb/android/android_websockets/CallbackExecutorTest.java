@@ -0,0 +1,161 @@
+package com.lisb.android.android_websockets;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.lisb.android.android_websockets.testserver.TestServer;
+
+/**
+ * Listener callbacks run on a pool of threads through
+ * {@link WebSocketClient.Options#setCallbackExecutor}, against the test server.
+ */
+public class CallbackExecutorTest extends TestCase {
+
+	private static final String POOL_THREAD = "callback-pool";
+
+	private TestServer server;
+	private ExecutorService pool;
+	private WebSocketEngine engine;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new TestServer();
+		pool = Executors.newFixedThreadPool(4, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, POOL_THREAD);
+			}
+		});
+		engine = new WebSocketEngine();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		engine.shutdown();
+		server.stop();
+		pool.shutdown();
+	}
+
+	/**
+	 * Writes down the calls made on a pool thread, one at a time; a call
+	 * elsewhere or overlapping another is written down as such.
+	 */
+	private static class PoolEvents extends Events {
+		private final AtomicInteger mRunning = new AtomicInteger();
+
+		private void check() {
+			if (!POOL_THREAD.equals(Thread.currentThread().getName())) {
+				mEvents.add("on " + Thread.currentThread().getName());
+			}
+			if (mRunning.incrementAndGet() != 1) {
+				mEvents.add("overlapping");
+			}
+			// long enough for another to overlap, if it could.
+			Thread.yield();
+			mRunning.decrementAndGet();
+		}
+
+		@Override
+		public void onOpen() {
+			check();
+			super.onOpen();
+		}
+
+		@Override
+		public void onMessage(String message) {
+			check();
+			super.onMessage(message);
+		}
+
+		@Override
+		public void onMessage(byte[] data) {
+			check();
+			super.onMessage(data);
+		}
+
+		@Override
+		public void onClose(int code, String reason) {
+			check();
+			super.onClose(code, reason);
+		}
+	}
+
+	private void testInOrder(boolean onEngine) throws Exception {
+		final Events events = new PoolEvents();
+		final WebSocketClient.Options options = new WebSocketClient.Options();
+		options.setCallbackExecutor(pool);
+		if (onEngine) {
+			options.setEngine(engine);
+		}
+		final WebSocketClient client = new WebSocketClient(server.getUri("/echo"), events, null, options);
+		assertEquals("open", events.next());
+
+		final int count = 2000;
+		for (int i = 0; i < count; i++) {
+			if (i % 10 == 0) {
+				client.send(new byte[i]);
+			} else {
+				client.send(Integer.toString(i));
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			assertEquals(i % 10 == 0 ? "binary " + i : "text " + i, events.next());
+		}
+		client.close();
+		assertEquals("close 1000", events.next());
+		assertNull(events.next(200));
+	}
+
+	public void testInOrder() throws Exception {
+		testInOrder(false);
+	}
+
+	public void testInOrderOnEngine() throws Exception {
+		testInOrder(true);
+	}
+
+	/**
+	 * A slow call holds up the calls after it, even with pool threads free.
+	 */
+	public void testSlowListener() throws Exception {
+		final Object gate = new Object();
+		final boolean[] open = new boolean[1];
+		final Events events = new Events() {
+			@Override
+			public void onMessage(String message) {
+				if ("slow".equals(message)) {
+					synchronized (gate) {
+						while (!open[0]) {
+							try {
+								gate.wait();
+							} catch (InterruptedException e) {
+								return;
+							}
+						}
+					}
+				}
+				super.onMessage(message);
+			}
+		};
+		final WebSocketClient.Options options = new WebSocketClient.Options();
+		options.setCallbackExecutor(pool);
+		final WebSocketClient client = new WebSocketClient(server.getUri("/echo"), events, null, options);
+		assertEquals("open", events.next());
+
+		client.send("slow");
+		client.send("after");
+		assertNull(events.next(200));
+		synchronized (gate) {
+			open[0] = true;
+			gate.notifyAll();
+		}
+		assertEquals("text slow", events.next());
+		assertEquals("text after", events.next());
+		client.close();
+		assertEquals("close 1000", events.next());
+	}
+}
@@ -0,0 +1,64 @@
+package com.lisb.android.android_websockets;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listener of a client connected to the test server, writing down each call
+ * as a line, e.g. "open", "text hello" or "close 1006", for the test to take
+ * in order.
+ */
+class Events implements WebSocketClient.ReconnectListener {
+
+	private static final long TIMEOUT = 10000;
+
+	final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+	/** The binary messages, as written down by length only. */
+	final BlockingQueue<byte[]> mData = new LinkedBlockingQueue<byte[]>();
+
+	@Override
+	public void onOpen() {
+		mEvents.add("open");
+	}
+
+	@Override
+	public void onMessage(String message) {
+		mEvents.add("text " + message);
+	}
+
+	@Override
+	public void onMessage(byte[] data) {
+		mData.add(data);
+		mEvents.add("binary " + data.length);
+	}
+
+	@Override
+	public void onClose(int code, String reason) {
+		mEvents.add("close " + code);
+	}
+
+	@Override
+	public void onError(Exception error) {
+		mEvents.add("error " + error.getClass().getName());
+	}
+
+	@Override
+	public void onReconnecting(int attempt, long delayMillis) {
+		mEvents.add("reconnecting " + attempt + " " + delayMillis);
+	}
+
+	/**
+	 * @return the next call, or null if none within 10 seconds.
+	 */
+	String next() throws InterruptedException {
+		return mEvents.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the next call, or null if none within timeoutMillis.
+	 */
+	String next(long timeoutMillis) throws InterruptedException {
+		return mEvents.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,367 @@
+package com.lisb.android.android_websockets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * {@link FrameHandler} fed server frames split anywhere: whatever the reads
+ * look like, the listener gets the same messages.
+ */
+public class FrameHandlerTest extends TestCase {
+
+	private static final byte[] MASK = { (byte) 0x9a, 0x12, (byte) 0xe4, 0x7f };
+
+	private FrameStreams.Client client;
+
+	@Override
+	protected void setUp() throws Exception {
+		client = new FrameStreams.Client(new WebSocketClient.Options());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		client.close();
+	}
+
+	/**
+	 * Frames of each length encoding, masked or not, and the messages they
+	 * carry.
+	 */
+	private static List<byte[]> frames(List<String> expected) {
+		final List<byte[]> frames = new ArrayList<byte[]>();
+		final int[] lengths = { 0, 5, 125, 126, 300, 65535, 65536, 70000 };
+		for (int i = 0; i < lengths.length; i++) {
+			final byte[] payload = FrameStreams.bytes(lengths[i], i);
+			for (int masked = 0; masked < 2; masked++) {
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_BINARY, payload,
+						masked == 1 ? MASK : null);
+				frames.add(out.toByteArray());
+				expected.add("binary " + FrameStreams.hex(payload, 0, payload.length));
+			}
+		}
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_TEXT, FrameStreams.utf8("héllo wörld"), MASK);
+		frames.add(out.toByteArray());
+		expected.add("text héllo wörld");
+		return frames;
+	}
+
+	private static byte[] concat(List<byte[]> frames) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] frame : frames) {
+			out.write(frame, 0, frame.length);
+		}
+		return out.toByteArray();
+	}
+
+	public void testWholeStream() throws Exception {
+		final List<String> expected = new ArrayList<String>();
+		final byte[] stream = concat(frames(expected));
+		client.newHandler().decode(stream, 0, stream.length);
+		assertEquals(expected, client.mRecorder.mEvents);
+	}
+
+	public void testByteByByte() throws Exception {
+		final List<String> expected = new ArrayList<String>();
+		final byte[] stream = concat(frames(expected));
+		final FrameHandler handler = client.newHandler();
+		for (int i = 0; i < stream.length; i++) {
+			handler.decode(stream, i, 1);
+		}
+		assertEquals(expected, client.mRecorder.mEvents);
+	}
+
+	public void testRandomChunks() throws Exception {
+		final List<String> expected = new ArrayList<String>();
+		final byte[] stream = concat(frames(expected));
+		final Random random = new Random(0);
+		for (int round = 0; round < 20; round++) {
+			client.mRecorder.mEvents.clear();
+			final FrameHandler handler = client.newHandler();
+			final int maxChunk = 1 + random.nextInt(20000);
+			int offset = 0;
+			while (offset < stream.length) {
+				final int chunk = Math.min(1 + random.nextInt(maxChunk), stream.length - offset);
+				// from a buffer of its own, as the data isn't kept between reads.
+				final byte[] read = new byte[chunk + 2];
+				System.arraycopy(stream, offset, read, 1, chunk);
+				handler.decode(read, 1, chunk);
+				Arrays.fill(read, (byte) 0);
+				offset += chunk;
+			}
+			assertEquals("round " + round, expected, client.mRecorder.mEvents);
+		}
+	}
+
+	/**
+	 * Splits each frame in two at every point of its header and the start and
+	 * end of its payload: through the opcode, length, extended length and mask
+	 * stages.
+	 */
+	public void testSplitAtEveryStage() throws Exception {
+		final List<String> expected = new ArrayList<String>();
+		final List<byte[]> frames = frames(expected);
+		for (int f = 0; f < frames.size(); f++) {
+			final byte[] frame = frames.get(f);
+			for (int split = 0; split <= frame.length; split++) {
+				if (split > 20 && split < frame.length - 4) {
+					split = frame.length - 4;
+				}
+				client.mRecorder.mEvents.clear();
+				final FrameHandler handler = client.newHandler();
+				handler.decode(Arrays.copyOfRange(frame, 0, split), 0, split);
+				handler.decode(Arrays.copyOfRange(frame, split, frame.length), 0, frame.length - split);
+				assertEquals("frame " + f + " split at " + split,
+						expected.subList(f, f + 1), client.mRecorder.mEvents);
+			}
+		}
+	}
+
+	public void testFragmentsWithControlFramesBetween() throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameStreams.writeFrame(out, Frames.OP_TEXT, FrameStreams.utf8("fragm"));
+		FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_PING, FrameStreams.utf8("ping"));
+		FrameStreams.writeFrame(out, Frames.OP_CONTINUATION, FrameStreams.bytes(0, 0));
+		FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_PONG, FrameStreams.utf8("unsolicited"), MASK);
+		FrameStreams.writeFrame(out, Frames.OP_CONTINUATION, FrameStreams.utf8("ented"), MASK);
+		FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_PING, FrameStreams.bytes(125, 1));
+		FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_CONTINUATION, FrameStreams.utf8(" message"));
+		FrameStreams.writeFrame(out, Frames.OP_BINARY, FrameStreams.bytes(200, 2));
+		FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_PING, FrameStreams.bytes(0, 0));
+		FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_CONTINUATION, FrameStreams.bytes(100, 3));
+		final byte[] stream = out.toByteArray();
+
+		final FrameHandler handler = client.newHandler();
+		for (int i = 0; i < stream.length; i++) {
+			handler.decode(stream, i, 1);
+		}
+
+		final byte[] binary = new byte[300];
+		System.arraycopy(FrameStreams.bytes(200, 2), 0, binary, 0, 200);
+		System.arraycopy(FrameStreams.bytes(100, 3), 0, binary, 200, 100);
+		assertEquals(Arrays.asList("text fragmented message",
+				"binary " + FrameStreams.hex(binary, 0, binary.length)), client.mRecorder.mEvents);
+		// each ping answered, in order.
+		assertEquals(Frames.OP_PONG + " " + FrameStreams.hex(FrameStreams.utf8("ping"), 0, 4),
+				client.readSentFrame());
+		assertEquals(Frames.OP_PONG + " " + FrameStreams.hex(FrameStreams.bytes(125, 1), 0, 125),
+				client.readSentFrame());
+		assertEquals(Frames.OP_PONG + " ", client.readSentFrame());
+	}
+
+	/**
+	 * A frame whole in one read is unmasked and handed over in the read's own
+	 * buffer.
+	 */
+	public void testSliceInPlace() throws Exception {
+		final FrameStreams.SliceRecorder recorder = new FrameStreams.SliceRecorder();
+		final FrameStreams.Client slice = new FrameStreams.Client(recorder, new WebSocketClient.Options());
+		try {
+			final byte[] payload = FrameStreams.bytes(300, 5);
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_BINARY, payload, MASK);
+			final byte[] frame = out.toByteArray();
+			final byte[] read = new byte[frame.length + 3];
+			System.arraycopy(frame, 0, read, 3, frame.length);
+
+			slice.newHandler().decode(read, 3, frame.length);
+			assertEquals(Arrays.asList("slice " + FrameStreams.hex(payload, 0, payload.length)),
+					recorder.mEvents);
+			// after the 2 bytes of header, 2 of length and 4 of mask.
+			final int offset = 3 + 8;
+			assertSame(read, recorder.mSliceData);
+			assertEquals(offset, recorder.mSliceOffset);
+			assertTrue(Arrays.equals(payload, Arrays.copyOfRange(read, offset, offset + payload.length)));
+		} finally {
+			slice.close();
+		}
+	}
+
+	/**
+	 * A frame split across reads, a fragmented message and an empty one are
+	 * still handed over as slices, of a buffer of the handler's.
+	 */
+	public void testSliceAcrossReads() throws Exception {
+		final FrameStreams.SliceRecorder recorder = new FrameStreams.SliceRecorder();
+		final FrameStreams.Client slice = new FrameStreams.Client(recorder, new WebSocketClient.Options());
+		try {
+			final byte[] payload = FrameStreams.bytes(300, 6);
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_BINARY, payload, MASK);
+			FrameStreams.writeFrame(out, Frames.OP_BINARY, Arrays.copyOfRange(payload, 0, 100), MASK);
+			FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_CONTINUATION,
+					Arrays.copyOfRange(payload, 100, 300));
+			FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_BINARY, FrameStreams.bytes(0, 0));
+			final byte[] stream = out.toByteArray();
+
+			final FrameHandler handler = slice.newHandler();
+			final List<byte[]> reads = new ArrayList<byte[]>();
+			for (int offset = 0; offset < stream.length; offset += 100) {
+				final byte[] read = Arrays.copyOfRange(stream, offset, Math.min(offset + 100, stream.length));
+				reads.add(read);
+				handler.decode(read, 0, read.length);
+				assertTrue(recorder.mSliceData == null || !reads.contains(recorder.mSliceData));
+			}
+			final String hex = FrameStreams.hex(payload, 0, payload.length);
+			assertEquals(Arrays.asList("slice " + hex, "slice " + hex, "slice "), recorder.mEvents);
+		} finally {
+			slice.close();
+		}
+	}
+
+	/**
+	 * Binary fragments are passed on in chunks as read, unmasked in the read's
+	 * own buffer, with control frames between them and text still whole.
+	 */
+	public void testStreamedChunks() throws Exception {
+		final FrameStreams.StreamRecorder recorder = new FrameStreams.StreamRecorder();
+		final FrameStreams.Client streaming = new FrameStreams.Client(recorder, new WebSocketClient.Options());
+		try {
+			final byte[] payload = FrameStreams.bytes(250, 7);
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			FrameStreams.writeFrame(out, Frames.OP_BINARY, Arrays.copyOfRange(payload, 0, 50), MASK);
+			FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_PING, FrameStreams.utf8("ping"));
+			FrameStreams.writeFrame(out, Frames.OP_CONTINUATION, FrameStreams.bytes(0, 0));
+			FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_CONTINUATION,
+					Arrays.copyOfRange(payload, 50, 250), MASK);
+			FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_TEXT, FrameStreams.utf8("whole"));
+			FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_BINARY, FrameStreams.bytes(0, 0));
+			final byte[] stream = out.toByteArray();
+
+			final FrameHandler handler = streaming.newHandler();
+			final List<byte[]> reads = new ArrayList<byte[]>();
+			for (int offset = 0; offset < stream.length; offset += 40) {
+				final byte[] read = Arrays.copyOfRange(stream, offset, Math.min(offset + 40, stream.length));
+				reads.add(read);
+				handler.decode(read, 0, read.length);
+			}
+
+			final List<String> events = recorder.mEvents;
+			assertEquals("start", events.get(0));
+			final StringBuilder chunks = new StringBuilder();
+			int i = 1;
+			for (; events.get(i).startsWith("chunk "); i++) {
+				chunks.append(events.get(i).substring("chunk ".length()));
+			}
+			// a chunk per read or less of each frame.
+			assertTrue(i - 1 >= 250 / 40);
+			assertEquals(FrameStreams.hex(payload, 0, payload.length), chunks.toString());
+			assertEquals(Arrays.asList("end", "text whole", "start", "end"), events.subList(i, events.size()));
+			for (byte[] data : recorder.mChunkData) {
+				assertTrue(reads.contains(data));
+			}
+			assertEquals(Frames.OP_PONG + " " + FrameStreams.hex(FrameStreams.utf8("ping"), 0, 4),
+					streaming.readSentFrame());
+		} finally {
+			streaming.close();
+		}
+	}
+
+	/**
+	 * The max message size holds for a streamed message too, though it's
+	 * never gathered: refused at the header of the fragment going over it.
+	 */
+	public void testStreamedMaxMessageSize() throws Exception {
+		final FrameStreams.StreamRecorder recorder = new FrameStreams.StreamRecorder();
+		final FrameStreams.Client streaming = new FrameStreams.Client(recorder, new WebSocketClient.Options());
+		try {
+			streaming.mClient.setMaxMessageSize(300);
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_BINARY, FrameStreams.bytes(300, 0));
+			FrameStreams.writeFrame(out, Frames.OP_BINARY, FrameStreams.bytes(150, 1));
+			FrameStreams.writeFrame(out, Frames.OP_CONTINUATION, FrameStreams.bytes(150, 2));
+			FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_CONTINUATION, FrameStreams.bytes(1, 3));
+			final byte[] stream = out.toByteArray();
+
+			final FrameHandler handler = streaming.newHandler();
+			// all but the last fragment's length.
+			final int accepted = stream.length - 1 - 1;
+			handler.decode(stream, 0, accepted);
+			assertEquals(Arrays.asList("start", "chunk " + FrameStreams.hex(FrameStreams.bytes(300, 0), 0, 300),
+					"end", "start", "chunk " + FrameStreams.hex(FrameStreams.bytes(150, 1), 0, 150),
+					"chunk " + FrameStreams.hex(FrameStreams.bytes(150, 2), 0, 150)), recorder.mEvents);
+			try {
+				handler.decode(stream, accepted, 1);
+				fail("Fragment accepted.");
+			} catch (FrameHandler.ProtocolError e) {
+				assertEquals(CloseCodes.CLOSE_MESSAGE_TOO_BIG, e.getCloseCode());
+			}
+		} finally {
+			streaming.close();
+		}
+	}
+
+	public void testMaxFrameSize() throws Exception {
+		client.mClient.setMaxFrameSize(300);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_BINARY, FrameStreams.bytes(300, 0));
+		FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_BINARY, FrameStreams.bytes(301, 0));
+		final byte[] stream = out.toByteArray();
+
+		final FrameHandler handler = client.newHandler();
+		// the first frame, and the second's header but its length's last byte.
+		final int accepted = 4 + 300 + 3;
+		for (int i = 0; i < accepted; i++) {
+			handler.decode(stream, i, 1);
+		}
+		assertEquals(1, client.mRecorder.mEvents.size());
+		assertTooBig(handler, stream, accepted);
+	}
+
+	public void testMaxMessageSize() throws Exception {
+		client.mClient.setMaxMessageSize(300);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameStreams.writeFrame(out, Frames.OP_BINARY, FrameStreams.bytes(150, 0));
+		FrameStreams.writeFrame(out, Frames.OP_CONTINUATION, FrameStreams.bytes(150, 1));
+		// control frames don't count.
+		FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_PONG, FrameStreams.bytes(100, 2));
+		FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_CONTINUATION, FrameStreams.bytes(0, 0));
+		FrameStreams.writeFrame(out, Frames.OP_TEXT, FrameStreams.utf8("a"));
+		FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_CONTINUATION, FrameStreams.bytes(300, 3));
+		final byte[] stream = out.toByteArray();
+
+		final FrameHandler handler = client.newHandler();
+		final int accepted = stream.length - 300 - 1;
+		handler.decode(stream, 0, accepted);
+		assertEquals(1, client.mRecorder.mEvents.size());
+		assertTooBig(handler, stream, accepted);
+	}
+
+	private static void assertTooBig(FrameHandler handler, byte[] stream, int offset)
+			throws IOException {
+		try {
+			// the extended length's last byte.
+			handler.decode(stream, offset, 1);
+			fail("Frame accepted.");
+		} catch (FrameHandler.ProtocolError e) {
+			assertEquals(CloseCodes.CLOSE_MESSAGE_TOO_BIG, e.getCloseCode());
+		}
+	}
+
+	public void testLargeControlFrame() throws Exception {
+		final byte[] stream = { (byte) (Frames.FIN | Frames.OP_PING), 126, 0, 126 };
+		try {
+			client.newHandler().decode(stream, 0, stream.length);
+			fail("Ping of 126 bytes accepted.");
+		} catch (FrameHandler.ProtocolError e) {
+			assertEquals(CloseCodes.CLOSE_PROTOCOL_ERROR, e.getCloseCode());
+		}
+	}
+
+	public void testFragmentedControlFrame() throws Exception {
+		final byte[] stream = { Frames.OP_PING, 0 };
+		try {
+			client.newHandler().decode(stream, 0, stream.length);
+			fail("Fragmented ping accepted.");
+		} catch (FrameHandler.ProtocolError e) {
+			assertEquals(CloseCodes.CLOSE_PROTOCOL_ERROR, e.getCloseCode());
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.lisb.android.android_websockets;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+public class FrameQueueTest extends TestCase {
+
+	private static final int PRODUCERS = 8;
+	private static final int FRAMES = 200000;
+
+	// producer in mOffset, sequence number in mLength.
+	private static Frame frame(int producer, int sequence) {
+		return new Frame(Frames.OP_BINARY, null, producer, sequence);
+	}
+
+	public void testSingleThread() {
+		final FrameQueue queue = new FrameQueue();
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 5; i++) {
+				queue.offer(frame(0, i));
+			}
+			assertFalse(queue.isEmpty());
+			for (int i = 0; i < 5; i++) {
+				assertEquals(i, queue.poll().mLength);
+			}
+			assertNull(queue.poll());
+			assertTrue(queue.isEmpty());
+		}
+	}
+
+	public void testClear() {
+		final FrameQueue queue = new FrameQueue();
+		for (int i = 0; i < 5; i++) {
+			queue.offer(frame(0, i));
+		}
+		queue.clear();
+		assertTrue(queue.isEmpty());
+		queue.offer(frame(0, 5));
+		assertEquals(5, queue.poll().mLength);
+	}
+
+	/**
+	 * Producers offering at once, while the consumer polls: each producer's
+	 * frames come out in the order offered, none lost and none twice.
+	 */
+	public void testProducers() throws Exception {
+		final FrameQueue queue = new FrameQueue();
+		final CountDownLatch start = new CountDownLatch(1);
+		final Thread[] producers = new Thread[PRODUCERS];
+		for (int p = 0; p < PRODUCERS; p++) {
+			final int producer = p;
+			producers[p] = new Thread("producer-" + p) {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < FRAMES; i++) {
+						queue.offer(frame(producer, i));
+						if ((i & 1023) == 0) {
+							// vary the interleaving.
+							Thread.yield();
+						}
+					}
+				}
+			};
+			producers[p].start();
+		}
+
+		final int[] next = new int[PRODUCERS];
+		int received = 0;
+		int empty = 0;
+		start.countDown();
+		final long deadline = System.currentTimeMillis() + 60000;
+		while (received < PRODUCERS * FRAMES) {
+			final Frame frame = queue.poll();
+			if (frame == null) {
+				if (++empty % 1000 == 0) {
+					assertTrue("Frames lost: " + received + " received.",
+							System.currentTimeMillis() < deadline);
+					Thread.yield();
+				}
+				continue;
+			}
+			final int producer = frame.mOffset;
+			assertEquals("producer " + producer, next[producer], frame.mLength);
+			next[producer]++;
+			received++;
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+		for (int p = 0; p < PRODUCERS; p++) {
+			assertEquals(FRAMES, next[p]);
+		}
+	}
+}
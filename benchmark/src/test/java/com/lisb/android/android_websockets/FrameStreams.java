@@ -0,0 +1,237 @@
+package com.lisb.android.android_websockets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Server frames to feed a {@link FrameHandler}, and a client to feed them to,
+ * recording what its listener gets.
+ */
+class FrameStreams {
+
+	private FrameStreams() {
+	}
+
+	/**
+	 * Listener writing down each call as a line, e.g. "text hello" or
+	 * "binary 00ff".
+	 */
+	static class Recorder implements WebSocketClient.Listener {
+		final List<String> mEvents = new ArrayList<String>();
+
+		@Override
+		public void onOpen() {
+		}
+
+		@Override
+		public void onMessage(String message) {
+			mEvents.add("text " + message);
+		}
+
+		@Override
+		public void onMessage(byte[] data) {
+			mEvents.add("binary " + hex(data, 0, data.length));
+		}
+
+		@Override
+		public void onClose(int code, String reason) {
+			mEvents.add("close " + code + " " + reason);
+		}
+
+		@Override
+		public void onError(Exception error) {
+		}
+	}
+
+	/**
+	 * Also writes down binary messages got as a slice, e.g. "slice 00ff",
+	 * and keeps the array of the last one.
+	 */
+	static class SliceRecorder extends Recorder implements WebSocketClient.SliceListener {
+		byte[] mSliceData;
+		int mSliceOffset;
+
+		@Override
+		public void onMessage(byte[] data, int offset, int length) {
+			mSliceData = data;
+			mSliceOffset = offset;
+			mEvents.add("slice " + hex(data, offset, length));
+		}
+	}
+
+	/**
+	 * Also writes down binary messages got piece by piece: "start", each
+	 * "chunk 00ff" and "end".
+	 */
+	static class StreamRecorder extends Recorder implements WebSocketClient.StreamingListener {
+		/** the arrays the chunks were in. */
+		final List<byte[]> mChunkData = new ArrayList<byte[]>();
+
+		@Override
+		public void onBinaryMessageStart() {
+			mEvents.add("start");
+		}
+
+		@Override
+		public void onBinaryMessageChunk(byte[] data, int offset, int length) {
+			mChunkData.add(data);
+			mEvents.add("chunk " + hex(data, offset, length));
+		}
+
+		@Override
+		public void onBinaryMessageEnd() {
+			mEvents.add("end");
+		}
+	}
+
+	/**
+	 * A client whose server never answers the handshake: it only lends its
+	 * listener, limits and outbound queue to the handler under test.
+	 */
+	static class Client {
+		final Recorder mRecorder;
+		final WebSocketClient mClient;
+		private volatile InputStream mServerInput;
+
+		Client(WebSocketClient.Options options) throws InterruptedException {
+			this(new Recorder(), options);
+		}
+
+		Client(Recorder recorder, WebSocketClient.Options options) throws InterruptedException {
+			mRecorder = recorder;
+			final LoopbackTransport.Acceptor silent = new LoopbackTransport.Acceptor() {
+				@Override
+				public void accept(String host, int port, InputStream in, OutputStream out) {
+					mServerInput = in;
+				}
+			};
+			mClient = new WebSocketClient(URI.create("ws://loopback/"), mRecorder, null,
+					options.setTransportFactory(new LoopbackTransport.Factory(silent)));
+			while (mServerInput == null) {
+				Thread.sleep(1);
+			}
+			// as if the handshake were answered, so that frames are sent.
+			mClient.onOpen();
+		}
+
+		FrameHandler newHandler() {
+			return new FrameHandler(mClient);
+		}
+
+		/**
+		 * @return the next frame the client sent, as "opcode payload" with the
+		 * payload unmasked, in hex.
+		 */
+		String readSentFrame() throws IOException {
+			final InputStream in = mServerInput;
+			skipHandshake(in);
+			final int opcode = read(in) & Frames.OPCODE;
+			int length = read(in) & Frames.LENGTH;
+			if (length == 126) {
+				length = (read(in) << 8) | read(in);
+			}
+			final byte[] mask = new byte[4];
+			for (int i = 0; i < 4; i++) {
+				mask[i] = (byte) read(in);
+			}
+			final byte[] payload = new byte[length];
+			for (int i = 0; i < length; i++) {
+				payload[i] = (byte) (read(in) ^ mask[i % 4]);
+			}
+			return opcode + " " + hex(payload, 0, length);
+		}
+
+		private boolean mHandshakeSkipped;
+
+		private void skipHandshake(InputStream in) throws IOException {
+			if (mHandshakeSkipped) {
+				return;
+			}
+			int match = 0;
+			while (match < 4) {
+				final int b = read(in);
+				match = (b == "\r\n\r\n".charAt(match)) ? match + 1 : (b == '\r' ? 1 : 0);
+			}
+			mHandshakeSkipped = true;
+		}
+
+		private static int read(InputStream in) throws IOException {
+			final int b = in.read();
+			if (b < 0) {
+				throw new IOException("Client closed the connection.");
+			}
+			return b;
+		}
+
+		void close() {
+			mClient.close();
+		}
+	}
+
+	/**
+	 * Writes an unmasked server frame.
+	 */
+	static void writeFrame(ByteArrayOutputStream out, int header, byte[] payload) {
+		writeFrame(out, header, payload, null);
+	}
+
+	/**
+	 * Writes a server frame, masked if {@code mask} isn't null. The length is
+	 * encoded in as few bytes as it takes.
+	 */
+	static void writeFrame(ByteArrayOutputStream out, int header, byte[] payload, byte[] mask) {
+		out.write(header);
+		final int maskBit = mask != null ? Frames.MASK : 0;
+		final int length = payload.length;
+		if (length < 126) {
+			out.write(maskBit | length);
+		} else if (length < 65536) {
+			out.write(maskBit | 126);
+			out.write(length >>> 8);
+			out.write(length);
+		} else {
+			out.write(maskBit | 127);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				out.write((int) ((long) length >>> shift));
+			}
+		}
+		if (mask != null) {
+			out.write(mask, 0, 4);
+			for (int i = 0; i < length; i++) {
+				out.write(payload[i] ^ mask[i % 4]);
+			}
+		} else {
+			out.write(payload, 0, length);
+		}
+	}
+
+	static byte[] utf8(String text) {
+		try {
+			return text.getBytes("UTF-8");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static byte[] bytes(int length, int seed) {
+		final byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i * 31 + seed);
+		}
+		return data;
+	}
+
+	static String hex(byte[] data, int offset, int length) {
+		final StringBuilder builder = new StringBuilder(length * 2);
+		for (int i = offset; i < offset + length; i++) {
+			builder.append(Character.forDigit((data[i] >> 4) & 0xf, 16));
+			builder.append(Character.forDigit(data[i] & 0xf, 16));
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,53 @@
+package com.lisb.android.android_websockets;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class FramesTest extends TestCase {
+
+	private static final int MAX = 40;
+
+	/**
+	 * Either loop and its tail give the same as masking byte by byte,
+	 * whatever the length, the position in the array and within the payload.
+	 */
+	public void testMaskMatchesByteByByte() {
+		final Random random = new Random(0);
+		final byte[] mask = new byte[4];
+		random.nextBytes(mask);
+		final byte[] original = new byte[2 * MAX + 8];
+		random.nextBytes(original);
+
+		for (int length = 0; length <= MAX; length++) {
+			for (int offset = 0; offset <= MAX; offset++) {
+				for (int maskOffset = 0; maskOffset < 8; maskOffset++) {
+					final byte[] expected = original.clone();
+					for (int i = 0; i < length; i++) {
+						expected[offset + i] ^= mask[(maskOffset + i) % 4];
+					}
+					final String message = "length " + length + " offset " + offset
+							+ " mask offset " + maskOffset;
+					final byte[] actual = original.clone();
+					Frames.mask(actual, offset, length, mask, maskOffset);
+					assertTrue(message, Arrays.equals(expected, actual));
+
+					final byte[] words = original.clone();
+					Frames.mask(ByteBuffer.wrap(words), offset, length, mask, maskOffset);
+					assertTrue("words, " + message, Arrays.equals(expected, words));
+				}
+			}
+		}
+	}
+
+	public void testMaskTwiceRestores() {
+		final byte[] mask = { 1, 2, 3, 4 };
+		final byte[] payload = FrameStreams.bytes(1000, 0);
+		Frames.mask(payload, 0, payload.length, mask);
+		assertFalse(Arrays.equals(FrameStreams.bytes(1000, 0), payload));
+		Frames.mask(payload, 0, payload.length, mask);
+		assertTrue(Arrays.equals(FrameStreams.bytes(1000, 0), payload));
+	}
+}
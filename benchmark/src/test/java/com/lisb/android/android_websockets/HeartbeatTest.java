@@ -0,0 +1,142 @@
+package com.lisb.android.android_websockets;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.lisb.android.android_websockets.testserver.TestServer;
+
+/**
+ * Heartbeats and IO timeouts of clients connected to the test server, all
+ * sent and checked from the one heartbeat thread.
+ */
+public class HeartbeatTest extends TestCase {
+
+	private static final List<String> LOST = Arrays.asList(
+			"error java.net.SocketException", "close " + CloseCodes.CLOSE_ABNORMAL);
+
+	private TestServer server;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new TestServer();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+	}
+
+	private WebSocketClient connect(String path, Events events) throws InterruptedException {
+		final WebSocketClient client = new WebSocketClient(server.getUri(path), events, null);
+		assertEquals("open", events.next());
+		return client;
+	}
+
+	public void testRoundTripStats() throws Exception {
+		final Events events = new Events();
+		final WebSocketClient client = connect("/echo", events);
+		assertEquals(0, client.getRoundTripStats().getCount());
+		assertEquals(-1, client.getRoundTripStats().getLast());
+
+		client.setHeartbeatInterval(50);
+		Thread.sleep(600);
+		final RoundTripStats stats = client.getRoundTripStats();
+		assertTrue(stats.toString(), stats.getCount() >= 5);
+		assertTrue(stats.toString(), stats.getMin() >= 0);
+		assertTrue(stats.toString(), stats.getMin() <= stats.getAverage());
+		assertTrue(stats.toString(), stats.getAverage() <= stats.get99thPercentile());
+		assertTrue(stats.toString(), stats.get99thPercentile() < 50);
+		// the pongs aren't passed on.
+		assertNull(events.next(0));
+		client.close();
+	}
+
+	/**
+	 * A server slow to answer, but within the interval, keeps the connection.
+	 */
+	public void testSlowPongs() throws Exception {
+		final Events events = new Events();
+		final WebSocketClient client = connect("/echo?stall=30&stallEvery=0", events);
+		client.setHeartbeatInterval(200);
+		assertNull(events.next(1000));
+		final RoundTripStats stats = client.getRoundTripStats();
+		assertTrue(stats.toString(), stats.getCount() >= 3);
+		assertTrue(stats.toString(), stats.get99thPercentile() < 200);
+		client.close();
+	}
+
+	public void testClientsShareTheHeartbeatThread() throws Exception {
+		final Events[] events = new Events[20];
+		final WebSocketClient[] clients = new WebSocketClient[events.length];
+		for (int i = 0; i < clients.length; i++) {
+			events[i] = new Events();
+			clients[i] = connect("/echo", events[i]);
+			clients[i].setHeartbeatInterval(50);
+		}
+		Thread.sleep(600);
+		for (int i = 0; i < clients.length; i++) {
+			assertTrue(clients[i].getRoundTripStats().getCount() >= 5);
+			assertNull(events[i].next(0));
+			clients[i].close();
+		}
+	}
+
+	/**
+	 * Pongs no longer awaited once heartbeats are turned off.
+	 */
+	public void testHeartbeatsTurnedOff() throws Exception {
+		final Events events = new Events();
+		// reads nothing after the handshake, and so never answers.
+		final WebSocketClient client = connect("/echo?stall=10000&stallEvery=0", events);
+		client.setHeartbeatInterval(200);
+		Thread.sleep(100);
+		client.setHeartbeatInterval(0);
+		assertNull(events.next(500));
+		assertEquals(0, client.getRoundTripStats().getCount());
+
+		client.setHeartbeatInterval(100);
+		assertEquals(LOST, Arrays.asList(events.next(), events.next()));
+	}
+
+	public void testTimeoutOnQuietConnection() throws Exception {
+		final Events events = new Events();
+		connect("/echo", events).setTimeout(300);
+		assertNull(events.next(200));
+		assertEquals(LOST, Arrays.asList(events.next(1000), events.next()));
+	}
+
+	public void testTrafficPutsOffTimeout() throws Exception {
+		final Events events = new Events();
+		final WebSocketClient client = connect("/echo", events);
+		client.setTimeout(300);
+		for (int i = 0; i < 20; i++) {
+			client.send("keep");
+			assertEquals("text keep", events.next());
+			Thread.sleep(50);
+		}
+		assertEquals(LOST, Arrays.asList(events.next(1000), events.next()));
+	}
+
+	public void testHeartbeatsPutOffTimeout() throws Exception {
+		final Events events = new Events();
+		final WebSocketClient client = connect("/echo", events);
+		client.setHeartbeatInterval(100);
+		client.setTimeout(300);
+		assertNull(events.next(1000));
+		client.close();
+		assertEquals("close 1000", events.next());
+	}
+
+	public void testTimeoutTurnedOff() throws Exception {
+		final Events events = new Events();
+		final WebSocketClient client = connect("/echo", events);
+		client.setTimeout(300);
+		Thread.sleep(100);
+		client.setTimeout(0);
+		assertNull(events.next(600));
+		client.close();
+		assertEquals("close 1000", events.next());
+	}
+}
@@ -0,0 +1,158 @@
+package com.lisb.android.android_websockets;
+
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import com.lisb.android.android_websockets.testserver.TestServer;
+
+/**
+ * Messages sent in fragments through a message stream, and text sent as a
+ * CharSequence, echoed by the test server.
+ */
+public class MessageStreamTest extends TestCase {
+
+	private TestServer server;
+	private Events events;
+	private WebSocketClient client;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new TestServer();
+		events = new Events();
+		client = new WebSocketClient(server.getUri("/echo"), events, null);
+		assertEquals("open", events.next());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		client.close();
+		server.stop();
+	}
+
+	private static String text(int length) {
+		final StringBuilder text = new StringBuilder(length);
+		while (text.length() < length) {
+			// 1, 2, 3 and 4 bytes in UTF-8.
+			text.append("aé日😀");
+		}
+		return text.substring(0, length);
+	}
+
+	public void testBinaryStream() throws Exception {
+		final byte[] data = FrameStreams.bytes(100000, 7);
+		final OutputStream out = client.openBinaryMessage();
+		out.write(data, 0, 10);
+		out.flush();
+		out.write(data[10]);
+		out.write(data, 11, data.length - 11);
+		out.close();
+		assertEquals("binary " + data.length, events.next());
+		assertTrue(Arrays.equals(data, events.mData.poll()));
+	}
+
+	public void testEmptyStream() throws Exception {
+		client.openBinaryMessage().close();
+		assertEquals("binary 0", events.next());
+	}
+
+	public void testTextStream() throws Exception {
+		final String text = text(50000);
+		final Writer out = client.openTextMessage();
+		for (int i = 0; i < text.length(); i += 999) {
+			out.write(text, i, Math.min(999, text.length() - i));
+		}
+		out.close();
+		assertEquals("text " + text, events.next());
+	}
+
+	public void testSendCharSequence() throws Exception {
+		final StringBuilder text = new StringBuilder(text(20000));
+		client.send(text);
+		final String sent = text.toString();
+		// copied: changing it afterwards changes nothing.
+		text.setLength(0);
+		text.append("changed");
+		assertEquals("text " + sent, events.next());
+	}
+
+	public void testSendWhileStreamOpen() throws Exception {
+		final OutputStream out = client.openBinaryMessage();
+		out.write(FrameStreams.bytes(100, 0));
+		try {
+			client.send("between");
+			fail("Sent within a message stream.");
+		} catch (IllegalStateException e) {
+			// expected.
+		}
+		try {
+			client.openTextMessage();
+			fail("Opened a second message stream.");
+		} catch (IllegalStateException e) {
+			// expected.
+		}
+		out.close();
+		client.send("after");
+		assertEquals("binary 100", events.next());
+		assertEquals("text after", events.next());
+	}
+
+	/**
+	 * Messages sent from other threads while streams open and close: none
+	 * gets between the fragments of a streamed message, which the server would
+	 * then echo cut short.
+	 */
+	public void testSendsAroundStreams() throws Exception {
+		final AtomicBoolean stop = new AtomicBoolean();
+		final Thread[] senders = new Thread[4];
+		final int[] sent = new int[senders.length];
+		for (int s = 0; s < senders.length; s++) {
+			final int sender = s;
+			senders[s] = new Thread() {
+				@Override
+				public void run() {
+					while (!stop.get()) {
+						try {
+							client.send("m");
+							sent[sender]++;
+						} catch (IllegalStateException e) {
+							Thread.yield();
+						}
+					}
+				}
+			};
+			senders[s].start();
+		}
+
+		final byte[] data = FrameStreams.bytes(3 * MessageOutputStream.FRAGMENT_SIZE + 5, 3);
+		final int streams = 50;
+		for (int i = 0; i < streams; i++) {
+			final OutputStream out = client.openBinaryMessage();
+			out.write(data);
+			out.close();
+		}
+		stop.set(true);
+		int total = 0;
+		for (int s = 0; s < senders.length; s++) {
+			senders[s].join();
+			total += sent[s];
+		}
+
+		int texts = 0;
+		int binaries = 0;
+		while (texts < total || binaries < streams) {
+			final String event = events.next();
+			if ("text m".equals(event)) {
+				texts++;
+			} else {
+				assertEquals("binary " + data.length, event);
+				assertTrue(Arrays.equals(data, events.mData.poll()));
+				binaries++;
+			}
+		}
+		assertNull(events.next(200));
+	}
+}
@@ -0,0 +1,198 @@
+package com.lisb.android.android_websockets;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+
+public class PerMessageDeflateTest extends TestCase {
+
+	private static final String RESPONSE = "permessage-deflate; client_no_context_takeover";
+
+	private final BufferPool pool = new BufferPool();
+
+	private static byte[] text(int length) {
+		final StringBuilder text = new StringBuilder();
+		while (text.length() < length) {
+			text.append("{\"id\":").append(text.length()).append(",\"name\":\"value\"}");
+		}
+		return FrameStreams.utf8(text.substring(0, length));
+	}
+
+	private byte[] decompress(PerMessageDeflate deflate, byte[] compressed, int maxLength)
+			throws FrameHandler.ProtocolError {
+		// with the spare bytes for the tail.
+		final byte[] message = Arrays.copyOf(compressed, compressed.length + 4);
+		final byte[] output = deflate.decompress(message, compressed.length, pool, maxLength);
+		final byte[] result = Arrays.copyOf(output, deflate.getDecompressedLength());
+		pool.release(output);
+		return result;
+	}
+
+	/**
+	 * The server's side: a raw deflate stream, sync flushed after each message
+	 * and sent without the 00 00 ff ff it ends with.
+	 */
+	private static byte[] serverCompress(Deflater deflater, byte[] data) {
+		deflater.setInput(data);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[1024];
+		int count;
+		while ((count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH)) > 0) {
+			out.write(buffer, 0, count);
+		}
+		final byte[] compressed = out.toByteArray();
+		assertEquals("0000ffff", FrameStreams.hex(compressed, compressed.length - 4, 4));
+		return Arrays.copyOf(compressed, compressed.length - 4);
+	}
+
+	public void testOffer() {
+		assertEquals(RESPONSE, PerMessageDeflate.createOffer(false, 0));
+		assertEquals(RESPONSE + "; server_no_context_takeover; server_max_window_bits=10",
+				PerMessageDeflate.createOffer(true, 10));
+	}
+
+	public void testAccept() throws Exception {
+		assertNotNull(PerMessageDeflate.accept(RESPONSE, 0));
+		assertNotNull(PerMessageDeflate.accept("permessage-deflate", 0));
+		assertNotNull(PerMessageDeflate.accept(
+				" permessage-deflate ;server_no_context_takeover; server_max_window_bits=9 ", 0));
+	}
+
+	public void testRejectedParameters() {
+		final String[] responses = {
+			// never offered: it would need a window the Deflater can't be told.
+			"permessage-deflate; client_max_window_bits=10",
+			"permessage-deflate; unknown",
+			"permessage-deflate; client_no_context_takeover, permessage-deflate",
+			"x-webkit-deflate-frame",
+		};
+		for (String response : responses) {
+			try {
+				PerMessageDeflate.accept(response, 0);
+				fail(response + " accepted.");
+			} catch (FrameHandler.ProtocolError e) {
+				assertEquals(CloseCodes.CLOSE_PROTOCOL_ERROR, e.getCloseCode());
+			}
+		}
+	}
+
+	public void testRoundTrip() throws Exception {
+		final PerMessageDeflate deflate = PerMessageDeflate.accept(RESPONSE, 0);
+		final int[] lengths = { 1, 100, 5000, 100000 };
+		for (int length : lengths) {
+			final byte[] data = text(length);
+			final byte[] compressed = deflate.compress(data, 0, data.length);
+			if (compressed == null) {
+				// not worth it.
+				continue;
+			}
+			// sent without the tail.
+			assertFalse(FrameStreams.hex(compressed, 0, compressed.length).endsWith("0000ffff"));
+			assertTrue(Arrays.equals(data, decompress(deflate, compressed, Integer.MAX_VALUE)));
+
+			// the same for text, and each message on its own.
+			final String string = new String(data, "UTF-8");
+			assertTrue(Arrays.equals(compressed, deflate.compress(string, data.length)));
+		}
+	}
+
+	public void testThreshold() throws Exception {
+		final PerMessageDeflate deflate = PerMessageDeflate.accept(RESPONSE, 1000);
+		final byte[] data = text(999);
+		assertNull(deflate.compress(data, 0, data.length));
+		assertNull(deflate.compress(new String(data, "UTF-8"), data.length));
+		assertNotNull(deflate.compress(text(1000), 0, 1000));
+	}
+
+	public void testServerContextTakeover() throws Exception {
+		final PerMessageDeflate deflate = PerMessageDeflate.accept(RESPONSE, 0);
+		final Deflater server = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		final byte[] data = text(3000);
+		for (int i = 0; i < 3; i++) {
+			// refers back to the previous messages.
+			final byte[] compressed = serverCompress(server, data);
+			assertTrue(Arrays.equals(data, decompress(deflate, compressed, Integer.MAX_VALUE)));
+		}
+	}
+
+	public void testServerNoContextTakeover() throws Exception {
+		final PerMessageDeflate deflate = PerMessageDeflate.accept(
+				RESPONSE + "; server_no_context_takeover", 0);
+		final byte[] data = text(3000);
+		for (int i = 0; i < 3; i++) {
+			final Deflater server = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			final byte[] compressed = serverCompress(server, data);
+			assertTrue(Arrays.equals(data, decompress(deflate, compressed, Integer.MAX_VALUE)));
+		}
+	}
+
+	public void testMaxLength() throws Exception {
+		final PerMessageDeflate deflate = PerMessageDeflate.accept(RESPONSE, 0);
+		final byte[] data = new byte[100000];
+		final byte[] compressed = deflate.compress(data, 0, data.length);
+		assertEquals(data.length, decompress(deflate, compressed, data.length).length);
+		try {
+			decompress(deflate, compressed, data.length - 1);
+			fail("Message above the maximum inflated.");
+		} catch (FrameHandler.ProtocolError e) {
+			assertEquals(CloseCodes.CLOSE_MESSAGE_TOO_BIG, e.getCloseCode());
+		}
+	}
+
+	public void testBadData() throws Exception {
+		final PerMessageDeflate deflate = PerMessageDeflate.accept(RESPONSE, 0);
+		try {
+			decompress(deflate, new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff }, Integer.MAX_VALUE);
+			fail("Bad data inflated.");
+		} catch (FrameHandler.ProtocolError e) {
+			assertEquals(CloseCodes.CLOSE_INVALID_DATA, e.getCloseCode());
+		}
+	}
+
+	/**
+	 * Pings and pongs between the fragments of a compressed message, and after
+	 * it, aren't taken for compressed data.
+	 */
+	public void testControlFramesWithinCompressedMessage() throws Exception {
+		final FrameStreams.Client client = new FrameStreams.Client(
+				new WebSocketClient.Options().setCompression(true));
+		try {
+			client.mClient.onExtensions(RESPONSE);
+			final Deflater server = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			final byte[] first = text(5000);
+			final byte[] compressed = serverCompress(server, first);
+			final int third = compressed.length / 3;
+			final byte[] second = FrameStreams.utf8("short");
+
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			FrameStreams.writeFrame(out, Frames.RSV1 | Frames.OP_TEXT,
+					Arrays.copyOfRange(compressed, 0, third));
+			FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_PING, FrameStreams.utf8("a"));
+			FrameStreams.writeFrame(out, Frames.OP_CONTINUATION,
+					Arrays.copyOfRange(compressed, third, 2 * third));
+			FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_PONG, FrameStreams.utf8("b"));
+			FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_CONTINUATION,
+					Arrays.copyOfRange(compressed, 2 * third, compressed.length));
+			FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_PING, FrameStreams.utf8("c"));
+			FrameStreams.writeFrame(out, Frames.FIN | Frames.RSV1 | Frames.OP_BINARY,
+					serverCompress(server, second));
+			FrameStreams.writeFrame(out, Frames.FIN | Frames.OP_TEXT, second);
+			final byte[] stream = out.toByteArray();
+
+			final FrameHandler handler = client.newHandler();
+			for (int i = 0; i < stream.length; i++) {
+				handler.decode(stream, i, 1);
+			}
+
+			assertEquals(Arrays.asList("text " + new String(first, "UTF-8"),
+					"binary " + FrameStreams.hex(second, 0, second.length), "text short"),
+					client.mRecorder.mEvents);
+			assertEquals(Frames.OP_PONG + " 61", client.readSentFrame());
+			assertEquals(Frames.OP_PONG + " 63", client.readSentFrame());
+		} finally {
+			client.close();
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package com.lisb.android.android_websockets;
+
+import junit.framework.TestCase;
+
+import com.lisb.android.android_websockets.testserver.TestServer;
+
+/**
+ * Clients reconnecting to the test server, on their own threads and on an
+ * engine.
+ */
+public class ReconnectTest extends TestCase {
+
+	private TestServer server;
+	private WebSocketEngine engine;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new TestServer();
+		engine = new WebSocketEngine();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		engine.shutdown();
+		server.stop();
+	}
+
+	private WebSocketClient connect(String pathAndQuery, Events events, boolean onEngine) {
+		final WebSocketClient.Options options = new WebSocketClient.Options()
+				.setReconnectDelay(50, 400)
+				.setReconnectJitter(0);
+		if (onEngine) {
+			options.setEngine(engine);
+		}
+		return new WebSocketClient(server.getUri(pathAndQuery), events, null, options);
+	}
+
+	// @return the next "reconnecting" call, after an open and a close.
+	private static String nextReconnecting(Events events) throws InterruptedException {
+		assertEquals("open", events.next());
+		String event;
+		while ((event = events.next()) != null && event.startsWith("error ")) {
+		}
+		assertEquals("close " + CloseCodes.CLOSE_ABNORMAL, event);
+		return events.next();
+	}
+
+	/**
+	 * A server that accepts and drops each connection straight away is
+	 * reconnected to less and less often.
+	 */
+	public void testBackoffWhenDroppedAtOnce() throws Exception {
+		for (int onEngine = 0; onEngine < 2; onEngine++) {
+			final Events events = new Events();
+			final WebSocketClient client = connect("/echo?drop=0", events, onEngine == 1);
+			final long[] delays = { 50, 100, 200, 400, 400 };
+			for (int i = 0; i < delays.length; i++) {
+				assertEquals("reconnecting " + (i + 1) + " " + delays[i], nextReconnecting(events));
+			}
+			client.close();
+			Thread.sleep(100);
+			events.mEvents.clear();
+			assertNull(events.next(600));
+		}
+	}
+
+	/**
+	 * Each connection stays open long enough, so each is lost as if for the
+	 * first time.
+	 */
+	public void testNoBackoffAfterStableConnections() throws Exception {
+		for (int onEngine = 0; onEngine < 2; onEngine++) {
+			final Events events = new Events();
+			final WebSocketClient client = connect("/echo?drop=300", events, onEngine == 1);
+			client.mStableConnectionMillis = 100;
+			nextReconnecting(events);
+			for (int i = 0; i < 3; i++) {
+				assertEquals("reconnecting 1 50", nextReconnecting(events));
+			}
+			client.close();
+		}
+	}
+
+	public void testSendAfterReconnecting() throws Exception {
+		final Events events = new Events();
+		final WebSocketClient client = connect("/echo?drop=300", events, true);
+		assertEquals("reconnecting 1 50", nextReconnecting(events));
+		assertEquals("open", events.next());
+		client.send("again");
+		assertEquals("text again", events.next());
+		client.close();
+	}
+}
@@ -0,0 +1,126 @@
+package com.lisb.android.android_websockets;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import junit.framework.TestCase;
+
+import com.lisb.android.android_websockets.testserver.TestServer;
+
+/**
+ * TLS session resumption against the test server over wss, with a
+ * self-signed key made by the JDK's keytool.
+ */
+public class TlsSessionTest extends TestCase {
+
+	private static final String PASSWORD = "testserver";
+
+	private File keyStoreFile;
+	private TestServer server;
+	private WebSocketEngine engine;
+
+	@Override
+	protected void setUp() throws Exception {
+		keyStoreFile = File.createTempFile("testserver", ".jks");
+		keyStoreFile.delete();
+		final Process keytool = new ProcessBuilder(
+				new File(System.getProperty("java.home"), "bin/keytool").getPath(),
+				"-genkeypair", "-keystore", keyStoreFile.getPath(), "-storetype", "JKS",
+				"-storepass", PASSWORD, "-keypass", PASSWORD, "-alias", "testserver",
+				"-keyalg", "RSA", "-keysize", "2048", "-validity", "1",
+				"-dname", "CN=127.0.0.1", "-ext", "SAN=IP:127.0.0.1")
+				.redirectErrorStream(true).start();
+		// drained, so that it can't block writing.
+		final InputStream out = keytool.getInputStream();
+		while (out.read() >= 0) {
+			// ignore.
+		}
+		assertEquals(0, keytool.waitFor());
+
+		final KeyStore keyStore = KeyStore.getInstance("JKS");
+		final InputStream in = new FileInputStream(keyStoreFile);
+		try {
+			keyStore.load(in, PASSWORD.toCharArray());
+		} finally {
+			in.close();
+		}
+		final KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keys.init(keyStore, PASSWORD.toCharArray());
+		final SSLContext serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(keys.getKeyManagers(), null, null);
+		server = new TestServer(0, serverContext);
+
+		// the client trusts the server's key only, with a session cache of its own.
+		final TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust.init(keyStore);
+		WebSocketClient.setTrustManagers(trust.getTrustManagers());
+		engine = new WebSocketEngine();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		engine.shutdown();
+		server.stop();
+		WebSocketClient.setTrustManagers(null);
+		keyStoreFile.delete();
+	}
+
+	private WebSocketClient connect(Events events, boolean onEngine) throws InterruptedException {
+		final WebSocketClient.Options options = new WebSocketClient.Options();
+		if (onEngine) {
+			options.setEngine(engine);
+		}
+		final WebSocketClient client = new WebSocketClient(server.getUri("/echo"), events, null, options);
+		assertEquals("open", events.next());
+		return client;
+	}
+
+	private void testSessionResumed(boolean onEngine) throws Exception {
+		final Events first = new Events();
+		final WebSocketClient firstClient = connect(first, onEngine);
+		assertTrue(firstClient.getTlsHandshakeMillis() >= 0);
+		assertFalse(firstClient.isTlsSessionResumed());
+		firstClient.send("first");
+		assertEquals("text first", first.next());
+		firstClient.close();
+		assertEquals("close 1000", first.next());
+
+		final Events second = new Events();
+		final WebSocketClient secondClient = connect(second, onEngine);
+		assertTrue(secondClient.getTlsHandshakeMillis() >= 0);
+		assertTrue(secondClient.isTlsSessionResumed());
+		secondClient.send("second");
+		assertEquals("text second", second.next());
+		secondClient.close();
+		assertEquals("close 1000", second.next());
+	}
+
+	public void testSessionResumed() throws Exception {
+		testSessionResumed(false);
+	}
+
+	public void testSessionResumedOnEngine() throws Exception {
+		testSessionResumed(true);
+	}
+
+	public void testPlainConnection() throws Exception {
+		final TestServer plain = new TestServer();
+		try {
+			final Events events = new Events();
+			final WebSocketClient client = new WebSocketClient(plain.getUri("/echo"), events, null);
+			assertEquals("open", events.next());
+			assertEquals(-1, client.getTlsHandshakeMillis());
+			assertFalse(client.isTlsSessionResumed());
+			client.close();
+			assertEquals("close 1000", events.next());
+		} finally {
+			plain.stop();
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.lisb.android.android_websockets;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.CharacterCodingException;
+
+import junit.framework.TestCase;
+
+public class Utf8CodecTest extends TestCase {
+
+	private static final String[] TEXTS = {
+		"", "ascii", "héllo wörld", "日本語のテキスト", "😀 emoji 🎉",
+		"\ud7ff\uffff\udbff\udfff",
+		// unpaired surrogates, encoded as '?'.
+		"a\ud800b", "\udc00", "end\ud83d",
+	};
+
+	public void testDecodeRejectsInvalid() {
+		final Utf8Codec codec = new Utf8Codec();
+		for (String hex : Utf8ValidatorTest.INVALID) {
+			final byte[] data = Utf8ValidatorTest.bytes(hex);
+			try {
+				codec.decode(data, 0, data.length);
+				fail(hex + " decoded.");
+			} catch (CharacterCodingException e) {
+				// expected.
+			}
+		}
+	}
+
+	public void testDecodeRejectsTruncated() {
+		final Utf8Codec codec = new Utf8Codec();
+		final byte[] data = Utf8ValidatorTest.bytes("41 f0 9f 98");
+		try {
+			codec.decode(data, 0, data.length);
+			fail("Truncated sequence decoded.");
+		} catch (CharacterCodingException e) {
+			// expected.
+		}
+		// and isn't left over for the next message.
+		final byte[] next = Utf8ValidatorTest.bytes("80");
+		try {
+			codec.decode(next, 0, next.length);
+			fail("Continuation decoded.");
+		} catch (CharacterCodingException e) {
+			// expected.
+		}
+	}
+
+	public void testDecodeValid() throws Exception {
+		final Utf8Codec codec = new Utf8Codec();
+		for (String hex : Utf8ValidatorTest.VALID) {
+			final byte[] data = Utf8ValidatorTest.bytes(hex);
+			assertEquals(hex, new String(data, "UTF-8"), codec.decode(data, 0, data.length));
+		}
+		for (String text : TEXTS) {
+			final byte[] data = ("[" + text + "]").getBytes("UTF-8");
+			assertEquals(new String(data, "UTF-8"), codec.decode(data, 0, data.length));
+			// at an offset.
+			assertEquals(new String(data, 1, data.length - 2, "UTF-8"),
+					codec.decode(data, 1, data.length - 2));
+		}
+	}
+
+	public void testEncodedLength() throws Exception {
+		for (String text : TEXTS) {
+			assertEquals(text, text.getBytes("UTF-8").length, Utf8Codec.encodedLength(text));
+			assertEquals(text, text.getBytes("UTF-8").length,
+					Utf8Codec.encodedLength(new StringBuilder(text)));
+		}
+	}
+
+	/**
+	 * In pieces as small as the largest character, so that characters are left
+	 * for the next piece.
+	 */
+	public void testEncodeInPieces() throws Exception {
+		final Utf8Codec codec = new Utf8Codec();
+		final StringBuilder all = new StringBuilder();
+		for (String text : TEXTS) {
+			all.append(text);
+		}
+		final String text = all.toString();
+		final byte[] expected = text.getBytes("UTF-8");
+		for (int piece = 4; piece <= 9; piece++) {
+			codec.startEncoding(text);
+			final byte[] buffer = new byte[piece + 3];
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			while (out.size() < expected.length) {
+				final int count = codec.encode(buffer, 3, piece);
+				assertTrue(count > 0);
+				out.write(buffer, 3, count);
+			}
+			assertEquals("pieces of " + piece, FrameStreams.hex(expected, 0, expected.length),
+					FrameStreams.hex(out.toByteArray(), 0, out.size()));
+			assertEquals(0, codec.encode(buffer, 0, buffer.length));
+		}
+	}
+}
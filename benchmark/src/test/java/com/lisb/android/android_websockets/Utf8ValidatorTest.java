@@ -0,0 +1,126 @@
+package com.lisb.android.android_websockets;
+
+import junit.framework.TestCase;
+
+/**
+ * {@link Utf8Validator} on data split into fragments anywhere, as text
+ * messages arrive.
+ */
+public class Utf8ValidatorTest extends TestCase {
+
+	/** Never valid, wherever split. */
+	static final String[] INVALID = {
+		// overlong.
+		"c0 80", "c1 bf", "e0 80 80", "e0 9f bf", "f0 80 80 80", "f0 8f bf bf",
+		// surrogates D800-DFFF.
+		"ed a0 80", "ed ad bf", "ed b0 80", "ed bf bf", "ed a0 bd ed b8 80",
+		// above U+10FFFF.
+		"f4 90 80 80", "f7 bf bf bf", "f5 80 80 80", "f8 88 80 80 80", "ff", "fe",
+		// continuation without a start, or a start without enough of them.
+		"80", "bf", "c2 41", "e2 82 41", "f0 9f 98 41", "41 80 41",
+	};
+
+	/** Just inside the ranges the invalid ones are out of. */
+	static final String[] VALID = {
+		"00", "7f", "c2 80", "df bf", "e0 a0 80", "ed 9f bf", "ee 80 80", "ef bf bf",
+		"f0 90 80 80", "f0 9f 98 80", "f4 8f bf bf",
+	};
+
+	static byte[] bytes(String hex) {
+		final String[] values = hex.split(" ");
+		final byte[] data = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			data[i] = (byte) Integer.parseInt(values[i], 16);
+		}
+		return data;
+	}
+
+	public void testInvalid() {
+		for (String hex : INVALID) {
+			final byte[] data = bytes(hex);
+			for (int split = 0; split <= data.length; split++) {
+				final Utf8Validator validator = new Utf8Validator();
+				final boolean valid = validator.validate(data, 0, split)
+						&& validator.validate(data, split, data.length - split);
+				assertFalse(hex + " split at " + split, valid && validator.isComplete());
+
+				final Utf8Validator decoder = new Utf8Validator();
+				final char[] out = new char[data.length + 1];
+				assertTrue(hex + " split at " + split, decoder.decode(data, 0, split, out, 0) < 0
+						|| decoder.decode(data, split, data.length - split, out, 0) < 0
+						|| !decoder.isComplete());
+			}
+		}
+	}
+
+	public void testValid() throws Exception {
+		for (String hex : VALID) {
+			final byte[] data = bytes(hex);
+			final String expected = new String(data, "UTF-8");
+			for (int split = 0; split <= data.length; split++) {
+				final Utf8Validator validator = new Utf8Validator();
+				assertTrue(hex, validator.validate(data, 0, split));
+				assertTrue(hex, validator.validate(data, split, data.length - split));
+				assertTrue(hex, validator.isComplete());
+
+				assertEquals(hex + " split at " + split, expected, decode(data, split));
+			}
+		}
+	}
+
+	public void testTruncatedAtEnd() {
+		final byte[] data = bytes("41 f0 9f 98");
+		final Utf8Validator validator = new Utf8Validator();
+		assertTrue(validator.validate(data, 0, data.length));
+		assertFalse(validator.isComplete());
+
+		final Utf8Validator decoder = new Utf8Validator();
+		final char[] out = new char[data.length + 1];
+		assertEquals(1, decoder.decode(data, 0, data.length, out, 0));
+		assertFalse(decoder.isComplete());
+	}
+
+	public void testResetAfterTruncated() {
+		final byte[] data = bytes("e2 82");
+		final Utf8Validator validator = new Utf8Validator();
+		validator.validate(data, 0, data.length);
+		validator.reset();
+		assertTrue(validator.validate(bytes("41"), 0, 1));
+		assertTrue(validator.isComplete());
+	}
+
+	/**
+	 * Every code point, encoded by the JDK, split inside its sequence.
+	 */
+	public void testAllCodePoints() throws Exception {
+		final Utf8Validator validator = new Utf8Validator();
+		final char[] out = new char[3];
+		for (int codePoint = 0; codePoint <= Character.MAX_CODE_POINT; codePoint++) {
+			if (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+				continue;
+			}
+			final String text = new String(Character.toChars(codePoint));
+			final byte[] data = text.getBytes("UTF-8");
+			final int split = codePoint % (data.length + 1);
+			assertTrue(validator.validate(data, 0, split));
+			assertTrue(validator.validate(data, split, data.length - split));
+			assertTrue(validator.isComplete());
+
+			int count = validator.decode(data, 0, split, out, 0);
+			count += validator.decode(data, split, data.length - split, out, count);
+			assertEquals(Integer.toHexString(codePoint), text, new String(out, 0, count));
+		}
+	}
+
+	// decodes data in two fragments split at split.
+	private static String decode(byte[] data, int split) {
+		final Utf8Validator decoder = new Utf8Validator();
+		final char[] out = new char[data.length + 2];
+		int count = decoder.decode(data, 0, split, out, 0);
+		assertTrue(count >= 0);
+		final int rest = decoder.decode(data, split, data.length - split, out, count);
+		assertTrue(rest >= 0);
+		assertTrue(decoder.isComplete());
+		return new String(out, 0, count + rest);
+	}
+}
@@ -0,0 +1,154 @@
+package com.lisb.android.android_websockets;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.lisb.android.android_websockets.testserver.TestServer;
+
+/**
+ * Clients on a {@link WebSocketEngine} against the test server: the listener
+ * is told what it would be with a read and a write thread per client.
+ */
+public class WebSocketEngineTest extends TestCase {
+
+	// reads nothing after the handshake, and so never answers.
+	private static final String STALLED = "/echo?stall=10000&stallEvery=0";
+
+	private static final List<String> LOST = Arrays.asList(
+			"error java.net.SocketException", "close " + CloseCodes.CLOSE_ABNORMAL);
+
+	private TestServer server;
+	private WebSocketEngine engine;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new TestServer();
+		engine = new WebSocketEngine();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		engine.shutdown();
+		server.stop();
+	}
+
+	private WebSocketClient connect(URI uri, Events events, boolean onEngine)
+			throws InterruptedException {
+		final WebSocketClient.Options options = new WebSocketClient.Options();
+		if (onEngine) {
+			options.setEngine(engine);
+		}
+		final WebSocketClient client = new WebSocketClient(uri, events, null, options);
+		assertEquals("open", events.next());
+		return client;
+	}
+
+	private static void assertLost(Events events) throws InterruptedException {
+		assertEquals(LOST, Arrays.asList(events.next(), events.next()));
+		assertNull(events.next(200));
+	}
+
+	public void testEcho() throws Exception {
+		final Events events = new Events();
+		final WebSocketClient client = connect(server.getUri("/echo"), events, true);
+		client.send("hello");
+		assertEquals("text hello", events.next());
+		client.send(new byte[100000]);
+		assertEquals("binary 100000", events.next());
+		client.close();
+		assertEquals("close 1000", events.next());
+	}
+
+	public void testClientsShareTheEngine() throws Exception {
+		final Events[] events = new Events[8];
+		final WebSocketClient[] clients = new WebSocketClient[events.length];
+		for (int i = 0; i < clients.length; i++) {
+			events[i] = new Events();
+			clients[i] = connect(server.getUri("/echo"), events[i], true);
+		}
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < clients.length; i++) {
+				clients[i].send("client " + i + " round " + round);
+			}
+			for (int i = 0; i < clients.length; i++) {
+				assertEquals("text client " + i + " round " + round, events[i].next());
+			}
+		}
+		for (int i = 0; i < clients.length; i++) {
+			clients[i].close();
+			assertEquals("close 1000", events[i].next());
+		}
+	}
+
+	/**
+	 * A listener that throws loses its own connection, not the engine's other
+	 * ones.
+	 */
+	public void testThrowingListener() throws Exception {
+		final Events other = new Events();
+		final WebSocketClient otherClient = connect(server.getUri("/echo"), other, true);
+		final Events events = new Events() {
+			@Override
+			public void onMessage(String message) {
+				super.onMessage(message);
+				throw new IllegalStateException(message);
+			}
+		};
+		final WebSocketClient client = connect(server.getUri("/echo"), events, true);
+		client.send("throw");
+		assertEquals("text throw", events.next());
+		assertEquals(Arrays.asList("error java.io.IOException", "close " + CloseCodes.CLOSE_ABNORMAL),
+				Arrays.asList(events.next(), events.next()));
+
+		otherClient.send("hello");
+		assertEquals("text hello", other.next());
+		otherClient.close();
+		assertEquals("close 1000", other.next());
+	}
+
+	/**
+	 * Torn down by its watchdog, the connection is reported lost, whether on
+	 * the engine or not.
+	 */
+	public void testTimeoutOnStalledServer() throws Exception {
+		for (int onEngine = 0; onEngine < 2; onEngine++) {
+			final Events events = new Events();
+			final WebSocketClient client = connect(server.getUri(STALLED), events, onEngine == 1);
+			client.setTimeout(300);
+			assertLost(events);
+		}
+	}
+
+	public void testHeartbeatTimeoutOnStalledServer() throws Exception {
+		for (int onEngine = 0; onEngine < 2; onEngine++) {
+			final Events events = new Events();
+			final WebSocketClient client = connect(server.getUri(STALLED), events, onEngine == 1);
+			client.setHeartbeatInterval(100);
+			assertLost(events);
+		}
+	}
+
+	/**
+	 * The close frame is never answered, so the connection is torn down after
+	 * waiting for it.
+	 */
+	public void testCloseUnansweredByStalledServer() throws Exception {
+		for (int onEngine = 0; onEngine < 2; onEngine++) {
+			final Events events = new Events();
+			final WebSocketClient client = connect(server.getUri(STALLED), events, onEngine == 1);
+			client.close();
+			assertLost(events);
+		}
+	}
+
+	public void testShutdown() throws Exception {
+		final Events events = new Events();
+		connect(server.getUri("/echo"), events, true);
+		engine.shutdown();
+		assertEquals(Arrays.asList("error java.io.IOException", "close " + CloseCodes.CLOSE_ABNORMAL),
+				Arrays.asList(events.next(), events.next()));
+	}
+}
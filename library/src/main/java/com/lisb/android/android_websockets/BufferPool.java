@@ -0,0 +1,104 @@
+package com.lisb.android.android_websockets;
+
+/**
+ * Size-classed pool of byte arrays used by the read path. Sizes are powers of
+ * two from {@link #MIN_SIZE} to {@link #MAX_SIZE}; larger requests are
+ * allocated and dropped as usual.
+ *
+ * Buffers may be released from any thread (e.g. by a {@link MessageBuffer}
+ * kept by the listener), so the pool is synchronized. It is only contended
+ * by the read thread and the releasing thread.
+ */
+class BufferPool {
+
+	static final int MIN_SIZE = 256;
+	static final int MAX_SIZE = 1024 * 1024;
+
+	private static final int MIN_SHIFT = 8; // MIN_SIZE == 1 << MIN_SHIFT
+	private static final int CLASS_COUNT = 13; // MIN_SIZE .. MAX_SIZE
+	private static final int MAX_RETAINED_COUNT = 8;
+	private static final int MAX_RETAINED_BYTES = 256 * 1024;
+	private static final int MAX_RETAINED_MESSAGE_BUFFERS = 16;
+
+	private final byte[][][] mFree = new byte[CLASS_COUNT][][];
+	private final int[] mFreeCount = new int[CLASS_COUNT];
+	private final MessageBuffer[] mFreeMessageBuffers = new MessageBuffer[MAX_RETAINED_MESSAGE_BUFFERS];
+	private int mFreeMessageBufferCount;
+
+	BufferPool() {
+		for (int i = 0; i < CLASS_COUNT; i++) {
+			final int size = MIN_SIZE << i;
+			mFree[i] = new byte[Math.max(1, Math.min(MAX_RETAINED_COUNT, MAX_RETAINED_BYTES / size))][];
+		}
+	}
+
+	/**
+	 * @return an array whose length is at least {@code size}.
+	 */
+	synchronized byte[] acquire(int size) {
+		if (size > MAX_SIZE) {
+			return new byte[size];
+		}
+		final int index = indexOf(size);
+		final int count = mFreeCount[index];
+		if (count == 0) {
+			return new byte[MIN_SIZE << index];
+		}
+		final byte[][] free = mFree[index];
+		final byte[] buffer = free[count - 1];
+		free[count - 1] = null;
+		mFreeCount[index] = count - 1;
+		return buffer;
+	}
+
+	/**
+	 * Returns the array to the pool. Arrays not obtained from
+	 * {@link #acquire(int)} are silently dropped.
+	 */
+	synchronized void release(byte[] buffer) {
+		final int size = buffer.length;
+		if (size < MIN_SIZE || size > MAX_SIZE || (size & (size - 1)) != 0) {
+			return;
+		}
+		final int index = indexOf(size);
+		final byte[][] free = mFree[index];
+		final int count = mFreeCount[index];
+		if (count < free.length) {
+			free[count] = buffer;
+			mFreeCount[index] = count + 1;
+		}
+	}
+
+	/**
+	 * Wraps a pooled array. The array is returned to this pool by
+	 * {@link MessageBuffer#release()}.
+	 */
+	MessageBuffer obtainMessageBuffer(byte[] array, int offset, int length) {
+		MessageBuffer buffer = null;
+		synchronized (this) {
+			if (mFreeMessageBufferCount > 0) {
+				buffer = mFreeMessageBuffers[--mFreeMessageBufferCount];
+				mFreeMessageBuffers[mFreeMessageBufferCount] = null;
+			}
+		}
+		if (buffer == null) {
+			buffer = new MessageBuffer();
+		}
+		buffer.set(this, array, offset, length);
+		return buffer;
+	}
+
+	synchronized void recycle(MessageBuffer buffer, byte[] array) {
+		release(array);
+		if (mFreeMessageBufferCount < mFreeMessageBuffers.length) {
+			mFreeMessageBuffers[mFreeMessageBufferCount++] = buffer;
+		}
+	}
+
+	private static int indexOf(int size) {
+		if (size <= MIN_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+}
@@ -0,0 +1,99 @@
+package com.lisb.android.android_websockets;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs a client's listener callbacks on an {@link Executor} one at a time, in
+ * the order they were submitted, even if the executor has many threads.
+ *
+ * At most {@code capacity} callbacks wait at once: beyond that
+ * {@link #execute(Runnable)} blocks the reading thread, which stops reading
+ * the socket until the listener catches up.
+ */
+class CallbackExecutor {
+
+	private final Executor mExecutor;
+	private final Semaphore mPermits;
+	private final Runnable mDrainTask = new DrainTask();
+
+	/** Must lock mTasks. */
+	private final LinkedList<Runnable> mTasks = new LinkedList<Runnable>();
+	private boolean mDraining;
+
+	/** thread running callbacks, if any. */
+	private volatile Thread mThread;
+
+	CallbackExecutor(Executor executor, int capacity) {
+		mExecutor = executor;
+		mPermits = new Semaphore(capacity);
+	}
+
+	void execute(Runnable task) {
+		// a callback waiting on itself would never return.
+		if (Thread.currentThread() != mThread) {
+			mPermits.acquireUninterruptibly();
+		} else if (!mPermits.tryAcquire()) {
+			task = new Unbounded(task);
+		}
+
+		synchronized (mTasks) {
+			mTasks.add(task);
+			if (mDraining) {
+				return;
+			}
+			mDraining = true;
+		}
+		mExecutor.execute(mDrainTask);
+	}
+
+	private class DrainTask implements Runnable {
+		@Override
+		public void run() {
+			boolean completed = false;
+			try {
+				while (true) {
+					final Runnable task;
+					synchronized (mTasks) {
+						task = mTasks.poll();
+						if (task == null) {
+							mDraining = false;
+							completed = true;
+							return;
+						}
+					}
+					mThread = Thread.currentThread();
+					try {
+						task.run();
+					} finally {
+						mThread = null;
+						if (!(task instanceof Unbounded)) {
+							mPermits.release();
+						}
+					}
+				}
+			} finally {
+				if (!completed) {
+					// a callback threw. let the executor see it, but carry on
+					// with the rest in a new task.
+					mExecutor.execute(mDrainTask);
+				}
+			}
+		}
+	}
+
+	/** queued over capacity, holding no permit. */
+	private static class Unbounded implements Runnable {
+		private final Runnable mTask;
+
+		Unbounded(Runnable task) {
+			mTask = task;
+		}
+
+		@Override
+		public void run() {
+			mTask.run();
+		}
+	}
+}
@@ -9,6 +9,8 @@ public class CloseCodes {
 	public static final int CLOSE_TOO_LARGE = 1004;
 	public static final int CLOSE_NO_STATUS = 1005;
 	public static final int CLOSE_ABNORMAL = 1006;
+	public static final int CLOSE_INVALID_DATA = 1007;
+	public static final int CLOSE_MESSAGE_TOO_BIG = 1009;
 
 	private CloseCodes() {
 	}
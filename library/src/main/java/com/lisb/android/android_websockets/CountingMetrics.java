@@ -0,0 +1,206 @@
+package com.lisb.android.android_websockets;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link WebSocketClient.Metrics} keeping running totals and maximums, to be
+ * polled by the application. Times are in nanoseconds unless noted.
+ */
+public class CountingMetrics implements WebSocketClient.Metrics {
+
+	private static final int OPCODES = 16;
+
+	private final AtomicLongArray mFramesReceived = new AtomicLongArray(OPCODES);
+	private final AtomicLongArray mBytesReceived  = new AtomicLongArray(OPCODES);
+	private final AtomicLongArray mFramesSent     = new AtomicLongArray(OPCODES);
+	private final AtomicLongArray mBytesSent      = new AtomicLongArray(OPCODES);
+
+	private volatile int     mQueueDepth;
+	private final AtomicLong mMaxQueueDepth = new AtomicLong();
+	private final AtomicLong mQueuedFrames  = new AtomicLong();
+	private final AtomicLong mQueueTime     = new AtomicLong();
+	private final AtomicLong mMaxQueueTime  = new AtomicLong();
+
+	private final AtomicLong mFlushes      = new AtomicLong();
+	private final AtomicLong mFlushTime    = new AtomicLong();
+	private final AtomicLong mMaxFlushTime = new AtomicLong();
+
+	private final AtomicLong mCallbacks       = new AtomicLong();
+	private final AtomicLong mCallbackTime    = new AtomicLong();
+	private final AtomicLong mMaxCallbackTime = new AtomicLong();
+
+	private final AtomicLong mRoundTrips       = new AtomicLong();
+	private final AtomicLong mRoundTripMillis  = new AtomicLong();
+	private volatile long    mLastRoundTripMillis = -1;
+	private final AtomicLong mMaxRoundTripMillis = new AtomicLong();
+
+	private final AtomicLong mTlsHandshakes       = new AtomicLong();
+	private final AtomicLong mResumedTlsHandshakes = new AtomicLong();
+	private final AtomicLong mTlsHandshakeTime    = new AtomicLong();
+	private final AtomicLong mMaxTlsHandshakeTime = new AtomicLong();
+
+	@Override
+	public void onFrameReceived(int opcode, int payloadLength) {
+		mFramesReceived.incrementAndGet(opcode);
+		mBytesReceived.addAndGet(opcode, payloadLength);
+	}
+
+	@Override
+	public void onFrameQueued(int opcode, int payloadLength, int queueDepth) {
+		mQueueDepth = queueDepth;
+		max(mMaxQueueDepth, queueDepth);
+	}
+
+	@Override
+	public void onFrameWritten(int opcode, int payloadLength, long queueTime) {
+		mFramesSent.incrementAndGet(opcode);
+		mBytesSent.addAndGet(opcode, payloadLength);
+		if (queueTime >= 0) {
+			mQueuedFrames.incrementAndGet();
+			mQueueTime.addAndGet(queueTime);
+			max(mMaxQueueTime, queueTime);
+		}
+	}
+
+	@Override
+	public void onFlush(int frames, long time) {
+		mFlushes.incrementAndGet();
+		mFlushTime.addAndGet(time);
+		max(mMaxFlushTime, time);
+	}
+
+	@Override
+	public void onListenerCallback(long time) {
+		mCallbacks.incrementAndGet();
+		mCallbackTime.addAndGet(time);
+		max(mMaxCallbackTime, time);
+	}
+
+	@Override
+	public void onHeartbeatRoundTrip(long roundTripMillis) {
+		mRoundTrips.incrementAndGet();
+		mRoundTripMillis.addAndGet(roundTripMillis);
+		mLastRoundTripMillis = roundTripMillis;
+		max(mMaxRoundTripMillis, roundTripMillis);
+	}
+
+	@Override
+	public void onTlsHandshake(long time, boolean resumed) {
+		mTlsHandshakes.incrementAndGet();
+		if (resumed) {
+			mResumedTlsHandshakes.incrementAndGet();
+		}
+		mTlsHandshakeTime.addAndGet(time);
+		max(mMaxTlsHandshakeTime, time);
+	}
+
+	public long getFramesReceived(int opcode) {
+		return mFramesReceived.get(opcode);
+	}
+
+	public long getBytesReceived(int opcode) {
+		return mBytesReceived.get(opcode);
+	}
+
+	public long getFramesSent(int opcode) {
+		return mFramesSent.get(opcode);
+	}
+
+	public long getBytesSent(int opcode) {
+		return mBytesSent.get(opcode);
+	}
+
+	/**
+	 * @return depth of the write queue when a frame was last sent.
+	 */
+	public int getQueueDepth() {
+		return mQueueDepth;
+	}
+
+	public long getMaxQueueDepth() {
+		return mMaxQueueDepth.get();
+	}
+
+	/**
+	 * @return average time from send() to the frame being written to the socket.
+	 */
+	public long getAverageQueueTime() {
+		return average(mQueueTime, mQueuedFrames);
+	}
+
+	public long getMaxQueueTime() {
+		return mMaxQueueTime.get();
+	}
+
+	public long getFlushCount() {
+		return mFlushes.get();
+	}
+
+	public long getAverageFlushTime() {
+		return average(mFlushTime, mFlushes);
+	}
+
+	public long getMaxFlushTime() {
+		return mMaxFlushTime.get();
+	}
+
+	/**
+	 * @return total time websocket-read-thread spent in listener callbacks.
+	 */
+	public long getListenerTime() {
+		return mCallbackTime.get();
+	}
+
+	public long getMaxListenerTime() {
+		return mMaxCallbackTime.get();
+	}
+
+	/**
+	 * @return in milliseconds, or -1 before the first pong.
+	 */
+	public long getLastRoundTripMillis() {
+		return mLastRoundTripMillis;
+	}
+
+	public long getAverageRoundTripMillis() {
+		return average(mRoundTripMillis, mRoundTrips);
+	}
+
+	public long getMaxRoundTripMillis() {
+		return mMaxRoundTripMillis.get();
+	}
+
+	public long getTlsHandshakeCount() {
+		return mTlsHandshakes.get();
+	}
+
+	/**
+	 * @return TLS handshakes that resumed an earlier session.
+	 */
+	public long getResumedTlsHandshakeCount() {
+		return mResumedTlsHandshakes.get();
+	}
+
+	public long getAverageTlsHandshakeTime() {
+		return average(mTlsHandshakeTime, mTlsHandshakes);
+	}
+
+	public long getMaxTlsHandshakeTime() {
+		return mMaxTlsHandshakeTime.get();
+	}
+
+	private static long average(AtomicLong total, AtomicLong count) {
+		final long n = count.get();
+		return n == 0 ? 0 : total.get() / n;
+	}
+
+	private static void max(AtomicLong max, long value) {
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package com.lisb.android.android_websockets;
+
+/**
+ * Thread running a client's writes and timers: its own HandlerThread, or the
+ * thread of a {@link WebSocketEngine} shared with other clients.
+ */
+interface EventLoop {
+
+	void post(Runnable task);
+
+	void postDelayed(Runnable task, long delayMillis);
+
+	void removeCallbacks(Runnable task);
+
+	boolean isAlive();
+
+	/**
+	 * Drops pending tasks. Nothing posted afterwards runs.
+	 */
+	void quit();
+}
@@ -0,0 +1,113 @@
+package com.lisb.android.android_websockets;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Outbound frame. The header, masking key included, is built up front, while
+ * the payload is kept as given by the caller. It is masked only while
+ * {@link FrameWriter} copies it to the socket, so the payload is never
+ * duplicated as a whole.
+ */
+class Frame {
+
+	static final int MAX_HEADER_LENGTH = 14;
+
+	final byte[] mHeader = new byte[MAX_HEADER_LENGTH];
+	int mHeaderLength;
+	int mOpcode;
+	boolean mClose;
+	boolean mCompressed;
+	/** mPayload is from {@link BufferPool}, released once written. */
+	boolean mPooled;
+	/** System.nanoTime() when queued, or 0 if not measured. */
+	long mQueuedAt;
+	/** link in {@link FrameQueue}. */
+	volatile Frame mNext;
+
+	boolean mMasked;
+	final byte[] mMask = new byte[4];
+
+	// payload is either mPayload[mOffset .. mOffset + mLength], mPayloadBuffer,
+	// or mText to be encoded in UTF-8 to mLength bytes.
+	byte[] mPayload;
+	int mOffset;
+	ByteBuffer mPayloadBuffer;
+	CharSequence mText;
+	int mLength;
+
+	Frame(int opcode, byte[] payload, int offset, int length) {
+		mOpcode = opcode;
+		mPayload = payload;
+		mOffset = offset;
+		mLength = length;
+	}
+
+	Frame(int opcode, CharSequence text, int length) {
+		mOpcode = opcode;
+		mText = text;
+		mLength = length;
+	}
+
+	Frame(int opcode, ByteBuffer payload) {
+		mOpcode = opcode;
+		if (payload.hasArray()) {
+			mPayload = payload.array();
+			mOffset = payload.arrayOffset() + payload.position();
+		} else {
+			mPayloadBuffer = payload.slice();
+		}
+		mLength = payload.remaining();
+	}
+
+	void setHeader(boolean fin, boolean masked, int maskKey) {
+		final byte[] header = mHeader;
+		final int length = mLength;
+		final int maskBit = masked ? Frames.MASK : 0;
+		int position;
+
+		header[0] = (byte) ((fin ? Frames.FIN : 0) | (mCompressed ? Frames.RSV1 : 0) | mOpcode);
+		if (length <= 125) {
+			header[1] = (byte) (maskBit | length);
+			position = 2;
+		} else if (length <= 65535) {
+			header[1] = (byte) (maskBit | 126);
+			header[2] = (byte) (length >>> 8);
+			header[3] = (byte) length;
+			position = 4;
+		} else {
+			header[1] = (byte) (maskBit | 127);
+			header[2] = 0;
+			header[3] = 0;
+			header[4] = 0;
+			header[5] = 0;
+			header[6] = (byte) (length >>> 24);
+			header[7] = (byte) (length >>> 16);
+			header[8] = (byte) (length >>> 8);
+			header[9] = (byte) length;
+			position = 10;
+		}
+
+		mMasked = masked;
+		if (masked) {
+			mMask[0] = (byte) (maskKey >>> 24);
+			mMask[1] = (byte) (maskKey >>> 16);
+			mMask[2] = (byte) (maskKey >>> 8);
+			mMask[3] = (byte) maskKey;
+			System.arraycopy(mMask, 0, header, position, 4);
+			position += 4;
+		}
+		mHeaderLength = position;
+	}
+
+	/**
+	 * Copies the payload from {@code from} to {@code dst} without masking it.
+	 */
+	void copyPayload(int from, byte[] dst, int dstOffset, int count) {
+		if (mPayload != null) {
+			System.arraycopy(mPayload, mOffset + from, dst, dstOffset, count);
+		} else {
+			mPayloadBuffer.position(from);
+			mPayloadBuffer.get(dst, dstOffset, count);
+		}
+	}
+}
@@ -1,92 +1,144 @@
 package com.lisb.android.android_websockets;
 
 import java.io.UnsupportedEncodingException;
-
-import android.util.Log;
+import java.nio.ByteBuffer;
+import java.util.Random;
 
 class FrameFactory {
 
-	private static final String TAG = FrameFactory.class.getSimpleName();
-	
+	// a control frame's 125 bytes of payload, less the close code.
+	static final int MAX_CLOSE_REASON_LENGTH = 123;
+
 	private boolean mMasking = true;
-	
-    public byte[] createFrame(String data) {
-        return marshal(data, Frames.OP_TEXT, -1);
+	private final Random mRandom = new Random();
+	/** set once negotiated. */
+	private volatile PerMessageDeflate mPerMessageDeflate;
+
+	void setPerMessageDeflate(PerMessageDeflate perMessageDeflate) {
+		mPerMessageDeflate = perMessageDeflate;
+	}
+
+    /**
+     * The text is encoded when the frame is written. Other than a String, it is
+     * copied first: the length in the header must match what is encoded later,
+     * even if the caller modifies it meanwhile.
+     */
+    public Frame createFrame(CharSequence text) {
+        final String data = text.toString();
+        final int length = Utf8Codec.encodedLength(data);
+        final PerMessageDeflate perMessageDeflate = mPerMessageDeflate;
+        if (perMessageDeflate != null) {
+            final byte[] compressed = perMessageDeflate.compress(data, length);
+            if (compressed != null) {
+                final Frame frame = new Frame(Frames.OP_TEXT, compressed, 0, compressed.length);
+                frame.mCompressed = true;
+                return prepare(frame);
+            }
+        }
+        return prepare(new Frame(Frames.OP_TEXT, data, length));
     }
 
-    public byte[] createFrame(byte[] data) {
+    /**
+     * The array is not copied, unless compressed. It must not be modified until
+     * the frame is sent.
+     */
+    public Frame createFrame(byte[] data) {
         return createFrame(data, Frames.OP_BINARY, -1);
     }
 
-    private byte[] createFrame(byte[] data, int opcode, int errorCode)  {
-        return createFrame((Object)data, opcode, errorCode);
+    /**
+     * The buffer is not copied, unless compressed, and its position is left as
+     * it is. Its remaining bytes must not be modified until the frame is sent.
+     * Direct buffers are never compressed.
+     */
+    public Frame createFrame(ByteBuffer data) {
+        if (data.hasArray()) {
+            final Frame frame = compress(Frames.OP_BINARY, data.array(),
+                    data.arrayOffset() + data.position(), data.remaining());
+            if (frame != null) {
+                return prepare(frame);
+            }
+        }
+        return prepare(new Frame(Frames.OP_BINARY, data));
     }
 
-    private byte[] marshal(String data, int opcode, int errorCode) {
-        return createFrame((Object)data, opcode, errorCode);
+    private Frame marshal(String data, int opcode, int errorCode) {
+        return createFrame(decode(data), opcode, errorCode);
     }
 
-    private byte[] createFrame(Object data, int opcode, int errorCode) {
-        Log.d(TAG, "Creating frame for: " + data + " op: " + opcode + " err: " + errorCode);
-
-        byte[] buffer = (data instanceof String) ? decode((String) data) : (byte[]) data;
-        int insert = (errorCode > 0) ? 2 : 0;
-        int length = buffer.length + insert;
-        int header = (length <= 125) ? 2 : (length <= 65535 ? 4 : 10);
-        int offset = header + (mMasking ? 4 : 0);
-        int masked = mMasking ? Frames.MASK : 0;
-        byte[] frame = new byte[length + offset];
-
-        frame[0] = (byte) ((byte)Frames.FIN | (byte)opcode);
-
-        if (length <= 125) {
-            frame[1] = (byte) (masked | length);
-        } else if (length <= 65535) {
-            frame[1] = (byte) (masked | 126);
-            frame[2] = (byte) Math.floor(length / 256);
-            frame[3] = (byte) (length & Frames.BYTE);
-        } else {
-            frame[1] = (byte) (masked | 127);
-            frame[2] = (byte) (((int) Math.floor(length / Math.pow(2, 56))) & Frames.BYTE);
-            frame[3] = (byte) (((int) Math.floor(length / Math.pow(2, 48))) & Frames.BYTE);
-            frame[4] = (byte) (((int) Math.floor(length / Math.pow(2, 40))) & Frames.BYTE);
-            frame[5] = (byte) (((int) Math.floor(length / Math.pow(2, 32))) & Frames.BYTE);
-            frame[6] = (byte) (((int) Math.floor(length / Math.pow(2, 24))) & Frames.BYTE);
-            frame[7] = (byte) (((int) Math.floor(length / Math.pow(2, 16))) & Frames.BYTE);
-            frame[8] = (byte) (((int) Math.floor(length / Math.pow(2, 8)))  & Frames.BYTE);
-            frame[9] = (byte) (length & Frames.BYTE);
+    private Frame createFrame(byte[] data, int opcode, int errorCode) {
+        if (errorCode > 0) {
+            final byte[] payload = new byte[data.length + 2];
+            payload[0] = (byte) (errorCode >>> 8);
+            payload[1] = (byte) errorCode;
+            System.arraycopy(data, 0, payload, 2, data.length);
+            data = payload;
+        }
+        if (opcode == Frames.OP_TEXT || opcode == Frames.OP_BINARY) {
+            final Frame frame = compress(opcode, data, 0, data.length);
+            if (frame != null) {
+                return prepare(frame);
+            }
         }
+        return prepare(new Frame(opcode, data, 0, data.length));
+    }
 
-        if (errorCode > 0) {
-            frame[offset] = (byte) (((int) Math.floor(errorCode / 256)) & Frames.BYTE);
-            frame[offset+1] = (byte) (errorCode & Frames.BYTE);
+    // @return null if the message is to be sent as it is.
+    private Frame compress(int opcode, byte[] data, int offset, int length) {
+        final PerMessageDeflate perMessageDeflate = mPerMessageDeflate;
+        if (perMessageDeflate == null) {
+            return null;
         }
-        System.arraycopy(buffer, 0, frame, offset + insert, buffer.length);
-
-        if (mMasking) {
-            byte[] mask = {
-                (byte) Math.floor(Math.random() * 256), (byte) Math.floor(Math.random() * 256),
-                (byte) Math.floor(Math.random() * 256), (byte) Math.floor(Math.random() * 256)
-            };
-            System.arraycopy(mask, 0, frame, header, mask.length);
-            Frames.mask(frame, mask, offset);
+        final byte[] compressed = perMessageDeflate.compress(data, offset, length);
+        if (compressed == null) {
+            return null;
         }
+        final Frame frame = new Frame(opcode, compressed, 0, compressed.length);
+        frame.mCompressed = true;
+        return frame;
+    }
+
+    /**
+     * @param opcode of the message for its first fragment, continuation after.
+     */
+    public Frame createFragment(int opcode, byte[] payload, int length, boolean fin) {
+        final Frame frame = new Frame(opcode, payload, 0, length);
+        frame.setHeader(fin, mMasking, mMasking ? mRandom.nextInt() : 0);
+        return frame;
+    }
 
+    private Frame prepare(Frame frame) {
+        frame.setHeader(true, mMasking, mMasking ? mRandom.nextInt() : 0);
         return frame;
     }
 
-    public byte[] createPingFrame(String message) {
+    public Frame createPingFrame(String message) {
         return marshal(message, Frames.OP_PING, -1);
     }
 
-    public byte[] createCloseFrame(int code, String reason) {
-        return marshal(reason, Frames.OP_CLOSE, code);
+    /**
+     * @param reason cut to the 123 bytes of UTF-8 a close frame has room for,
+     * before a character that doesn't fit.
+     */
+    public Frame createCloseFrame(int code, String reason) {
+        byte[] data = decode(reason);
+        if (data.length > MAX_CLOSE_REASON_LENGTH) {
+            int length = MAX_CLOSE_REASON_LENGTH;
+            // back to the first byte of the character cut.
+            while ((data[length] & 0xc0) == 0x80) {
+                length--;
+            }
+            final byte[] truncated = new byte[length];
+            System.arraycopy(data, 0, truncated, 0, length);
+            data = truncated;
+        }
+        return createFrame(data, Frames.OP_CLOSE, code);
     }
-	
-    public byte[] createPongFrame(byte[] payload) {
+
+    public Frame createPongFrame(byte[] payload) {
     	return createFrame(payload, Frames.OP_PONG, -1);
     }
-    
+
     private byte[] decode(String string) {
         try {
             return (string).getBytes("UTF-8");
@@ -30,66 +30,133 @@
 
 package com.lisb.android.android_websockets;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
-
-import android.util.Log;
+import java.nio.charset.CharacterCodingException;
 
 class FrameHandler {
-    private static final String TAG = FrameHandler.class.getSimpleName();
 
     private WebSocketClient mClient;
+    private final BufferPool mPool;
+    private final Utf8Codec  mUtf8 = new Utf8Codec();
+    private final Utf8Validator mUtf8Validator = new Utf8Validator();
+    // decoded chunks of streamed text.
+    private char[] mChars;
 
     private int     mStage;
 
     private boolean mFinal;
     private boolean mMasked;
+    private boolean mFragment;
+    private boolean mCompressed;
     private int     mOpcode;
+    private int     mHeader;
     private int     mLengthSize;
+    private long    mExtendedLength;
+    private int     mHeaderPosition;
     private int     mLength;
     private int     mMode;
 
-    private byte[] mMask    = new byte[0];
-    private byte[] mPayload = new byte[0];
+    private final byte[] mMask = new byte[4];
 
-    private ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+    // payload of the current frame is read into mPayload[mPayloadOffset ..].
+    private byte[]  mPayload;
+    private int     mPayloadOffset;
+    private int     mPayloadPosition;
 
-    
+    // fragments of the current message are gathered in mMessage[0 .. mMessageLength].
+    // a streamed message isn't gathered, but its length is counted all the same:
+    // either way it's checked against the max message size.
+    private byte[]  mMessage;
+    private int     mMessageLength;
 
     public FrameHandler(WebSocketClient client) {
         mClient = client;
+        mPool   = client.getBufferPool();
     }
 
-    public void start(HappyDataInputStream stream) throws IOException {
+    /**
+     * Decodes frames until the end of the stream. Each read from the socket is
+     * parsed in one pass, however many frames (or parts of frames) it contains.
+     */
+    public void start(ReceiveBuffer buffer) throws IOException {
         while (true) {
-            if (stream.available() == -1) break;
+            if (buffer.remaining() == 0 && buffer.fill() == -1) {
+                throw new EOFException();
+            }
+            final int length = buffer.remaining();
+            decode(buffer.array(), buffer.position(), length);
+            buffer.skip(length);
+        }
+    }
+
+    /**
+     * Consumes all given bytes. A frame split across calls is kept as partial
+     * state and completed by the following calls.
+     */
+    void decode(byte[] data, int offset, int length) throws IOException {
+        final int end = offset + length;
+        // once for all the frames read at once.
+        mClient.setLastIO();
+        while (offset < end) {
             switch (mStage) {
                 case 0:
-                	mClient.setLastIO();
-                    parseOpcode(stream.readByte());
+                    parseOpcode(data[offset++]);
                     break;
                 case 1:
-                    parseLength(stream.readByte());
+                    parseLength(data[offset++]);
                     break;
                 case 2:
-                    parseExtendedLength(stream.readBytes(mLengthSize));
+                    mExtendedLength = (mExtendedLength << 8) | (data[offset++] & 0xFF);
+                    if (++mHeaderPosition == mLengthSize) {
+                        parseExtendedLength();
+                    }
                     break;
                 case 3:
-                    mMask = stream.readBytes(4);
-                    mStage = 4;
+                    mMask[mHeaderPosition++] = data[offset++];
+                    if (mHeaderPosition == 4) {
+                        startPayload();
+                    }
                     break;
                 case 4:
-                    mPayload = stream.readBytes(mLength);
-                    emitFrame();
-                    mStage = 0;
+                    if (mPayload == null) {
+                        if (end - offset >= mLength) {
+                            // whole payload is in the receive buffer: hand it over in place.
+                            emitSlice(data, offset, mLength);
+                            offset += mLength;
+                            mStage = 0;
+                            break;
+                        }
+                        mPayload       = mPool.acquire(mLength);
+                        mPayloadOffset = 0;
+                    }
+                    final int count = Math.min(end - offset, mLength - mPayloadPosition);
+                    System.arraycopy(data, offset, mPayload, mPayloadOffset + mPayloadPosition, count);
+                    offset += count;
+                    mPayloadPosition += count;
+                    if (mPayloadPosition == mLength) {
+                        emitFrame();
+                        mStage = 0;
+                    }
+                    break;
+                case 5:
+                    final int chunk = Math.min(end - offset, mLength - mPayloadPosition);
+                    if (mMasked) {
+                        Frames.mask(data, offset, chunk, mMask, mPayloadPosition);
+                    }
+                    if (mMode == Frames.MODE_TEXT) {
+                        emitTextChunk(data, offset, chunk);
+                    } else {
+                        mClient.onBinaryMessageChunk(data, offset, chunk);
+                    }
+                    offset += chunk;
+                    mPayloadPosition += chunk;
+                    if (mPayloadPosition == mLength) {
+                        endStreamedFrame();
+                    }
                     break;
             }
         }
-        
-    	mClient.onClose(CloseCodes.CLOSE_ABNORMAL, "EOF");
     }
 
     private void parseOpcode(byte data) throws ProtocolError {
@@ -97,14 +164,23 @@ class FrameHandler {
         boolean rsv2 = (data & Frames.RSV2) == Frames.RSV2;
         boolean rsv3 = (data & Frames.RSV3) == Frames.RSV3;
 
-        if (rsv1 || rsv2 || rsv3) {
+        mFinal   = (data & Frames.FIN) == Frames.FIN;
+        mOpcode  = (data & Frames.OPCODE);
+        mHeader  = data;
+
+        if (rsv2 || rsv3) {
             throw new ProtocolError("RSV not zero");
         }
 
-        mFinal   = (data & Frames.FIN) == Frames.FIN;
-        mOpcode  = (data & Frames.OPCODE);
-        mMask    = new byte[0];
-        mPayload = new byte[0];
+        if (mOpcode == Frames.OP_TEXT || mOpcode == Frames.OP_BINARY) {
+            // RSV1 marks a compressed message. (permessage-deflate)
+            if (rsv1 && mClient.getPerMessageDeflate() == null) {
+                throw new ProtocolError("RSV1 set without permessage-deflate");
+            }
+            mCompressed = rsv1;
+        } else if (rsv1) {
+            throw new ProtocolError("RSV1 not zero");
+        }
 
         if (!Frames.OPCODES.contains(mOpcode)) {
             throw new ProtocolError("Bad opcode");
@@ -114,181 +190,334 @@ class FrameHandler {
             throw new ProtocolError("Expected non-final packet");
         }
 
+        if (mOpcode == Frames.OP_CONTINUATION && mMode == 0) {
+            throw new ProtocolError("Mode was not set.");
+        }
+
+        if ((mOpcode == Frames.OP_TEXT || mOpcode == Frames.OP_BINARY) && mMode != 0) {
+            throw new ProtocolError("Expected continuation frame");
+        }
+
         mStage = 1;
     }
 
-    private void parseLength(byte data) {
+    private void parseLength(byte data) throws IOException {
         mMasked = (data & Frames.MASK) == Frames.MASK;
         mLength = (data & Frames.LENGTH);
+        mHeaderPosition = 0;
 
         if (mLength >= 0 && mLength <= 125) {
-            mStage = mMasked ? 3 : 4;
+            checkLength();
+            startMaskOrPayload();
+        } else if (!Frames.FRAGMENTED_OPCODES.contains(mOpcode)) {
+            throw new ProtocolError("Control frame payload too large");
         } else {
-            mLengthSize = (mLength == 126) ? 2 : 8;
-            mStage      = 2;
+            mLengthSize     = (mLength == 126) ? 2 : 8;
+            mExtendedLength = 0;
+            mStage          = 2;
         }
     }
 
-    private void parseExtendedLength(byte[] buffer) throws ProtocolError {
-        mLength = getInteger(buffer);
-        mStage  = mMasked ? 3 : 4;
+    private void parseExtendedLength() throws IOException {
+        if (mExtendedLength < 0 || mExtendedLength > Integer.MAX_VALUE) {
+            throw new ProtocolError("Bad integer: " + mExtendedLength);
+        }
+        mLength         = (int) mExtendedLength;
+        mHeaderPosition = 0;
+        checkLength();
+        startMaskOrPayload();
     }
 
-    private void emitFrame() throws IOException {
-        byte[] payload = Frames.mask(mPayload, mMask, 0);
-        int opcode = mOpcode;
+    // rejects the frame before anything is allocated for it.
+    private void checkLength() throws ProtocolError {
+        if (mLength > mClient.getMaxFrameSize()) {
+            throw new ProtocolError("Frame too large: " + mLength,
+                    CloseCodes.CLOSE_MESSAGE_TOO_BIG);
+        }
+        if (Frames.FRAGMENTED_OPCODES.contains(mOpcode)) {
+            final long messageLength = (mOpcode == Frames.OP_CONTINUATION)
+                    ? (long) mMessageLength + mLength : mLength;
+            if (messageLength > mClient.getMaxMessageSize()) {
+                throw new ProtocolError("Message too large: " + messageLength,
+                        CloseCodes.CLOSE_MESSAGE_TOO_BIG);
+            }
+        }
+    }
+
+    private void startMaskOrPayload() throws IOException {
+        if (mMasked) {
+            mStage = 3;
+        } else {
+            startPayload();
+        }
+    }
+
+    private void startPayload() throws IOException {
+        final WebSocketClient.Metrics metrics = mClient.getMetrics();
+        if (metrics != null) {
+            metrics.onFrameReceived(mOpcode, mLength);
+        }
+        final FrameTracer tracer = mClient.getTracer();
+        if (tracer != null) {
+            tracer.onFrameReceived(mHeader, mLength);
+        }
+
+        final int opcode = mOpcode;
+        mPayloadPosition = 0;
 
-        if (opcode == Frames.OP_CONTINUATION) {
-            if (mMode == 0) {
-                throw new ProtocolError("Mode was not set.");
+        if (!mCompressed && isStreamed(opcode)) {
+            // the payload is passed on as it arrives and never buffered.
+            if (opcode == Frames.OP_BINARY) {
+                mMode = Frames.MODE_BINARY;
+                mClient.onBinaryMessageStart();
+            } else if (opcode == Frames.OP_TEXT) {
+                mMode = Frames.MODE_TEXT;
+                mUtf8Validator.reset();
+                mClient.onTextMessageStart();
             }
-            mBuffer.write(payload);
-            if (mFinal) {
-                byte[] message = mBuffer.toByteArray();
-                if (mMode == Frames.MODE_TEXT) {
-                    mClient.onMessage(encode(message));
-                } else {
-                    mClient.onMessage(message);
+            if (mLength == 0) {
+                endStreamedFrame();
+            } else {
+                mStage = 5;
+            }
+            return;
+        }
+
+        // compressed messages are gathered as well, to be inflated as a whole.
+        mFragment = opcode == Frames.OP_CONTINUATION || !mFinal
+                || (mCompressed && (opcode == Frames.OP_TEXT || opcode == Frames.OP_BINARY));
+        if (mFragment) {
+            // read the fragment straight into the end of the message.
+            if (opcode != Frames.OP_CONTINUATION) {
+                mMode = (opcode == Frames.OP_TEXT) ? Frames.MODE_TEXT : Frames.MODE_BINARY;
+            }
+            // with room for the tail appended before inflating.
+            ensureMessageCapacity(mMessageLength + mLength + (mCompressed ? 4 : 0));
+            mPayload       = mMessage;
+            mPayloadOffset = mMessageLength;
+        } else if (opcode == Frames.OP_BINARY && mClient.isSliceListener() && mLength > 0) {
+            // decided when the payload arrives. see decode().
+            mPayload       = null;
+            mPayloadOffset = 0;
+        } else if (opcode == Frames.OP_BINARY && !mClient.isBufferListener()) {
+            // handed to the listener as it is.
+            mPayload       = new byte[mLength];
+            mPayloadOffset = 0;
+        } else {
+            mPayload       = mPool.acquire(mLength);
+            mPayloadOffset = 0;
+        }
+
+        if (mLength == 0) {
+            // nothing more to wait for.
+            emitFrame();
+            mStage = 0;
+        } else {
+            mStage = 4;
+        }
+    }
+
+    private boolean isStreamed(int opcode) {
+        final int mode;
+        if (opcode == Frames.OP_TEXT) {
+            mode = Frames.MODE_TEXT;
+        } else if (opcode == Frames.OP_BINARY) {
+            mode = Frames.MODE_BINARY;
+        } else if (opcode == Frames.OP_CONTINUATION) {
+            mode = mMode;
+        } else {
+            return false;
+        }
+        return mode == Frames.MODE_TEXT ? mClient.isTextStreamingListener()
+                : mClient.isStreamingListener();
+    }
+
+    private void endStreamedFrame() throws ProtocolError {
+        mStage = 0;
+        mMessageLength += mLength;
+        if (mFinal) {
+            final int mode = mMode;
+            mMode = 0;
+            mMessageLength = 0;
+            if (mode == Frames.MODE_TEXT) {
+                if (!mUtf8Validator.isComplete()) {
+                    throw new ProtocolError("Invalid UTF-8", CloseCodes.CLOSE_INVALID_DATA);
                 }
-                reset();
+                mClient.onTextMessageEnd();
+            } else {
+                mClient.onBinaryMessageEnd();
             }
+        }
+    }
 
-        } else if (opcode == Frames.OP_TEXT) {
+    private void emitTextChunk(byte[] data, int offset, int length) throws ProtocolError {
+        if (mChars == null || mChars.length < length + 1) {
+            mChars = new char[Math.max(length + 1, ReceiveBuffer.DEFAULT_SIZE + 1)];
+        }
+        final int count = mUtf8Validator.decode(data, offset, length, mChars, 0);
+        if (count < 0) {
+            throw new ProtocolError("Invalid UTF-8", CloseCodes.CLOSE_INVALID_DATA);
+        }
+        if (count > 0) {
+            mClient.onTextMessageChunk(mChars, 0, count);
+        }
+    }
+
+    private void ensureMessageCapacity(int capacity) {
+        if (mMessage == null) {
+            mMessage = mPool.acquire(capacity);
+        } else if (mMessage.length < capacity) {
+            final byte[] message = mPool.acquire(Math.max(capacity, mMessage.length * 2));
+            System.arraycopy(mMessage, 0, message, 0, mMessageLength);
+            mPool.release(mMessage);
+            mMessage = message;
+        }
+    }
+
+    private void emitFrame() throws IOException {
+        final byte[] payload = mPayload;
+        final int    length  = mLength;
+        final int    opcode  = mOpcode;
+        mPayload = null;
+
+        if (mMasked) {
+            Frames.mask(payload, mPayloadOffset, length, mMask);
+        }
+
+        if (mFragment) {
+            if (mMode == Frames.MODE_TEXT && !mCompressed) {
+                // checked as each fragment arrives, rather than once all are buffered.
+                if (opcode == Frames.OP_TEXT) {
+                    mUtf8Validator.reset();
+                }
+                if (!mUtf8Validator.validate(payload, mPayloadOffset, length)
+                        || (mFinal && !mUtf8Validator.isComplete())) {
+                    throw new ProtocolError("Invalid UTF-8", CloseCodes.CLOSE_INVALID_DATA);
+                }
+            }
+            mMessageLength += length;
             if (mFinal) {
-                String messageText = encode(payload);
-                mClient.onMessage(messageText);
-            } else {
-                mMode = Frames.MODE_TEXT;
-                mBuffer.write(payload);
+                emitMessage();
             }
 
+        } else if (opcode == Frames.OP_TEXT) {
+            String messageText = decodeText(payload, 0, length);
+            mPool.release(payload);
+            mClient.onMessage(messageText);
+
         } else if (opcode == Frames.OP_BINARY) {
-            if (mFinal) {
-                mClient.onMessage(payload);
+            if (mClient.isSliceListener()) {
+                mClient.onMessage(payload, 0, length);
+                mPool.release(payload);
+            } else if (mClient.isBufferListener()) {
+                mClient.onMessage(mPool.obtainMessageBuffer(payload, 0, length));
             } else {
-                mMode = Frames.MODE_BINARY;
-                mBuffer.write(payload);
+                mClient.onMessage(payload);
             }
 
         } else if (opcode == Frames.OP_CLOSE) {
-            int    code   = (payload.length >= 2) ? 256 * payload[0] + payload[1] : 1005;
-            String reason = (payload.length >  2) ? encode(slice(payload, 2))     : "";
-            Log.d(TAG, "Got close op! " + code + " " + reason);
+            int    code   = (length >= 2) ? 256 * (payload[0] & 0xFF) + (payload[1] & 0xFF) : 1005;
+            String reason = (length >  2) ? decodeText(payload, 2, length - 2) : "";
+            mPool.release(payload);
         	mClient.onClose(code, reason);
         	mClient.sendClose(code, reason);
         } else if (opcode == Frames.OP_PING) {
-            if (payload.length > 125) { throw new ProtocolError("Ping payload too large"); }
-            Log.d(TAG, "Sending pong!!");
-            mClient.sendPong(payload);
+            final byte[] pong = new byte[length];
+            System.arraycopy(payload, 0, pong, 0, length);
+            mPool.release(payload);
+            mClient.sendPong(pong);
 
         } else if (opcode == Frames.OP_PONG) {
-            String message = encode(payload);
-            mClient.onPong(message);
-            Log.d(TAG, "Got pong! " + message);
+            mClient.onPong(payload, length);
+            mPool.release(payload);
         }
     }
 
-    private void reset() {
-        mMode = 0;
-        mBuffer.reset();
+    private void emitSlice(byte[] data, int offset, int length) {
+        if (mMasked) {
+            Frames.mask(data, offset, length, mMask);
+        }
+        mClient.onMessage(data, offset, length);
     }
 
-    private String encode(byte[] buffer) {
-        try {
-            return new String(buffer, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
+    private void emitMessage() throws ProtocolError {
+        byte[] message = mMessage;
+        int    length  = mMessageLength;
+        final int    mode    = mMode;
+        mMessage       = null;
+        mMessageLength = 0;
+        mMode          = 0;
+
+        if (mCompressed) {
+            final PerMessageDeflate deflate = mClient.getPerMessageDeflate();
+            final byte[] compressed = message;
+            message = deflate.decompress(compressed, length, mPool, mClient.getMaxMessageSize());
+            length  = deflate.getDecompressedLength();
+            mPool.release(compressed);
         }
-    }
 
-    private int getInteger(byte[] bytes) throws ProtocolError {
-        long i = byteArrayToLong(bytes, 0, bytes.length);
-        if (i < 0 || i > Integer.MAX_VALUE) {
-            throw new ProtocolError("Bad integer: " + i);
+        if (mode == Frames.MODE_TEXT && mClient.isTextStreamingListener()) {
+            // only compressed messages are gathered for it.
+            mUtf8Validator.reset();
+            mClient.onTextMessageStart();
+            for (int i = 0; i < length; i += ReceiveBuffer.DEFAULT_SIZE) {
+                emitTextChunk(message, i, Math.min(ReceiveBuffer.DEFAULT_SIZE, length - i));
+            }
+            mPool.release(message);
+            if (!mUtf8Validator.isComplete()) {
+                throw new ProtocolError("Invalid UTF-8", CloseCodes.CLOSE_INVALID_DATA);
+            }
+            mClient.onTextMessageEnd();
+        } else if (mode == Frames.MODE_TEXT) {
+            String messageText = decodeText(message, 0, length);
+            mPool.release(message);
+            mClient.onMessage(messageText);
+        } else if (mClient.isStreamingListener()) {
+            // only compressed messages are gathered for it.
+            mClient.onBinaryMessageStart();
+            mClient.onBinaryMessageChunk(message, 0, length);
+            mClient.onBinaryMessageEnd();
+            mPool.release(message);
+        } else if (mClient.isSliceListener()) {
+            mClient.onMessage(message, 0, length);
+            mPool.release(message);
+        } else if (mClient.isBufferListener()) {
+            mClient.onMessage(mPool.obtainMessageBuffer(message, 0, length));
+        } else {
+            final byte[] data = new byte[length];
+            System.arraycopy(message, 0, data, 0, length);
+            mPool.release(message);
+            mClient.onMessage(data);
         }
-        return (int) i;
-    }
-    
-    /**
-     * Copied from AOSP Arrays.java.
-     */
-    /**
-     * Copies elements from {@code original} into a new array, from indexes start (inclusive) to
-     * end (exclusive). The original order of elements is preserved.
-     * If {@code end} is greater than {@code original.length}, the result is padded
-     * with the value {@code (byte) 0}.
-     *
-     * @param original the original array
-     * @param start the start index, inclusive
-     * @param end the end index, exclusive
-     * @return the new array
-     * @throws ArrayIndexOutOfBoundsException if {@code start < 0 || start > original.length}
-     * @throws IllegalArgumentException if {@code start > end}
-     * @throws NullPointerException if {@code original == null}
-     * @since 1.6
-     */
-    private static byte[] copyOfRange(byte[] original, int start, int end) {
-        if (start > end) {
-            throw new IllegalArgumentException();
-        }
-        int originalLength = original.length;
-        if (start < 0 || start > originalLength) {
-            throw new ArrayIndexOutOfBoundsException();
-        }
-        int resultLength = end - start;
-        int copyLength = Math.min(resultLength, originalLength - start);
-        byte[] result = new byte[resultLength];
-        System.arraycopy(original, start, result, 0, copyLength);
-        return result;
     }
 
-    private byte[] slice(byte[] array, int start) {
-        return copyOfRange(array, start, array.length);
+    private String decodeText(byte[] buffer, int offset, int length) throws ProtocolError {
+        try {
+            return mUtf8.decode(buffer, offset, length);
+        } catch (CharacterCodingException e) {
+            throw new ProtocolError("Invalid UTF-8", CloseCodes.CLOSE_INVALID_DATA);
+        }
     }
 
     public static class ProtocolError extends IOException {
 		private static final long serialVersionUID = 3235810088403426201L;
 
-		public ProtocolError(String detailMessage) {
-            super(detailMessage);
-        }
-    }
-
-    private static long byteArrayToLong(byte[] b, int offset, int length) {
-        if (b.length < length)
-            throw new IllegalArgumentException("length must be less than or equal to b.length");
+		private final int mCloseCode;
 
-        long value = 0;
-        for (int i = 0; i < length; i++) {
-            int shift = (length - 1 - i) * 8;
-            value += (b[i + offset] & 0x000000FF) << shift;
+		public ProtocolError(String detailMessage) {
+            this(detailMessage, CloseCodes.CLOSE_PROTOCOL_ERROR);
         }
-        return value;
-    }
 
-    public static class HappyDataInputStream extends DataInputStream {
-        public HappyDataInputStream(InputStream in) {
-            super(in);
+		public ProtocolError(String detailMessage, int closeCode) {
+            super(detailMessage);
+            mCloseCode = closeCode;
         }
 
-        public byte[] readBytes(int length) throws IOException {
-            byte[] buffer = new byte[length];
-
-            int total = 0;
-
-            while (total < length) {
-                int count = read(buffer, total, length - total);
-                if (count == -1) {
-                    break;
-                }
-                total += count;
-            }
-
-            if (total != length) {
-                throw new IOException(String.format("Read wrong number of bytes. Got: %s, Expected: %s.", total, length));
-            }
-
-            return buffer;
-        }
+		/**
+		 * @return the code to close the connection with.
+		 */
+		public int getCloseCode() {
+			return mCloseCode;
+		}
     }
 }
@@ -0,0 +1,80 @@
+package com.lisb.android.android_websockets;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free queue of outbound frames: any number of producer threads, a single
+ * consumer (websocket-write-thread). Frames are linked through
+ * {@link Frame#mNext}, so enqueueing allocates nothing.
+ *
+ * Based on Dmitry Vyukov's intrusive MPSC node-based queue.
+ */
+class FrameQueue {
+
+	private final Frame mStub = new Frame(Frames.OP_CONTINUATION, null, 0, 0);
+	private final AtomicReference<Frame> mTail = new AtomicReference<Frame>(mStub);
+	/** access on the consumer thread only. */
+	private Frame mHead = mStub;
+
+	/**
+	 * May be called from any thread.
+	 */
+	void offer(Frame frame) {
+		frame.mNext = null;
+		final Frame previous = mTail.getAndSet(frame);
+		// between getAndSet and this store the queue looks empty to poll().
+		previous.mNext = frame;
+	}
+
+	/**
+	 * Consumer thread only.
+	 *
+	 * @return null if the queue is empty, or if the producer of the next frame
+	 *         hasn't finished offering it yet. See {@link #isEmpty()}.
+	 */
+	Frame poll() {
+		Frame head = mHead;
+		Frame next = head.mNext;
+		if (head == mStub) {
+			if (next == null) {
+				return null;
+			}
+			mHead = next;
+			head = next;
+			next = next.mNext;
+		}
+		if (next != null) {
+			mHead = next;
+			head.mNext = null;
+			return head;
+		}
+		if (head != mTail.get()) {
+			return null;
+		}
+		// head is the last frame: put the stub behind it so that it can be taken.
+		offer(mStub);
+		next = head.mNext;
+		if (next != null) {
+			mHead = next;
+			head.mNext = null;
+			return head;
+		}
+		return null;
+	}
+
+	/**
+	 * Consumer thread only. Unlike a null {@link #poll()}, false while a frame is
+	 * still being offered.
+	 */
+	boolean isEmpty() {
+		return mHead == mStub && mTail.get() == mStub;
+	}
+
+	/**
+	 * Consumer thread only.
+	 */
+	void clear() {
+		while (poll() != null) {
+		}
+	}
+}
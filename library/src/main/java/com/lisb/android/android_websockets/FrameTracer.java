@@ -0,0 +1,114 @@
+package com.lisb.android.android_websockets;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Keeps a summary of the last frames a client sent and received (direction,
+ * first header byte, payload length, time) in a fixed-size ring, to be dumped
+ * when something goes wrong. Recording doesn't allocate, and nothing is
+ * recorded unless set with {@link WebSocketClient#setTracer(FrameTracer)}.
+ *
+ * Payloads are never kept.
+ */
+public class FrameTracer {
+
+	private static final int DEFAULT_CAPACITY = 256;
+	private static final int SENT = 0x100;
+	private static final String[] OPCODE_NAMES = {
+		"CONT", "TEXT", "BINARY", "0x3", "0x4", "0x5", "0x6", "0x7",
+		"CLOSE", "PING", "PONG", "0xB", "0xC", "0xD", "0xE", "0xF",
+	};
+
+	private final int mMask;
+	/** Must lock this. */
+	private final long[] mTimes;
+	private final int[] mHeaders;
+	private final int[] mLengths;
+	private long mCount;
+
+	public FrameTracer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity frames kept, rounded up to a power of two.
+	 */
+	public FrameTracer(int capacity) {
+		if (capacity <= 0 || capacity > (1 << 20)) {
+			throw new IllegalArgumentException("capacity must be 1 to 2^20.");
+		}
+		final int size = Integer.highestOneBit(capacity - 1) << 1;
+		mMask = Math.max(1, size) - 1;
+		mTimes = new long[mMask + 1];
+		mHeaders = new int[mMask + 1];
+		mLengths = new int[mMask + 1];
+	}
+
+	/**
+	 * Called on websocket-read-thread once the header of a frame is read.
+	 */
+	void onFrameReceived(int header, int length) {
+		record(header & 0xFF, length);
+	}
+
+	/**
+	 * Called on websocket-write-thread once the frame is written.
+	 */
+	void onFrameSent(int header, int length) {
+		record(SENT | (header & 0xFF), length);
+	}
+
+	private synchronized void record(int header, int length) {
+		final int index = (int) mCount & mMask;
+		mTimes[index] = System.nanoTime();
+		mHeaders[index] = header;
+		mLengths[index] = length;
+		mCount++;
+	}
+
+	public synchronized void clear() {
+		mCount = 0;
+	}
+
+	/**
+	 * Prints the frames kept, oldest first, one a line:
+	 * {@code 12:34:56.789 > TEXT fin rsv1 1024} where {@code >} is sent and
+	 * {@code <} received.
+	 */
+	public void dump(PrintWriter writer) {
+		final long[] times;
+		final int[] headers;
+		final int[] lengths;
+		final long count;
+		synchronized (this) {
+			times = mTimes.clone();
+			headers = mHeaders.clone();
+			lengths = mLengths.clone();
+			count = mCount;
+		}
+		// converts the monotonic times to the wall clock.
+		final long wallOffset = System.currentTimeMillis() * 1000000 - System.nanoTime();
+		final SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+		final long first = Math.max(0, count - times.length);
+
+		writer.println((count - first) + " of " + count + " frames:");
+		for (long i = first; i < count; i++) {
+			final int index = (int) i & mMask;
+			final int header = headers[index];
+			writer.print(format.format(new Date((times[index] + wallOffset) / 1000000)));
+			writer.print((header & SENT) != 0 ? " > " : " < ");
+			writer.print(OPCODE_NAMES[header & Frames.OPCODE]);
+			if ((header & Frames.FIN) != 0) {
+				writer.print(" fin");
+			}
+			if ((header & Frames.RSV1) != 0) {
+				writer.print(" rsv1");
+			}
+			writer.print(' ');
+			writer.println(lengths[index]);
+		}
+		writer.flush();
+	}
+}
@@ -0,0 +1,87 @@
+package com.lisb.android.android_websockets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Copies frames to the socket through one reusable buffer: the header and the
+ * masked payload are gathered there, and the buffer is written out whenever it
+ * fills up. Access on websocket-write-thread only.
+ */
+class FrameWriter {
+
+	// Large enough to fill a whole TLS record.
+	static final int DEFAULT_SIZE = 16 * 1024;
+
+	private final OutputStream mOutputStream;
+	private final byte[] mBuffer;
+	private final ByteBuffer mWords;  // mBuffer, for masking.
+	private int mPosition;
+	private final Utf8Codec mUtf8 = new Utf8Codec();
+
+	FrameWriter(OutputStream outputStream) {
+		this(outputStream, DEFAULT_SIZE);
+	}
+
+	FrameWriter(OutputStream outputStream, int size) {
+		mOutputStream = outputStream;
+		mBuffer = new byte[size];
+		mWords = ByteBuffer.wrap(mBuffer);
+	}
+
+	void write(Frame frame) throws IOException {
+		if (mBuffer.length - mPosition < frame.mHeaderLength) {
+			drain();
+		}
+		System.arraycopy(frame.mHeader, 0, mBuffer, mPosition, frame.mHeaderLength);
+		mPosition += frame.mHeaderLength;
+
+		final int length = frame.mLength;
+		final boolean text = frame.mText != null;
+		if (text) {
+			mUtf8.startEncoding(frame.mText);
+		}
+		int written = 0;
+		while (written < length) {
+			if (mPosition == mBuffer.length) {
+				drain();
+			}
+			int count = Math.min(mBuffer.length - mPosition, length - written);
+			if (text) {
+				// encoded straight into the buffer.
+				count = mUtf8.encode(mBuffer, mPosition, count);
+				if (count == 0) {
+					if (mPosition == 0) {
+						throw new IllegalStateException("Text doesn't match its length.");
+					}
+					// the next character didn't fit.
+					drain();
+					continue;
+				}
+			} else {
+				frame.copyPayload(written, mBuffer, mPosition, count);
+			}
+			if (frame.mMasked) {
+				Frames.mask(mWords, mPosition, count, frame.mMask, written);
+			}
+			mPosition += count;
+			written += count;
+		}
+	}
+
+	/**
+	 * Writes out whatever is buffered and flushes the socket.
+	 */
+	void flush() throws IOException {
+		drain();
+		mOutputStream.flush();
+	}
+
+	private void drain() throws IOException {
+		if (mPosition > 0) {
+			mOutputStream.write(mBuffer, 0, mPosition);
+			mPosition = 0;
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package com.lisb.android.android_websockets;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
@@ -36,14 +37,62 @@ import java.util.List;
     static final List<Integer> FRAGMENTED_OPCODES = Arrays.asList(
         OP_CONTINUATION, OP_TEXT, OP_BINARY
     );
+
 	
      
     static byte[] mask(byte[] payload, byte[] mask, int offset) {
         if (mask.length == 0) return payload;
 
-        for (int i = 0; i < payload.length - offset; i++) {
-            payload[offset + i] = (byte) (payload[offset + i] ^ mask[i % 4]);
-        }
+        mask(payload, offset, payload.length - offset, mask, 0);
         return payload;
     }
+
+    static void mask(byte[] payload, int offset, int length, byte[] mask) {
+        mask(payload, offset, length, mask, 0);
+    }
+
+    /**
+     * Masks 4 bytes at a time, then the tail byte by byte.
+     *
+     * @param maskOffset position of {@code payload[offset]} within the frame's payload.
+     */
+    static void mask(byte[] payload, int offset, int length, byte[] mask, int maskOffset) {
+        // rotate the mask so that it starts at payload[offset].
+        final byte m0 = mask[maskOffset & 3];
+        final byte m1 = mask[(maskOffset + 1) & 3];
+        final byte m2 = mask[(maskOffset + 2) & 3];
+        final byte m3 = mask[(maskOffset + 3) & 3];
+        final int end = offset + length;
+        int i = offset;
+
+        for (; i + 4 <= end; i += 4) {
+            payload[i]     ^= m0;
+            payload[i + 1] ^= m1;
+            payload[i + 2] ^= m2;
+            payload[i + 3] ^= m3;
+        }
+        if (i < end) payload[i++] ^= m0;
+        if (i < end) payload[i++] ^= m1;
+        if (i < end) payload[i]   ^= m2;
+    }
+
+    /**
+     * Same as {@link #mask(byte[], int, int, byte[], int)}, but 8 bytes at a
+     * time through {@code words}, a big-endian view of the payload's array
+     * that the caller keeps, so that none is wrapped per call.
+     */
+    static void mask(ByteBuffer words, int offset, int length, byte[] mask, int maskOffset) {
+        final byte m0 = mask[maskOffset & 3];
+        final byte m1 = mask[(maskOffset + 1) & 3];
+        final byte m2 = mask[(maskOffset + 2) & 3];
+        final byte m3 = mask[(maskOffset + 3) & 3];
+        final long word = (m0 & 0xFFL) << 56 | (m1 & 0xFFL) << 48 | (m2 & 0xFFL) << 40 | (m3 & 0xFFL) << 32
+                | (m0 & 0xFFL) << 24 | (m1 & 0xFFL) << 16 | (m2 & 0xFFL) << 8 | (m3 & 0xFFL);
+        final int wordEnd = offset + (length & ~7);
+        for (int i = offset; i < wordEnd; i += 8) {
+            words.putLong(i, words.getLong(i) ^ word);
+        }
+        // wordEnd - offset is a multiple of 4, so the mask starts over at m0.
+        mask(words.array(), wordEnd, offset + length - wordEnd, mask, maskOffset);
+    }
 }
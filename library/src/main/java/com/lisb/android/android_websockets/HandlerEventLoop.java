@@ -0,0 +1,44 @@
+package com.lisb.android.android_websockets;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/**
+ * {@link EventLoop} on a HandlerThread of its own.
+ */
+class HandlerEventLoop implements EventLoop {
+
+	private final HandlerThread mHandlerThread;
+	private final Handler mHandler;
+
+	HandlerEventLoop(String name) {
+		mHandlerThread = new HandlerThread(name);
+		mHandlerThread.start();
+		mHandler = new Handler(mHandlerThread.getLooper());
+	}
+
+	@Override
+	public void post(Runnable task) {
+		mHandler.post(task);
+	}
+
+	@Override
+	public void postDelayed(Runnable task, long delayMillis) {
+		mHandler.postDelayed(task, delayMillis);
+	}
+
+	@Override
+	public void removeCallbacks(Runnable task) {
+		mHandler.removeCallbacks(task);
+	}
+
+	@Override
+	public boolean isAlive() {
+		return mHandlerThread.isAlive();
+	}
+
+	@Override
+	public void quit() {
+		mHandlerThread.quit();
+	}
+}
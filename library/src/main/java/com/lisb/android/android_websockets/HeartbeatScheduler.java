@@ -0,0 +1,166 @@
+package com.lisb.android.android_websockets;
+
+import java.util.ArrayList;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Process-wide timer for the heartbeats and timeout checks of all clients, on
+ * one thread.
+ *
+ * Beats are due at multiples of their interval, so clients with the same
+ * interval are due together, and a beat may run up to an eighth of its
+ * interval late to join a wakeup already planned. With several connections
+ * open the device then wakes up once for all of their pings instead of once
+ * for each.
+ */
+class HeartbeatScheduler {
+
+	static final HeartbeatScheduler INSTANCE = new HeartbeatScheduler();
+
+	private static final String TAG = "HeartbeatScheduler";
+	private static final String THREAD_NAME = "websocket-heartbeat-thread";
+	private static final int SLACK_DIVISOR = 8;
+
+	/**
+	 * Something to run periodically. Scheduled at most once at a time.
+	 */
+	abstract static class Beat {
+		// guarded by the scheduler.
+		private long mInterval;
+		private Wakeup mWakeup;
+
+		/**
+		 * Called on websocket-heartbeat-thread.
+		 *
+		 * @return false to stop beating.
+		 */
+		abstract boolean run();
+	}
+
+	/** Must lock this. Sorted by time. */
+	private final ArrayList<Wakeup> mWakeups = new ArrayList<Wakeup>();
+	private Thread mThread;
+
+	/**
+	 * Runs {@code beat} every {@code intervalMillis} from the next multiple of
+	 * it on, instead of as scheduled so far.
+	 */
+	synchronized void schedule(Beat beat, long intervalMillis) {
+		if (intervalMillis <= 0) {
+			throw new IllegalArgumentException("interval must be positive.");
+		}
+		remove(beat);
+		beat.mInterval = intervalMillis;
+		add(beat, SystemClock.uptimeMillis());
+		if (mThread == null) {
+			mThread = new Thread(THREAD_NAME) {
+				@Override
+				public void run() {
+					loop();
+				}
+			};
+			mThread.setDaemon(true);
+			mThread.start();
+		}
+		notifyAll();
+	}
+
+	synchronized void cancel(Beat beat) {
+		remove(beat);
+		beat.mInterval = 0;
+	}
+
+	private void add(Beat beat, long now) {
+		final long interval = beat.mInterval;
+		final long due = (now / interval + 1) * interval;
+		final long latest = due + interval / SLACK_DIVISOR;
+
+		int i = 0;
+		while (i < mWakeups.size() && mWakeups.get(i).mTime < due) {
+			i++;
+		}
+		Wakeup wakeup = i < mWakeups.size() ? mWakeups.get(i) : null;
+		if (wakeup == null || wakeup.mTime > latest) {
+			wakeup = new Wakeup(due);
+			mWakeups.add(i, wakeup);
+		}
+		wakeup.mBeats.add(beat);
+		beat.mWakeup = wakeup;
+	}
+
+	private void remove(Beat beat) {
+		final Wakeup wakeup = beat.mWakeup;
+		if (wakeup != null) {
+			wakeup.mBeats.remove(beat);
+			if (wakeup.mBeats.isEmpty()) {
+				mWakeups.remove(wakeup);
+			}
+			beat.mWakeup = null;
+		}
+	}
+
+	private void loop() {
+		while (true) {
+			final Wakeup wakeup;
+			synchronized (this) {
+				while (true) {
+					if (mWakeups.isEmpty()) {
+						await(0);
+						continue;
+					}
+					final long delay = mWakeups.get(0).mTime - SystemClock.uptimeMillis();
+					if (delay > 0) {
+						await(delay);
+						continue;
+					}
+					wakeup = mWakeups.remove(0);
+					for (int i = 0; i < wakeup.mBeats.size(); i++) {
+						wakeup.mBeats.get(i).mWakeup = null;
+					}
+					break;
+				}
+			}
+
+			for (int i = 0; i < wakeup.mBeats.size(); i++) {
+				final Beat beat = wakeup.mBeats.get(i);
+				boolean again;
+				try {
+					again = beat.run();
+				} catch (RuntimeException e) {
+					// the others go on beating.
+					Log.e(TAG, "Heartbeat failed.", e);
+					again = false;
+				}
+				synchronized (this) {
+					// unless cancelled or rescheduled meanwhile.
+					if (beat.mWakeup == null && beat.mInterval > 0) {
+						if (again) {
+							add(beat, SystemClock.uptimeMillis());
+						} else {
+							beat.mInterval = 0;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private void await(long millis) {
+		try {
+			wait(millis);
+		} catch (InterruptedException e) {
+			// the thread serves the whole process: carry on.
+		}
+	}
+
+	private static class Wakeup {
+		final long mTime;
+		final ArrayList<Beat> mBeats = new ArrayList<Beat>(4);
+
+		Wakeup(long time) {
+			mTime = time;
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package com.lisb.android.android_websockets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * In-memory {@link WebSocketClient.Transport}: the client talks through a
+ * pair of pipes to a server running in the same process, so that the framing
+ * and threading can be benchmarked and load-tested without a network.
+ * See {@link WebSocketClient.Options#setTransportFactory(WebSocketClient.TransportFactory)}.
+ *
+ * TLS is not supported; an SSLContext is ignored.
+ */
+public class LoopbackTransport implements WebSocketClient.Transport {
+
+	private static final int DEFAULT_PIPE_SIZE = 64 * 1024;
+
+	/**
+	 * The server side of the loopback.
+	 */
+	public interface Acceptor {
+		/**
+		 * Called on the client's connecting thread, so must serve the
+		 * connection on a thread of its own. Closing {@code out} is seen by
+		 * the client as the end of the stream.
+		 */
+		public void accept(String host, int port, InputStream in, OutputStream out) throws IOException;
+	}
+
+	/**
+	 * Creates a transport per client, connected to {@code acceptor}.
+	 */
+	public static class Factory implements WebSocketClient.TransportFactory {
+		private final Acceptor mAcceptor;
+		private final int mPipeSize;
+
+		public Factory(Acceptor acceptor) {
+			this(acceptor, DEFAULT_PIPE_SIZE);
+		}
+
+		/**
+		 * @param pipeSize bytes buffered in each direction before the writer blocks.
+		 */
+		public Factory(Acceptor acceptor, int pipeSize) {
+			if (pipeSize <= 0) {
+				throw new IllegalArgumentException("pipeSize must be positive.");
+			}
+			mAcceptor = acceptor;
+			mPipeSize = pipeSize;
+		}
+
+		@Override
+		public WebSocketClient.Transport createTransport() {
+			return new LoopbackTransport(mAcceptor, mPipeSize);
+		}
+	}
+
+	private final Acceptor mAcceptor;
+	private final Pipe mUpstream;    // client to server.
+	private final Pipe mDownstream;  // server to client.
+	private volatile boolean mClosed;
+
+	LoopbackTransport(Acceptor acceptor, int pipeSize) {
+		mAcceptor = acceptor;
+		mUpstream = new Pipe(pipeSize);
+		mDownstream = new Pipe(pipeSize);
+	}
+
+	@Override
+	public void connect(String host, int port, SSLContext sslContext) throws IOException {
+		mAcceptor.accept(host, port, mUpstream.mInput, mDownstream.mOutput);
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return mDownstream.mInput;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return mUpstream.mOutput;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return mClosed;
+	}
+
+	@Override
+	public void close() {
+		mClosed = true;
+		mDownstream.closeRead();
+		mUpstream.closeWrite();
+	}
+
+	/**
+	 * Bounded byte ring buffer between a writing and a reading thread.
+	 */
+	private static class Pipe {
+		private final byte[] mBuffer;
+		/** Must lock this. */
+		private int mReadPosition;
+		private int mCount;
+		private boolean mReadClosed;
+		private boolean mWriteClosed;
+
+		final InputStream mInput = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				final byte[] b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return Pipe.this.read(b, off, len);
+			}
+
+			@Override
+			public int available() {
+				synchronized (Pipe.this) {
+					return mCount;
+				}
+			}
+
+			@Override
+			public void close() {
+				closeRead();
+			}
+		};
+
+		final OutputStream mOutput = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				Pipe.this.write(b, off, len);
+			}
+
+			@Override
+			public void close() {
+				closeWrite();
+			}
+		};
+
+		Pipe(int size) {
+			mBuffer = new byte[size];
+		}
+
+		synchronized int read(byte[] b, int off, int len) throws IOException {
+			if ((off | len) < 0 || off + len > b.length) {
+				throw new IndexOutOfBoundsException();
+			}
+			if (len == 0) {
+				return 0;
+			}
+			while (mCount == 0) {
+				if (mReadClosed) {
+					throw new IOException("Pipe closed.");
+				}
+				if (mWriteClosed) {
+					return -1;
+				}
+				await();
+			}
+			if (mReadClosed) {
+				throw new IOException("Pipe closed.");
+			}
+			final int count = Math.min(len, Math.min(mCount, mBuffer.length - mReadPosition));
+			System.arraycopy(mBuffer, mReadPosition, b, off, count);
+			mReadPosition = (mReadPosition + count) % mBuffer.length;
+			mCount -= count;
+			notifyAll();
+			return count;
+		}
+
+		synchronized void write(byte[] b, int off, int len) throws IOException {
+			if ((off | len) < 0 || off + len > b.length) {
+				throw new IndexOutOfBoundsException();
+			}
+			while (len > 0) {
+				if (mReadClosed || mWriteClosed) {
+					throw new IOException("Pipe closed.");
+				}
+				if (mCount == mBuffer.length) {
+					await();
+					continue;
+				}
+				final int writePosition = (mReadPosition + mCount) % mBuffer.length;
+				final int count = Math.min(len,
+						Math.min(mBuffer.length - mCount, mBuffer.length - writePosition));
+				System.arraycopy(b, off, mBuffer, writePosition, count);
+				mCount += count;
+				off += count;
+				len -= count;
+				notifyAll();
+			}
+		}
+
+		synchronized void closeRead() {
+			mReadClosed = true;
+			notifyAll();
+		}
+
+		synchronized void closeWrite() {
+			mWriteClosed = true;
+			notifyAll();
+		}
+
+		private void await() throws InterruptedIOException {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+	}
+}
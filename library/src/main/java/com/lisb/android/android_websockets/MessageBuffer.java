@@ -0,0 +1,59 @@
+package com.lisb.android.android_websockets;
+
+/**
+ * Binary message lent to a {@link WebSocketClient.BufferListener}. The bytes
+ * are {@code array()[offset() .. offset() + length()]}; the rest of the array
+ * is garbage.
+ *
+ * The buffer belongs to the client's pool. Call {@link #release()} exactly once
+ * when done with it, from any thread. Don't touch the array after that.
+ */
+public final class MessageBuffer {
+
+	private BufferPool mPool;
+	private byte[] mArray;
+	private int mOffset;
+	private int mLength;
+
+	MessageBuffer() {
+	}
+
+	void set(BufferPool pool, byte[] array, int offset, int length) {
+		mPool = pool;
+		mArray = array;
+		mOffset = offset;
+		mLength = length;
+	}
+
+	public byte[] array() {
+		return mArray;
+	}
+
+	public int offset() {
+		return mOffset;
+	}
+
+	public int length() {
+		return mLength;
+	}
+
+	/**
+	 * @return a copy of the message in an array of its own.
+	 */
+	public byte[] toByteArray() {
+		final byte[] copy = new byte[mLength];
+		System.arraycopy(mArray, mOffset, copy, 0, mLength);
+		return copy;
+	}
+
+	public void release() {
+		final BufferPool pool = mPool;
+		if (pool == null) {
+			throw new IllegalStateException("MessageBuffer is released already.");
+		}
+		final byte[] array = mArray;
+		mPool = null;
+		mArray = null;
+		pool.recycle(this, array);
+	}
+}
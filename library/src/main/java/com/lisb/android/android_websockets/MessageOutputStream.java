@@ -0,0 +1,106 @@
+package com.lisb.android.android_websockets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Sends a single message as a series of fragments: the first frame carries the
+ * message's opcode, the following ones are continuation frames, and
+ * {@link #close()} sends the final one. Each fragment is a buffer from the
+ * client's pool, returned once the frame is written.
+ *
+ * Not thread-safe.
+ */
+class MessageOutputStream extends OutputStream {
+
+	static final int FRAGMENT_SIZE = FrameWriter.DEFAULT_SIZE;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private final WebSocketClient mClient;
+	private final BufferPool mPool;
+	private int mOpcode;
+	private byte[] mBuffer;
+	private int mPosition;
+	private boolean mClosed;
+
+	MessageOutputStream(WebSocketClient client, int opcode) {
+		mClient = client;
+		mPool = client.getBufferPool();
+		mOpcode = opcode;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureBuffer();
+		mBuffer[mPosition++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if ((off | len) < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		while (len > 0) {
+			ensureBuffer();
+			final int count = Math.min(len, FRAGMENT_SIZE - mPosition);
+			System.arraycopy(b, off, mBuffer, mPosition, count);
+			mPosition += count;
+			off += count;
+			len -= count;
+		}
+	}
+
+	/**
+	 * Sends what is buffered as a fragment.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (mClosed) {
+			throw new IOException("Message is already sent.");
+		}
+		if (mPosition > 0) {
+			sendFragment(false);
+		}
+	}
+
+	/**
+	 * Sends the final fragment. The message is complete.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (mClosed) {
+			return;
+		}
+		mClosed = true;
+		sendFragment(true);
+	}
+
+	private void ensureBuffer() throws IOException {
+		if (mClosed) {
+			throw new IOException("Message is already sent.");
+		}
+		if (mBuffer == null) {
+			mBuffer = mPool.acquire(FRAGMENT_SIZE);
+		} else if (mPosition == FRAGMENT_SIZE) {
+			sendFragment(false);
+			mBuffer = mPool.acquire(FRAGMENT_SIZE);
+		}
+	}
+
+	private void sendFragment(boolean fin) throws IOException {
+		final boolean sent;
+		if (mBuffer != null) {
+			sent = mClient.sendFragment(this, mOpcode, mBuffer, mPosition, true, fin);
+		} else {
+			sent = mClient.sendFragment(this, mOpcode, EMPTY, 0, false, fin);
+		}
+		mOpcode = Frames.OP_CONTINUATION;
+		mBuffer = null;
+		mPosition = 0;
+		if (!sent) {
+			mClosed = true;
+			throw new IOException("Connection was lost while sending the message.");
+		}
+	}
+}
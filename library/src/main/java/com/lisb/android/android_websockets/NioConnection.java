@@ -0,0 +1,478 @@
+package com.lisb.android.android_websockets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+
+import org.apache.http.HttpException;
+
+import android.util.Log;
+
+/**
+ * A client's non-blocking connection on a {@link WebSocketEngine}: connects,
+ * runs TLS through an SSLEngine if needed, reads the handshake response and
+ * passes the following bytes to {@link FrameHandler}. Written frames are
+ * buffered until the channel takes them; past {@link #MAX_PENDING_OUT} the
+ * client keeps the next ones in its queue, see {@link #isCongested()}.
+ *
+ * Access on the engine's thread only, except {@link #isClosed()}.
+ */
+class NioConnection {
+
+	private static final String TAG = NioConnection.class.getSimpleName();
+
+	private static final byte[] END_OF_HEADERS = { '\r', '\n', '\r', '\n' };
+	private static final int MAX_RESPONSE_LENGTH = 64 * 1024;
+	// outbound buffers grown beyond this are dropped once empty.
+	private static final int MAX_RETAINED_OUT = 64 * 1024;
+	// bytes waiting for the channel before the client stops writing frames.
+	private static final int MAX_PENDING_OUT = 64 * 1024;
+
+	private final WebSocketClient mClient;
+	private final Selector mSelector;
+	private final SSLEngine mSslEngine;  // null unless TLS.
+	private final FrameHandler mFrameHandler;
+	private final OutputStream mOutputStream = new ChannelOutputStream();
+
+	private SocketChannel mChannel;
+	private SelectionKey mKey;
+	private boolean mConnected;
+	private boolean mFailed;
+	private boolean mCongested;  // the client waits for onConnectionWritable().
+	private boolean mHandshaking;  // TLS, to time it.
+	private long mHandshakeStart;
+	private long mHandshakeStartNanos;
+	private volatile boolean mClosed;
+
+	// read from the channel, decrypted into mAppIn when TLS.
+	private ByteBuffer mNetIn;
+	private ByteBuffer mAppIn;
+	// waiting for the channel, encrypted from mAppOut when TLS.
+	private ByteBuffer mNetOut;
+	private ByteBuffer mAppOut;
+
+	// HTTP response, until its end is read.
+	private ByteArrayOutputStream mResponse = new ByteArrayOutputStream();
+	private int mResponseMatch;
+
+	NioConnection(WebSocketClient client, Selector selector, String host, int port,
+			SSLContext sslContext, String handshake) {
+		mClient = client;
+		mSelector = selector;
+		mFrameHandler = new FrameHandler(client);
+		if (sslContext != null) {
+			mSslEngine = sslContext.createSSLEngine(host, port);
+			mSslEngine.setUseClientMode(true);
+			TlsSessions.enableSessionTickets(mSslEngine);
+			mNetIn  = ByteBuffer.allocate(mSslEngine.getSession().getPacketBufferSize());
+			mAppIn  = ByteBuffer.allocate(mSslEngine.getSession().getApplicationBufferSize());
+			mNetOut = ByteBuffer.allocate(mSslEngine.getSession().getPacketBufferSize());
+			mAppOut = ByteBuffer.allocate(FrameWriter.DEFAULT_SIZE);
+		} else {
+			mSslEngine = null;
+			mNetIn  = ByteBuffer.allocate(ReceiveBuffer.DEFAULT_SIZE);
+			mNetOut = ByteBuffer.allocate(FrameWriter.DEFAULT_SIZE);
+		}
+
+		try {
+			// sent once connected.
+			final byte[] request = handshake.getBytes("UTF-8");
+			mOutputStream.write(request, 0, request.length);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	OutputStream getOutputStream() {
+		return mOutputStream;
+	}
+
+	boolean isClosed() {
+		return mClosed;
+	}
+
+	/**
+	 * @return true if too much waits for the channel already: the client is
+	 * told by {@link WebSocketClient#onConnectionWritable()} when to write
+	 * again. A frame may still be written, for one that has started.
+	 */
+	boolean isCongested() {
+		if (getPendingOut() < MAX_PENDING_OUT) {
+			return false;
+		}
+		mCongested = true;
+		return true;
+	}
+
+	private int getPendingOut() {
+		return mNetOut.position() + (mAppOut != null ? mAppOut.position() : 0);
+	}
+
+	void connect(InetSocketAddress address) {
+		if (mClosed) {
+			return;
+		}
+		try {
+			mChannel = SocketChannel.open();
+			mChannel.configureBlocking(false);
+			mChannel.socket().setTcpNoDelay(true);
+			final boolean connected = mChannel.connect(address);
+			mKey = mChannel.register(mSelector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+			if (connected) {
+				onConnected();
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Called by the engine when the channel is ready.
+	 */
+	void onReady(SelectionKey key) {
+		try {
+			if (key.isConnectable() && mChannel.finishConnect()) {
+				onConnected();
+			}
+			if (key.isValid() && key.isReadable()) {
+				read();
+			}
+			if (key.isValid() && key.isWritable()) {
+				flushOut();
+			}
+		} catch (CancelledKeyException e) {
+			// closed meanwhile.
+		} catch (IOException e) {
+			fail(e);
+		} catch (HttpException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Stops reading and reports the error like {@link WebSocketReadThread} does.
+	 */
+	void fail(Exception e) {
+		if (mFailed || mClosed) {
+			return;
+		}
+		mFailed = true;
+		updateInterest(false);
+		try {
+			WebSocketReadThread.onReadFailed(mClient, e);
+		} finally {
+			// destroyed even if a listener threw.
+			mClient.onReadFinished();
+		}
+	}
+
+	/**
+	 * Closes the channel. Closed by the client before reading stopped, e.g.
+	 * timed out, the connection is reported lost as it is by
+	 * {@link WebSocketReadThread} when its socket is closed under it.
+	 */
+	void close() {
+		if (mClosed) {
+			return;
+		}
+		final boolean lost = !mFailed;
+		mFailed = true;
+		mClosed = true;
+		if (mKey != null) {
+			mKey.cancel();
+		}
+		if (mChannel != null) {
+			try {
+				Log.d(TAG, "Close channel.");
+				mChannel.close();
+			} catch (IOException e) {
+				Log.e(TAG, "Error while disconnecting", e);
+			}
+		}
+		if (lost) {
+			WebSocketReadThread.onReadFailed(mClient, new SocketException("Socket closed"));
+		}
+	}
+
+	private void onConnected() throws IOException {
+		mConnected = true;
+		if (mSslEngine != null) {
+			mHandshaking = true;
+			mHandshakeStart = System.currentTimeMillis();
+			mHandshakeStartNanos = System.nanoTime();
+			mSslEngine.beginHandshake();
+		}
+		updateInterest(false);
+		flushOut();
+	}
+
+	private void read() throws IOException, HttpException {
+		final int count = mChannel.read(mNetIn);
+		if (count < 0) {
+			throw new EOFException();
+		}
+		if (count == 0) {
+			return;
+		}
+
+		if (mSslEngine == null) {
+			onData(mNetIn.array(), 0, mNetIn.position());
+			mNetIn.clear();
+		} else {
+			unwrap();
+		}
+	}
+
+	private void unwrap() throws IOException, HttpException {
+		mNetIn.flip();
+		try {
+			while (true) {
+				final SSLEngineResult result = mSslEngine.unwrap(mNetIn, mAppIn);
+				if (mAppIn.position() > 0) {
+					onData(mAppIn.array(), 0, mAppIn.position());
+					mAppIn.clear();
+				}
+
+				final Status status = result.getStatus();
+				if (status == Status.CLOSED) {
+					throw new EOFException();
+				} else if (status == Status.BUFFER_OVERFLOW) {
+					mAppIn = ByteBuffer.allocate(Math.max(mAppIn.capacity() * 2,
+							mSslEngine.getSession().getApplicationBufferSize()));
+					continue;
+				}
+
+				HandshakeStatus handshakeStatus = result.getHandshakeStatus();
+				if (handshakeStatus == HandshakeStatus.NEED_TASK) {
+					runDelegatedTasks();
+					handshakeStatus = mSslEngine.getHandshakeStatus();
+				}
+				checkHandshakeFinished(handshakeStatus);
+				if (handshakeStatus == HandshakeStatus.NEED_WRAP
+						|| handshakeStatus == HandshakeStatus.FINISHED) {
+					// answers the handshake, or sends what waited for it.
+					flushOut();
+				}
+
+				if (status == Status.BUFFER_UNDERFLOW) {
+					if (mNetIn.remaining() == mNetIn.capacity()) {
+						// a record larger than the buffer.
+						final ByteBuffer netIn = ByteBuffer.allocate(Math.max(mNetIn.capacity() * 2,
+								mSslEngine.getSession().getPacketBufferSize()));
+						netIn.put(mNetIn);
+						netIn.flip();
+						mNetIn = netIn;
+					}
+					break;
+				}
+				if (!mNetIn.hasRemaining()
+						|| (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+								&& mSslEngine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP)) {
+					break;
+				}
+			}
+		} finally {
+			mNetIn.compact();
+		}
+	}
+
+	private void onData(byte[] data, int offset, int length) throws IOException, HttpException {
+		if (mFailed) {
+			return;
+		}
+
+		if (mResponse != null) {
+			final int end = offset + length;
+			int position = offset;
+			while (position < end && mResponseMatch < END_OF_HEADERS.length) {
+				final byte b = data[position++];
+				if (b == END_OF_HEADERS[mResponseMatch]) {
+					mResponseMatch++;
+				} else {
+					mResponseMatch = (b == '\r') ? 1 : 0;
+				}
+			}
+			mResponse.write(data, offset, position - offset);
+			if (mResponseMatch < END_OF_HEADERS.length) {
+				if (mResponse.size() > MAX_RESPONSE_LENGTH) {
+					throw new HttpException("Response headers too large.");
+				}
+				return;
+			}
+
+			final ReceiveBuffer buffer = new ReceiveBuffer(
+					new ByteArrayInputStream(mResponse.toByteArray()));
+			mResponse = null;
+			WebSocketReadThread.readHandshake(mClient, buffer);
+			length = end - position;
+			offset = position;
+		}
+
+		if (length > 0) {
+			mFrameHandler.decode(data, offset, length);
+		}
+	}
+
+	/**
+	 * Writes out as much of the buffered data as the channel takes now, and
+	 * waits for it to be writable for the rest.
+	 */
+	private void flushOut() throws IOException {
+		if (!mConnected || mClosed) {
+			return;
+		}
+		boolean pending;
+		boolean more;
+		do {
+			// encrypts at most MAX_PENDING_OUT at a time.
+			more = mSslEngine != null && wrap();
+			mNetOut.flip();
+			while (mNetOut.hasRemaining() && mChannel.write(mNetOut) > 0) {
+			}
+			pending = mNetOut.hasRemaining();
+			mNetOut.compact();
+		} while (more && !pending);
+		if (!pending && mNetOut.capacity() > MAX_RETAINED_OUT) {
+			mNetOut = ByteBuffer.allocate(mSslEngine != null
+					? mSslEngine.getSession().getPacketBufferSize() : FrameWriter.DEFAULT_SIZE);
+		}
+		updateInterest(pending || more);
+		if (mCongested && getPendingOut() < MAX_PENDING_OUT) {
+			mCongested = false;
+			mClient.onConnectionWritable();
+		}
+	}
+
+	// @return true if stopped with data left in mAppOut, for mNetOut is full.
+	private boolean wrap() throws IOException {
+		mAppOut.flip();
+		try {
+			while (true) {
+				HandshakeStatus handshakeStatus = mSslEngine.getHandshakeStatus();
+				if (handshakeStatus == HandshakeStatus.NEED_TASK) {
+					runDelegatedTasks();
+					continue;
+				}
+				if (handshakeStatus == HandshakeStatus.NEED_UNWRAP) {
+					// waiting for the server.
+					break;
+				}
+				if (handshakeStatus == HandshakeStatus.NOT_HANDSHAKING && !mAppOut.hasRemaining()) {
+					break;
+				}
+				if (mNetOut.position() >= MAX_PENDING_OUT) {
+					return mAppOut.hasRemaining();
+				}
+
+				mNetOut = ensureRemaining(mNetOut, mSslEngine.getSession().getPacketBufferSize());
+				final SSLEngineResult result = mSslEngine.wrap(mAppOut, mNetOut);
+				if (result.getStatus() == Status.CLOSED) {
+					throw new EOFException();
+				}
+				checkHandshakeFinished(result.getHandshakeStatus());
+				if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+					mNetOut = ensureRemaining(mNetOut, mNetOut.capacity());
+					continue;
+				}
+				if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+						&& result.getHandshakeStatus() != HandshakeStatus.NEED_TASK) {
+					break;
+				}
+			}
+		} finally {
+			mAppOut.compact();
+		}
+		return false;
+	}
+
+	// FINISHED is only reported by the wrap or unwrap that finished it.
+	private void checkHandshakeFinished(HandshakeStatus handshakeStatus) {
+		if (!mHandshaking || (handshakeStatus != HandshakeStatus.FINISHED
+				&& handshakeStatus != HandshakeStatus.NOT_HANDSHAKING)) {
+			return;
+		}
+		mHandshaking = false;
+		final long time = System.nanoTime() - mHandshakeStartNanos;
+		mClient.onTlsHandshake(time, TlsSessions.isResumed(mSslEngine.getSession(), mHandshakeStart));
+	}
+
+	private void runDelegatedTasks() {
+		Runnable task;
+		while ((task = mSslEngine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	private void updateInterest(boolean pendingWrite) {
+		if (mKey == null || !mKey.isValid() || !mConnected) {
+			return;
+		}
+		final int ops = (mFailed ? 0 : SelectionKey.OP_READ)
+				| (pendingWrite ? SelectionKey.OP_WRITE : 0);
+		if (mKey.interestOps() != ops) {
+			mKey.interestOps(ops);
+		}
+	}
+
+	// @return buffer, or a larger copy of it with at least count bytes remaining.
+	private static ByteBuffer ensureRemaining(ByteBuffer buffer, int count) {
+		if (buffer.remaining() >= count) {
+			return buffer;
+		}
+		final ByteBuffer grown = ByteBuffer.allocate(
+				Math.max(buffer.capacity() * 2, buffer.position() + count));
+		buffer.flip();
+		grown.put(buffer);
+		return grown;
+	}
+
+	/**
+	 * Gathers written bytes for the channel. flush() hands them over, and so
+	 * does a write that doesn't fit, before the buffer grows.
+	 */
+	private class ChannelOutputStream extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			reserve(1).put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			reserve(len).put(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			flushOut();
+		}
+
+		// @return the buffer to put count bytes in.
+		private ByteBuffer reserve(int count) throws IOException {
+			if ((mSslEngine != null ? mAppOut : mNetOut).remaining() < count) {
+				flushOut();
+			}
+			if (mSslEngine != null) {
+				return mAppOut = ensureRemaining(mAppOut, count);
+			}
+			return mNetOut = ensureRemaining(mNetOut, count);
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package com.lisb.android.android_websockets;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * permessage-deflate extension (RFC 7692).
+ *
+ * Deflater only supports a full flush before API 19, so every outgoing message
+ * is compressed on its own and ends with a final block (RFC 7692 7.2.3.3). For
+ * that reason client_no_context_takeover is always offered. Incoming messages
+ * may use the server's context takeover.
+ */
+class PerMessageDeflate {
+
+	static final String EXTENSION_NAME = "permessage-deflate";
+
+	private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+	private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+	private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+	private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+
+	// appended to a message before inflating it. (RFC 7692 7.2.2)
+	private static final byte[] TAIL = { 0x00, 0x00, (byte) 0xFF, (byte) 0xFF };
+
+	private final int mThreshold;
+	private final boolean mServerNoContextTakeover;
+
+	/** access on websocket-read-thread. */
+	private final Inflater mInflater = new Inflater(true);
+	private int mDecompressedLength;
+	/** Must lock mDeflater. */
+	private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	private byte[] mDeflateBuffer = new byte[BufferPool.MIN_SIZE];
+	private final Utf8Codec mUtf8 = new Utf8Codec();
+	private byte[] mTextBuffer = new byte[BufferPool.MIN_SIZE];
+
+	private PerMessageDeflate(int threshold, boolean serverNoContextTakeover) {
+		mThreshold = threshold;
+		mServerNoContextTakeover = serverNoContextTakeover;
+	}
+
+	/**
+	 * @return value of Sec-WebSocket-Extensions offered in the handshake.
+	 */
+	static String createOffer(boolean serverNoContextTakeover, int serverMaxWindowBits) {
+		final StringBuilder offer = new StringBuilder(EXTENSION_NAME);
+		offer.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+		if (serverNoContextTakeover) {
+			offer.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+		}
+		if (serverMaxWindowBits > 0) {
+			offer.append("; ").append(SERVER_MAX_WINDOW_BITS).append('=').append(serverMaxWindowBits);
+		}
+		return offer.toString();
+	}
+
+	/**
+	 * @param response value of Sec-WebSocket-Extensions in the server's response.
+	 * @return null if the server declined the extension.
+	 * @throws FrameHandler.ProtocolError if the server answered something that
+	 *             wasn't offered.
+	 */
+	static PerMessageDeflate accept(String response, int threshold) throws FrameHandler.ProtocolError {
+		PerMessageDeflate accepted = null;
+		for (String extension : response.split(",")) {
+			final String[] params = extension.split(";");
+			if (!EXTENSION_NAME.equals(params[0].trim())) {
+				throw new FrameHandler.ProtocolError("Unexpected extension: " + extension.trim());
+			}
+			if (accepted != null) {
+				throw new FrameHandler.ProtocolError("Duplicated extension: " + extension.trim());
+			}
+			boolean serverNoContextTakeover = false;
+			for (int i = 1; i < params.length; i++) {
+				final String param = params[i].trim();
+				final int equal = param.indexOf('=');
+				final String name = (equal < 0 ? param : param.substring(0, equal)).trim();
+				if (name.equals(SERVER_NO_CONTEXT_TAKEOVER)) {
+					serverNoContextTakeover = true;
+				} else if (name.equals(SERVER_MAX_WINDOW_BITS) || name.equals(CLIENT_NO_CONTEXT_TAKEOVER)) {
+					// the inflater handles any window size, and no context takeover is always used.
+				} else {
+					// including client_max_window_bits, which isn't offered.
+					throw new FrameHandler.ProtocolError("Unexpected extension parameter: " + param);
+				}
+			}
+			accepted = new PerMessageDeflate(threshold, serverNoContextTakeover);
+		}
+		return accepted;
+	}
+
+	/**
+	 * May be called from any thread.
+	 *
+	 * @param length of the text in UTF-8.
+	 * @return the compressed message, or null if it's not worth compressing.
+	 */
+	byte[] compress(CharSequence text, int length) {
+		if (length < mThreshold) {
+			return null;
+		}
+		synchronized (mDeflater) {
+			byte[] buffer = mTextBuffer;
+			if (buffer.length < length) {
+				buffer = new byte[length];
+				if (length <= FrameWriter.DEFAULT_SIZE) {
+					mTextBuffer = buffer;
+				}
+			}
+			mUtf8.startEncoding(text);
+			mUtf8.encode(buffer, 0, length);
+			return compress(buffer, 0, length);
+		}
+	}
+
+	/**
+	 * May be called from any thread.
+	 *
+	 * @return the compressed message, or null if it's not worth compressing.
+	 */
+	byte[] compress(byte[] data, int offset, int length) {
+		if (length < mThreshold) {
+			return null;
+		}
+		synchronized (mDeflater) {
+			mDeflater.setInput(data, offset, length);
+			mDeflater.finish();
+			byte[] buffer = mDeflateBuffer;
+			int position = 0;
+			while (!mDeflater.finished()) {
+				if (position == buffer.length) {
+					final byte[] grown = new byte[buffer.length * 2];
+					System.arraycopy(buffer, 0, grown, 0, position);
+					buffer = grown;
+				}
+				position += mDeflater.deflate(buffer, position, buffer.length - position);
+			}
+			mDeflater.reset();
+			if (buffer.length <= FrameWriter.DEFAULT_SIZE) {
+				// keep it for the next message, unless it grew large.
+				mDeflateBuffer = buffer;
+			}
+
+			// an empty stored block follows the final block, minus the tail. (RFC 7692 7.2.3.3)
+			if (position + 1 >= length) {
+				return null;
+			}
+			final byte[] compressed = new byte[position + 1];
+			System.arraycopy(buffer, 0, compressed, 0, position);
+			return compressed;
+		}
+	}
+
+	/**
+	 * websocket-read-thread only.
+	 *
+	 * @param message compressed message, with 4 spare bytes after it.
+	 * @return array from {@code pool} holding the message at
+	 *         [0, {@link #getDecompressedLength()}).
+	 */
+	byte[] decompress(byte[] message, int messageLength, BufferPool pool, int maxLength)
+			throws FrameHandler.ProtocolError {
+		System.arraycopy(TAIL, 0, message, messageLength, TAIL.length);
+		mInflater.setInput(message, 0, messageLength + TAIL.length);
+
+		byte[] output = pool.acquire(Math.max(messageLength * 2, BufferPool.MIN_SIZE));
+		int position = 0;
+		try {
+			while (true) {
+				if (position == output.length) {
+					if (position >= maxLength) {
+						pool.release(output);
+						throw new FrameHandler.ProtocolError("Message too large",
+								CloseCodes.CLOSE_MESSAGE_TOO_BIG);
+					}
+					final byte[] grown = pool.acquire(output.length * 2);
+					System.arraycopy(output, 0, grown, 0, position);
+					pool.release(output);
+					output = grown;
+				}
+				final int count = mInflater.inflate(output, position, output.length - position);
+				position += count;
+				if (count == 0 && (mInflater.needsInput() || mInflater.finished())) {
+					break;
+				}
+			}
+		} catch (DataFormatException e) {
+			pool.release(output);
+			throw new FrameHandler.ProtocolError("Bad compressed data: " + e.getMessage(),
+					CloseCodes.CLOSE_INVALID_DATA);
+		}
+		if (position > maxLength) {
+			pool.release(output);
+			throw new FrameHandler.ProtocolError("Message too large: " + position,
+					CloseCodes.CLOSE_MESSAGE_TOO_BIG);
+		}
+
+		if (mServerNoContextTakeover || mInflater.finished()) {
+			// the server's next message starts a new stream.
+			mInflater.reset();
+		}
+		mDecompressedLength = position;
+		return output;
+	}
+
+	int getDecompressedLength() {
+		return mDecompressedLength;
+	}
+}
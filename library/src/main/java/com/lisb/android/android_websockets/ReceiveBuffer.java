@@ -0,0 +1,85 @@
+package com.lisb.android.android_websockets;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reusable receive buffer sitting between the socket and {@link FrameHandler}.
+ * Bytes are pulled from the socket in bulk so that a single read can carry the
+ * HTTP response and/or any number of frames, instead of one read per byte.
+ */
+class ReceiveBuffer {
+
+	// Large enough to hold a whole TLS record.
+	static final int DEFAULT_SIZE = 16 * 1024;
+
+	private final InputStream mInputStream;
+	private final byte[] mBuffer;
+	private int mPosition;
+	private int mLimit;
+
+	ReceiveBuffer(InputStream inputStream) {
+		this(inputStream, DEFAULT_SIZE);
+	}
+
+	ReceiveBuffer(InputStream inputStream, int size) {
+		mInputStream = inputStream;
+		mBuffer = new byte[size];
+	}
+
+	byte[] array() {
+		return mBuffer;
+	}
+
+	int position() {
+		return mPosition;
+	}
+
+	int remaining() {
+		return mLimit - mPosition;
+	}
+
+	void skip(int count) {
+		mPosition += count;
+	}
+
+	/**
+	 * Reads as many bytes as the socket has ready into the buffer. Must be called
+	 * only after all buffered bytes were consumed.
+	 *
+	 * @return the number of bytes read, or -1 at the end of the stream.
+	 */
+	int fill() throws IOException {
+		int count;
+		do {
+			count = mInputStream.read(mBuffer, 0, mBuffer.length);
+		} while (count == 0);
+		mPosition = 0;
+		mLimit = count > 0 ? count : 0;
+		return count;
+	}
+
+	/**
+	 * Reads one line of the HTTP response. The bytes following the line stay in
+	 * the buffer for the frame decoder.
+	 *
+	 * @return the line without CR/LF, or null at the end of the stream.
+	 */
+	String readLine() throws IOException {
+		StringBuilder string = new StringBuilder();
+		while (true) {
+			if (remaining() == 0 && fill() == -1) {
+				return null;
+			}
+			while (mPosition < mLimit) {
+				final int readChar = mBuffer[mPosition++] & 0xFF;
+				if (readChar == '\n') {
+					return string.toString();
+				}
+				if (readChar != '\r') {
+					string.append((char) readChar);
+				}
+			}
+		}
+	}
+}
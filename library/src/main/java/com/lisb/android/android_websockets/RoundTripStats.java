@@ -0,0 +1,88 @@
+package com.lisb.android.android_websockets;
+
+import java.util.Arrays;
+
+/**
+ * Round-trip times of the heartbeats of a connection, in milliseconds, over
+ * its last {@link #WINDOW} answered pings. A snapshot, got with
+ * {@link WebSocketClient#getRoundTripStats()}; compare them to pick the
+ * fastest of several endpoints.
+ */
+public class RoundTripStats {
+
+	/** Round trips the statistics are computed over. */
+	public static final int WINDOW = 128;
+
+	private final long mCount;
+	private final long mLast;
+	private final long mMin;
+	private final long mAverage;
+	private final long mPercentile99;
+
+	/**
+	 * @param samples ring of the last round trips, the latest at
+	 * {@code (count - 1) % samples.length}.
+	 * @param count round trips recorded so far.
+	 */
+	RoundTripStats(long[] samples, long count) {
+		mCount = count;
+		final int size = (int) Math.min(count, samples.length);
+		if (size == 0) {
+			mLast = mMin = mAverage = mPercentile99 = -1;
+			return;
+		}
+		mLast = samples[(int) ((count - 1) % samples.length)];
+
+		final long[] sorted = new long[size];
+		System.arraycopy(samples, 0, sorted, 0, size);
+		Arrays.sort(sorted);
+		long sum = 0;
+		for (int i = 0; i < size; i++) {
+			sum += sorted[i];
+		}
+		mMin = sorted[0];
+		mAverage = sum / size;
+		mPercentile99 = sorted[(size * 99 + 99) / 100 - 1];
+	}
+
+	/**
+	 * @return heartbeats answered since connected.
+	 */
+	public long getCount() {
+		return mCount;
+	}
+
+	/**
+	 * @return the latest round trip, -1 if none yet.
+	 */
+	public long getLast() {
+		return mLast;
+	}
+
+	/**
+	 * @return -1 if no round trip yet.
+	 */
+	public long getMin() {
+		return mMin;
+	}
+
+	/**
+	 * @return -1 if no round trip yet.
+	 */
+	public long getAverage() {
+		return mAverage;
+	}
+
+	/**
+	 * @return -1 if no round trip yet.
+	 */
+	public long get99thPercentile() {
+		return mPercentile99;
+	}
+
+	@Override
+	public String toString() {
+		return "RoundTripStats{count=" + mCount + ", last=" + mLast + ", min=" + mMin
+				+ ", avg=" + mAverage + ", p99=" + mPercentile99 + "}";
+	}
+}
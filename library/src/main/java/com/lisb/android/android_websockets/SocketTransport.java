@@ -0,0 +1,85 @@
+package com.lisb.android.android_websockets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * The default {@link WebSocketClient.Transport}: a TCP socket, TLS if given an
+ * SSLContext.
+ */
+class SocketTransport implements WebSocketClient.Transport {
+
+	static final WebSocketClient.TransportFactory FACTORY = new WebSocketClient.TransportFactory() {
+		@Override
+		public WebSocketClient.Transport createTransport() {
+			return new SocketTransport();
+		}
+	};
+
+	private volatile Socket mSocket;
+	private long mHandshakeTime = -1;
+	private boolean mSessionResumed;
+
+	@Override
+	public void connect(String host, int port, SSLContext sslContext) throws IOException {
+		final SocketFactory factory = sslContext != null ? sslContext.getSocketFactory()
+				: SocketFactory.getDefault();
+		final Socket socket = factory.createSocket(host, port);
+		socket.setTcpNoDelay(true);
+		mSocket = socket;
+		if (socket instanceof SSLSocket) {
+			handshake((SSLSocket) socket);
+		}
+	}
+
+	// now rather than on the first write, to time it.
+	private void handshake(SSLSocket socket) throws IOException {
+		TlsSessions.enableSessionTickets(socket);
+		final long start = System.currentTimeMillis();
+		final long startNanos = System.nanoTime();
+		socket.startHandshake();
+		mHandshakeTime = System.nanoTime() - startNanos;
+		mSessionResumed = TlsSessions.isResumed(socket.getSession(), start);
+	}
+
+	/**
+	 * @return the TLS handshake took in nanoseconds, -1 unless TLS.
+	 */
+	long getHandshakeTime() {
+		return mHandshakeTime;
+	}
+
+	boolean isSessionResumed() {
+		return mSessionResumed;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return mSocket.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return mSocket.getOutputStream();
+	}
+
+	@Override
+	public boolean isClosed() {
+		final Socket socket = mSocket;
+		return socket == null || socket.isClosed();
+	}
+
+	@Override
+	public void close() throws IOException {
+		final Socket socket = mSocket;
+		if (socket != null) {
+			socket.close();
+		}
+	}
+}
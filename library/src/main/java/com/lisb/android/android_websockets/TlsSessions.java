@@ -0,0 +1,47 @@
+package com.lisb.android.android_websockets;
+
+import java.lang.reflect.Method;
+
+import javax.net.ssl.SSLSession;
+
+import android.util.Log;
+
+/**
+ * TLS session resumption across connections. Sessions are cached by the
+ * shared SSLContext per host and port; this also turns on session tickets
+ * (RFC 5077) where the platform supports them, so that servers needn't keep
+ * the session state either.
+ */
+class TlsSessions {
+
+	private static final String TAG = "TlsSessions";
+
+	private TlsSessions() {
+	}
+
+	/**
+	 * Calls {@code setUseSessionTickets(true)} on an SSLSocket or SSLEngine of
+	 * Android's provider, before its handshake. Does nothing elsewhere.
+	 */
+	static void enableSessionTickets(Object socketOrEngine) {
+		try {
+			final Method method = socketOrEngine.getClass().getMethod("setUseSessionTickets",
+					boolean.class);
+			method.invoke(socketOrEngine, true);
+		} catch (NoSuchMethodException e) {
+			// not Android's provider.
+		} catch (Exception e) {
+			Log.w(TAG, "Can't enable session tickets.", e);
+		}
+	}
+
+	/**
+	 * @param handshakeStart {@link System#currentTimeMillis()} when the
+	 * handshake started.
+	 * @return true if {@code session} was resumed rather than negotiated by
+	 * the handshake.
+	 */
+	static boolean isResumed(SSLSession session, long handshakeStart) {
+		return session.getCreationTime() < handshakeStart;
+	}
+}
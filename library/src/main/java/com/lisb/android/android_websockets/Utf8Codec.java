@@ -0,0 +1,121 @@
+package com.lisb.android.android_websockets;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * UTF-8 encoder and decoder reusing their state and buffers between messages.
+ * Not thread-safe: each thread keeps its own.
+ *
+ * Decoding is strict (RFC 6455 8.1). Encoding replaces unpaired surrogates
+ * with '?', like String.getBytes() does.
+ */
+class Utf8Codec {
+
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// larger decode buffers are dropped after use.
+	private static final int MAX_RETAINED_CHARS = 16 * 1024;
+
+	private final CharsetDecoder mDecoder = UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPORT)
+			.onUnmappableCharacter(CodingErrorAction.REPORT);
+	private final CharsetEncoder mEncoder = UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	private char[] mChars;
+
+	private CharBuffer mInput;
+	private byte[] mOutputArray;
+	private ByteBuffer mOutput;
+
+	/**
+	 * @return number of bytes {@code text} is encoded to.
+	 */
+	static int encodedLength(CharSequence text) {
+		final int count = text.length();
+		int length = count;
+		for (int i = 0; i < count; i++) {
+			final char c = text.charAt(i);
+			if (c < 0x80) {
+				continue;
+			}
+			if (c < 0x800) {
+				length += 1;
+			} else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < count
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				// 4 bytes for the pair.
+				length += 2;
+				i++;
+			}
+			// else an unpaired surrogate, replaced with a single byte.
+		}
+		return length;
+	}
+
+	/**
+	 * @throws CharacterCodingException if the data isn't valid UTF-8.
+	 */
+	String decode(byte[] data, int offset, int length) throws CharacterCodingException {
+		if (length == 0) {
+			return "";
+		}
+		char[] chars = mChars;
+		if (chars == null || chars.length < length) {
+			// never more chars than bytes.
+			chars = new char[length];
+			if (length <= MAX_RETAINED_CHARS) {
+				mChars = chars;
+			}
+		}
+
+		final CharBuffer out = CharBuffer.wrap(chars);
+		mDecoder.reset();
+		CoderResult result = mDecoder.decode(ByteBuffer.wrap(data, offset, length), out, true);
+		if (!result.isUnderflow()) {
+			result.throwException();
+		}
+		result = mDecoder.flush(out);
+		if (!result.isUnderflow()) {
+			result.throwException();
+		}
+		return new String(chars, 0, out.position());
+	}
+
+	/**
+	 * Starts encoding {@code text}, which is then written out piece by piece
+	 * with {@link #encode(byte[], int, int)}.
+	 */
+	void startEncoding(CharSequence text) {
+		mEncoder.reset();
+		mInput = CharBuffer.wrap(text);
+	}
+
+	/**
+	 * Encodes the next piece of the text into {@code dst[offset .. offset + length]}.
+	 *
+	 * @return number of bytes written. 0 if the next character doesn't fit.
+	 */
+	int encode(byte[] dst, int offset, int length) {
+		ByteBuffer out = mOutput;
+		if (mOutputArray != dst) {
+			out = ByteBuffer.wrap(dst);
+			mOutput = out;
+			mOutputArray = dst;
+		}
+		out.clear();
+		out.limit(offset + length);
+		out.position(offset);
+		mEncoder.encode(mInput, out, true);
+		return out.position() - offset;
+	}
+}
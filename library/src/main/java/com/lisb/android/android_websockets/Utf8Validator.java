@@ -0,0 +1,124 @@
+package com.lisb.android.android_websockets;
+
+/**
+ * Incremental UTF-8 validator and decoder. A code point may be split across
+ * calls, so a text message can be checked fragment by fragment as it arrives.
+ *
+ * Based on Bjoern Hoehrmann's DFA-based decoder
+ * (http://bjoern.hoehrmann.de/utf-8/decoder/dfa/).
+ */
+class Utf8Validator {
+
+	private static final int ACCEPT = 0;
+	private static final int REJECT = 12;
+
+	// maps bytes to character classes.
+	private static final byte[] CLASSES = new byte[256];
+	static {
+		fill(0x80, 0x8F, 1);
+		fill(0x90, 0x9F, 9);
+		fill(0xA0, 0xBF, 7);
+		fill(0xC0, 0xC1, 8);
+		fill(0xC2, 0xDF, 2);
+		fill(0xE0, 0xE0, 10);
+		fill(0xE1, 0xEC, 3);
+		fill(0xED, 0xED, 4);
+		fill(0xEE, 0xEF, 3);
+		fill(0xF0, 0xF0, 11);
+		fill(0xF1, 0xF3, 6);
+		fill(0xF4, 0xF4, 5);
+		fill(0xF5, 0xFF, 8);
+	}
+
+	// maps a state and a character class to the next state.
+	private static final byte[] TRANSITIONS = {
+		 0, 12, 24, 36, 60, 96, 84, 12, 12, 12, 48, 72,
+		12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12,
+		12,  0, 12, 12, 12, 12, 12,  0, 12,  0, 12, 12,
+		12, 24, 12, 12, 12, 12, 12, 24, 12, 24, 12, 12,
+		12, 12, 12, 12, 12, 12, 12, 24, 12, 12, 12, 12,
+		12, 24, 12, 12, 12, 12, 12, 12, 12, 24, 12, 12,
+		12, 12, 12, 12, 12, 12, 12, 36, 12, 36, 12, 12,
+		12, 36, 12, 12, 12, 12, 12, 36, 12, 36, 12, 12,
+		12, 36, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12,
+	};
+
+	private int mState = ACCEPT;
+	private int mCodePoint;
+
+	private static void fill(int from, int to, int characterClass) {
+		for (int i = from; i <= to; i++) {
+			CLASSES[i] = (byte) characterClass;
+		}
+	}
+
+	void reset() {
+		mState = ACCEPT;
+		mCodePoint = 0;
+	}
+
+	/**
+	 * @return false as soon as the data can't be valid UTF-8.
+	 */
+	boolean validate(byte[] data, int offset, int length) {
+		int state = mState;
+		final int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			final int b = data[i];
+			if (state == ACCEPT && b >= 0) {
+				continue;
+			}
+			state = TRANSITIONS[state + CLASSES[b & 0xFF]];
+			if (state == REJECT) {
+				mState = REJECT;
+				return false;
+			}
+		}
+		mState = state;
+		return true;
+	}
+
+	/**
+	 * Decodes the data into {@code out}, which must have room for
+	 * {@code length + 1} chars.
+	 *
+	 * @return number of chars decoded, or -1 if the data can't be valid UTF-8.
+	 */
+	int decode(byte[] data, int offset, int length, char[] out, int outOffset) {
+		int state = mState;
+		int codePoint = mCodePoint;
+		int position = outOffset;
+		final int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			final int b = data[i] & 0xFF;
+			if (state == ACCEPT && b < 0x80) {
+				out[position++] = (char) b;
+				continue;
+			}
+			final int characterClass = CLASSES[b];
+			codePoint = (state != ACCEPT) ? (b & 0x3F) | (codePoint << 6) : (0xFF >> characterClass) & b;
+			state = TRANSITIONS[state + characterClass];
+			if (state == ACCEPT) {
+				if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+					out[position++] = (char) codePoint;
+				} else {
+					out[position++] = (char) (0xD7C0 + (codePoint >>> 10));
+					out[position++] = (char) (0xDC00 + (codePoint & 0x3FF));
+				}
+			} else if (state == REJECT) {
+				mState = REJECT;
+				return -1;
+			}
+		}
+		mState = state;
+		mCodePoint = codePoint;
+		return position - outOffset;
+	}
+
+	/**
+	 * @return true unless the data ended in the middle of a code point.
+	 */
+	boolean isComplete() {
+		return mState == ACCEPT;
+	}
+}
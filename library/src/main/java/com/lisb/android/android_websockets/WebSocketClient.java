@@ -1,7 +1,7 @@
 package com.lisb.android.android_websockets;
 
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
@@ -10,42 +10,79 @@ import org.apache.http.NameValuePair;
 import org.apache.http.message.BasicNameValuePair;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.net.Socket;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
-import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 
 import static java.lang.System.currentTimeMillis;
 
 /**
  * WARN: connection is not reusable. If a connection is closed once, don't call
- * connection again.
+ * connection again. To connect again automatically when the connection is
+ * lost, see {@link Options#setReconnectDelay(long, long)}.
  */
 public class WebSocketClient {
     private static final String TAG = "WebSocketClient";
     private static final String THREAD_NAME_WRITE = "websocket-write-thread";
 
+    private static final int CALLBACK_OPEN         = 0;
+    private static final int CALLBACK_TEXT         = 1;
+    private static final int CALLBACK_BINARY       = 2;
+    private static final int CALLBACK_BUFFER       = 3;
+    private static final int CALLBACK_SLICE        = 4;
+    private static final int CALLBACK_BINARY_START = 5;
+    private static final int CALLBACK_BINARY_CHUNK = 6;
+    private static final int CALLBACK_BINARY_END   = 7;
+    private static final int CALLBACK_TEXT_START   = 8;
+    private static final int CALLBACK_TEXT_CHUNK   = 9;
+    private static final int CALLBACK_TEXT_END     = 10;
+    private static final int CALLBACK_CLOSE        = 11;
+    private static final int CALLBACK_ERROR        = 12;
+    private static final int CALLBACK_RECONNECT    = 13;
+    private static final int CALLBACK_BACKPRESSURE = 14;
+
+    /** payload of heartbeat pings, followed by their sequence number. */
+    private static final String HEARTBEAT_PREFIX = "heartbeat ";
+    /** heartbeats timed at once. a power of two. */
+    private static final int PING_WINDOW = 16;
+    /** a connection open this long resets the reconnect delay to the minimum. */
+    private static final long STABLE_CONNECTION_MILLIS = 10 * 1000;
+
     private final URI                      mURI;
     private final Listener                 mListener;
     private final List<BasicNameValuePair> mExtraHeaders;
+    private final Options                  mOptions;
     private final FrameFactory             mFrameMarshaller;
-    private final HandlerThread            mHandlerThread;
-    private final Handler                  mHandler;
-    private final Runnable                 mHeartbeat;
+    /** websocket-write-thread, or the engine's thread. */
+    private final EventLoop                mEventLoop;
+    private final HeartBeat                mHeartbeat;
+    private final Watchdog                 mWatchdog;
+    private final BufferPool               mBufferPool;
+    /** null to call the listener on the reading thread. */
+    private final CallbackExecutor         mCallbackExecutor;
+    private final Runnable                 mConnectTask = new ConnectTask();
     
     /** access on websocket-write-thread */
-    private Socket                   mSocket;
+    private Transport                mTransport;
+    private NioConnection            mConnection;  // instead of mTransport when on an engine.
+    private FrameWriter              mFrameWriter;
     
     private Thread readThread;
     
@@ -53,28 +90,108 @@ public class WebSocketClient {
     private volatile boolean         mDisconnectDispatched;  // modify on websocket read thread. read on websocket read thread and websocket write thread.
     private volatile boolean         mCloseReceived; // modify on websocket read thread. read on websocket read thread and websocket write thread.
     private boolean                  mCloseSent;     // modify on websocket write thread. read on websocket write thread;
+    private volatile boolean         mReadFinished;  // modify on websocket read thread. read on websocket write thread.
+
+    /** counts reconnections, so that destroy tasks of a lost connection are dropped. modify on websocket write thread. */
+    private volatile int             mGeneration;
+    private volatile boolean         mClosed;        // by close(). no more reconnects.
+    private volatile int             mReconnectAttempt;  // since the last stable connection.
+    volatile long                    mStableConnectionMillis = STABLE_CONNECTION_MILLIS;  // for unit test.
+    private boolean                  mReconnectPending;  // access on websocket write thread.
+    private final Random             mReconnectRandom = new Random();
+
+    /** read from all thread without locking. modify with mHeartbeat locked. */
+    private volatile long mHeartbeatInterval;
+	private volatile long mTimeout;
+	private volatile long mPingPendingSince;  // send time of the oldest heartbeat not answered, 0 if none.
+	/** the last time bytes were read or written. */
+    private volatile long mLastIO;
+
+	/** access from all thread. Must lock mHeartbeat. */
+	private final long[] mPingTimes = new long[PING_WINDOW];  // send times, by sequence number.
+	private long mPingSequence;  // the last heartbeat sent.
+	private long mPongSequence;  // the last heartbeat answered.
+	private final long[] mRoundTrips = new long[RoundTripStats.WINDOW];
+	private long mRoundTripCount;
+
+    /** frames waiting for websocket-write-thread. */
+    private final FrameQueue    mOutboundFrames = new FrameQueue();
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+    private final Runnable     mDrainTask = new DrainTask();
+    private volatile int       mMaxBatchSize = 64;
+    private volatile long      mWriteLinger;
+    /** modify on websocket write thread. */
+    private volatile long      mFlushCount;
+    private volatile long      mFlushedFrameCount;
+
+    private static final long DEFAULT_LOW_WATERMARK  = 256 * 1024;
+    private static final long DEFAULT_HIGH_WATERMARK = 1024 * 1024;
+    /** payload bytes queued but not written to the socket yet. */
+    private final AtomicLong    mBufferedAmount = new AtomicLong();
+    private final AtomicBoolean mBackpressured  = new AtomicBoolean();
+    /** as last told to the listener. */
+    private final AtomicBoolean mBackpressureReported = new AtomicBoolean();
+    private volatile long       mLowWatermark   = DEFAULT_LOW_WATERMARK;
+    private volatile long       mHighWatermark  = DEFAULT_HIGH_WATERMARK;
 
-    /** access from all thread. Must lock mHeartbeat. */
-    private long mHeartbeatInterval;
-	private Queue<Long> mPingTimestamps;
-    private long mLastIO;
-	private long mTimeout;
+    /**
+     * the message being sent in fragments, if any. Opened by CAS; held while
+     * queueing its fragments and while resetting it, so that none of them is
+     * queued once reset.
+     */
+    private final AtomicReference<MessageOutputStream> mMessageStream =
+            new AtomicReference<MessageOutputStream>();
+    private final Object mMessageLock = new Object();
+    /** messages past their check for a message stream, not queued yet. */
+    private final AtomicInteger mMessageSends = new AtomicInteger();
 
-    private static volatile TrustManager[] sTrustManagers;
+    private volatile int mMaxFrameSize   = Integer.MAX_VALUE;
+    private volatile int mMaxMessageSize = Integer.MAX_VALUE;
 
-    public static void setTrustManagers(TrustManager[] tm) {
+    private volatile Metrics     mMetrics;
+    private volatile FrameTracer mTracer;
+    /** frames queued while metrics were enabled, and not written yet. */
+    private final AtomicInteger mQueuedFrameCount = new AtomicInteger();
+
+    /** set on websocket read thread before onOpen, if negotiated. */
+    private volatile PerMessageDeflate mPerMessageDeflate;
+
+    /** of the last connection. -1 unless TLS. */
+    private volatile long    mTlsHandshakeTime = -1;
+    private volatile boolean mTlsSessionResumed;
+
+    /** Must lock WebSocketClient.class. */
+    private static TrustManager[] sTrustManagers;
+    /** shared by all clients for their TLS sessions to be resumed. */
+    private static SSLContext     sSSLContext;
+
+    public static synchronized void setTrustManagers(TrustManager[] tm) {
         sTrustManagers = tm;
+        sSSLContext = null;
     }
 
     public WebSocketClient(URI uri, Listener listener, List<BasicNameValuePair> extraHeaders) {
+        this(uri, listener, extraHeaders, new Options());
+    }
+
+    public WebSocketClient(URI uri, Listener listener, List<BasicNameValuePair> extraHeaders,
+            Options options) {
         mURI             = uri;
         mListener        = listener;
         mExtraHeaders    = extraHeaders;
+        mOptions         = options.copy();
         mFrameMarshaller = new FrameFactory();
         mHeartbeat       = new HeartBeat();
-        mHandlerThread   = new HandlerThread(THREAD_NAME_WRITE);
-        mHandlerThread.start();
-        mHandler         = new Handler(mHandlerThread.getLooper());
+        mWatchdog        = new Watchdog();
+        mBufferPool      = new BufferPool();
+        mCallbackExecutor = options.mCallbackExecutor != null
+                ? new CallbackExecutor(options.mCallbackExecutor, options.mMaxPendingCallbacks)
+                : null;
+        if (options.mEngine != null && options.mTransportFactory != SocketTransport.FACTORY) {
+            throw new IllegalArgumentException("A transport can't be used on an engine.");
+        }
+        mEventLoop       = options.mEngine != null ? options.mEngine.newEventLoop()
+                : new HandlerEventLoop(THREAD_NAME_WRITE);
 		setLastIO();
         open();
     }
@@ -85,23 +202,231 @@ public class WebSocketClient {
     
     void onOpen() {
     	mHandShaked = true;
+    	if (isReconnecting()) {
+    		// not before, or a server that drops every connection straight away
+    		// would be reconnected to at the minimum delay.
+    		mEventLoop.postDelayed(new StableTask(mGeneration), mStableConnectionMillis);
+    	}
     	if (mListener != null) {
-    		mListener.onOpen();
+    		dispatch(CALLBACK_OPEN, null, 0, 0);
     	}
     }
     
     void onMessage(final String message) {
     	if (mListener != null) {
-    		mListener.onMessage(message);
+    		dispatch(CALLBACK_TEXT, message, 0, 0);
     	}
     }
     
     void onMessage(final byte[] data) {
     	if (mListener != null) {
-    		mListener.onMessage(data);
+    		dispatch(CALLBACK_BINARY, data, 0, 0);
+    	}
+    }
+    
+    void onMessage(final MessageBuffer data) {
+    	dispatch(CALLBACK_BUFFER, data, 0, 0);
+    }
+
+    void onMessage(final byte[] data, final int offset, final int length) {
+    	dispatch(CALLBACK_SLICE, data, offset, length);
+    }
+
+    void onBinaryMessageStart() {
+    	dispatch(CALLBACK_BINARY_START, null, 0, 0);
+    }
+
+    void onBinaryMessageChunk(final byte[] data, final int offset, final int length) {
+    	dispatch(CALLBACK_BINARY_CHUNK, data, offset, length);
+    }
+
+    void onBinaryMessageEnd() {
+    	dispatch(CALLBACK_BINARY_END, null, 0, 0);
+    }
+
+    void onTextMessageStart() {
+    	dispatch(CALLBACK_TEXT_START, null, 0, 0);
+    }
+
+    void onTextMessageChunk(final char[] data, final int offset, final int length) {
+    	dispatch(CALLBACK_TEXT_CHUNK, data, offset, length);
+    }
+
+    void onTextMessageEnd() {
+    	dispatch(CALLBACK_TEXT_END, null, 0, 0);
+    }
+
+    /**
+     * Calls the listener right away, or hands the call off to the callback
+     * executor. Arrays only borrowed for the call are copied first.
+     */
+    private void dispatch(final int type, Object data, int offset, final int length) {
+    	final CallbackExecutor executor = mCallbackExecutor;
+    	if (executor == null) {
+    		deliver(type, data, offset, length);
+    		return;
+    	}
+
+    	boolean pooled = false;
+    	if (type == CALLBACK_SLICE || type == CALLBACK_BINARY_CHUNK) {
+    		final byte[] copy = mBufferPool.acquire(length);
+    		System.arraycopy(data, offset, copy, 0, length);
+    		data = copy;
+    		offset = 0;
+    		pooled = true;
+    	} else if (type == CALLBACK_TEXT_CHUNK) {
+    		final char[] copy = new char[length];
+    		System.arraycopy(data, offset, copy, 0, length);
+    		data = copy;
+    		offset = 0;
+    	}
+    	executor.execute(new Callback(type, data, offset, length, pooled));
+    }
+
+    private void deliver(final int type, final Object data, final int offset, final int length) {
+    	final long start = callbackStart();
+    	switch (type) {
+    	case CALLBACK_OPEN:
+    		mListener.onOpen();
+    		return;
+    	case CALLBACK_TEXT:
+    		mListener.onMessage((String) data);
+    		break;
+    	case CALLBACK_BINARY:
+    		mListener.onMessage((byte[]) data);
+    		break;
+    	case CALLBACK_BUFFER:
+    		((BufferListener) mListener).onMessage((MessageBuffer) data);
+    		break;
+    	case CALLBACK_SLICE:
+    		((SliceListener) mListener).onMessage((byte[]) data, offset, length);
+    		break;
+    	case CALLBACK_BINARY_START:
+    		((StreamingListener) mListener).onBinaryMessageStart();
+    		break;
+    	case CALLBACK_BINARY_CHUNK:
+    		((StreamingListener) mListener).onBinaryMessageChunk((byte[]) data, offset, length);
+    		break;
+    	case CALLBACK_BINARY_END:
+    		((StreamingListener) mListener).onBinaryMessageEnd();
+    		break;
+    	case CALLBACK_TEXT_START:
+    		((TextStreamingListener) mListener).onTextMessageStart();
+    		break;
+    	case CALLBACK_TEXT_CHUNK:
+    		((TextStreamingListener) mListener).onTextMessageChunk((char[]) data, offset, length);
+    		break;
+    	case CALLBACK_TEXT_END:
+    		((TextStreamingListener) mListener).onTextMessageEnd();
+    		break;
+    	case CALLBACK_CLOSE:
+    		// offset carries the close code.
+    		mListener.onClose(offset, (String) data);
+    		return;
+    	case CALLBACK_ERROR:
+    		mListener.onError((Exception) data);
+    		return;
+    	case CALLBACK_RECONNECT:
+    		// offset carries the attempt.
+    		((ReconnectListener) mListener).onReconnecting(offset, (Long) data);
+    		return;
+    	case CALLBACK_BACKPRESSURE:
+    		reportBackpressure();
+    		return;
+    	default:
+    		throw new IllegalArgumentException("Unknown callback: " + type);
+    	}
+    	callbackEnd(start);
+    }
+
+    // @return 0 unless metrics are enabled.
+    private long callbackStart() {
+    	return mMetrics != null ? System.nanoTime() : 0;
+    }
+
+    private void callbackEnd(final long start) {
+    	final Metrics metrics = mMetrics;
+    	if (start != 0 && metrics != null) {
+    		metrics.onListenerCallback(System.nanoTime() - start);
     	}
     }
+
+    /** a listener call handed off to the callback executor. */
+    private class Callback implements Runnable {
+    	private final int     mType;
+    	private final Object  mData;
+    	private final int     mOffset;
+    	private final int     mLength;
+    	private final boolean mPooled;
+
+    	Callback(int type, Object data, int offset, int length, boolean pooled) {
+    		mType = type;
+    		mData = data;
+    		mOffset = offset;
+    		mLength = length;
+    		mPooled = pooled;
+    	}
+
+    	@Override
+    	public void run() {
+    		try {
+    			deliver(mType, mData, mOffset, mLength);
+    		} finally {
+    			if (mPooled) {
+    				mBufferPool.release((byte[]) mData);
+    			}
+    		}
+    	}
+    }
+
+    boolean isTextStreamingListener() {
+    	return mListener instanceof TextStreamingListener;
+    }
+
+    boolean isStreamingListener() {
+    	return mListener instanceof StreamingListener;
+    }
+
+    boolean isSliceListener() {
+    	return mListener instanceof SliceListener;
+    }
+
+    boolean isBufferListener() {
+    	return mListener instanceof BufferListener;
+    }
+
+    EventLoop getEventLoop() {
+    	return mEventLoop;
+    }
+
+    BufferPool getBufferPool() {
+    	return mBufferPool;
+    }
     
+    /**
+     * mBackpressured changed. the sender and the write thread may get here in
+     * either order, so the listener is told the state as of the call, not
+     * which way it changed.
+     */
+    void onBackpressureChanged() {
+    	if (mListener instanceof BackpressureListener) {
+    		dispatch(CALLBACK_BACKPRESSURE, null, 0, 0);
+    	}
+    }
+
+    // tells the listener of a change since it was last told, if any.
+    private void reportBackpressure() {
+    	final boolean backpressured = mBackpressured.get();
+    	if (!mBackpressureReported.compareAndSet(!backpressured, backpressured)) {
+    		return;
+    	}
+    	if (backpressured) {
+    		((BackpressureListener) mListener).onBackpressure();
+    	} else {
+    		((BackpressureListener) mListener).onWritable();
+    	}
+    }
+
     void onCloseReceiverd() {
     	mCloseReceived = true;
     }
@@ -113,7 +438,7 @@ public class WebSocketClient {
 
     	mDisconnectDispatched = true;
     	if (mListener != null && mHandShaked) {
-    		mListener.onClose(code, reason);
+    		dispatch(CALLBACK_CLOSE, reason, code, 0);
     	}
     }
     
@@ -123,7 +448,7 @@ public class WebSocketClient {
 		} else {
 			Log.e(TAG, "Error occured.", error);
 			if (mListener != null) {
-				mListener.onError(error);
+				dispatch(CALLBACK_ERROR, error, 0, 0);
 			}
 		}
 	}
@@ -132,54 +457,301 @@ public class WebSocketClient {
     	synchronized (mHeartbeat) {
 			this.mHeartbeatInterval = heartbeatInterval;
 			validateTimeoutAndHeartbeatInterval();
+			if (heartbeatInterval <= 0) {
+				// pongs still on their way won't be awaited.
+				mPongSequence = mPingSequence;
+				mPingPendingSince = 0;
+			}
 			postHeartbeat();
 		}
 	}
 
+	/**
+	 * Destroys the connection once nothing has been read or written for
+	 * {@code mTimeout} milliseconds, or up to an eighth more: it's checked on
+	 * websocket-heartbeat-thread along with the heartbeats, whether sending
+	 * or not. Set a heartbeat interval of at most half of it to keep a quiet
+	 * connection alive.
+	 */
 	public void setTimeout(long mTimeout) {
 		synchronized (mHeartbeat) {
 			this.mTimeout = mTimeout;
 			validateTimeoutAndHeartbeatInterval();
-			checkTimeout();
+			if (checkTimeout()) {
+				return;
+			}
+			if (mTimeout > 0) {
+				startWatchdog();
+			} else {
+				HeartbeatScheduler.INSTANCE.cancel(mWatchdog);
+			}
 		}
 	}
 
-	void setLastIO() {
-		synchronized (mHeartbeat) {
-			mLastIO = currentTimeMillis();
+	private void startWatchdog() {
+		final long timeout = mTimeout;
+		if (timeout > 0) {
+			HeartbeatScheduler.INSTANCE.schedule(mWatchdog, Math.max(1, timeout / 8));
+		}
+	}
+
+	/**
+	 * Frames with a larger payload are rejected as soon as their header is read
+	 * and the connection is closed with
+	 * {@link CloseCodes#CLOSE_MESSAGE_TOO_BIG}. Unlimited by default.
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		if (maxFrameSize < 0) {
+			throw new IllegalArgumentException("maxFrameSize must not be negative.");
+		}
+		this.mMaxFrameSize = maxFrameSize;
+	}
+
+	int getMaxFrameSize() {
+		return mMaxFrameSize;
+	}
+
+	/**
+	 * Same as {@link #setMaxFrameSize(int)}, for the sum of the fragments of a
+	 * message.
+	 */
+	public void setMaxMessageSize(int maxMessageSize) {
+		if (maxMessageSize < 0) {
+			throw new IllegalArgumentException("maxMessageSize must not be negative.");
+		}
+		this.mMaxMessageSize = maxMessageSize;
+	}
+
+	int getMaxMessageSize() {
+		return mMaxMessageSize;
+	}
+
+	/**
+	 * Called with the Sec-WebSocket-Extensions of the handshake response.
+	 */
+	void onExtensions(String extensions) throws FrameHandler.ProtocolError {
+		if (!mOptions.mCompression) {
+			throw new FrameHandler.ProtocolError("Unexpected extensions: " + extensions);
 		}
+		final PerMessageDeflate perMessageDeflate = PerMessageDeflate.accept(extensions,
+				mOptions.mCompressionThreshold);
+		mPerMessageDeflate = perMessageDeflate;
+		mFrameMarshaller.setPerMessageDeflate(perMessageDeflate);
+	}
+
+	/**
+	 * @return null unless permessage-deflate was negotiated.
+	 */
+	PerMessageDeflate getPerMessageDeflate() {
+		return mPerMessageDeflate;
+	}
+
+	/**
+	 * @return true if messages are compressed with permessage-deflate.
+	 */
+	public boolean isCompressed() {
+		return mPerMessageDeflate != null;
+	}
+
+	/**
+	 * Max number of queued frames written to the socket before flushing it.
+	 * Default is 64.
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize <= 0) {
+			throw new IllegalArgumentException("maxBatchSize must be positive.");
+		}
+		this.mMaxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * How long the first queued frame waits for more frames to be sent along
+	 * with it, in milliseconds. Default is 0: frames sent in a burst are still
+	 * batched, but none is delayed.
+	 */
+	public void setWriteLinger(long writeLinger) {
+		if (writeLinger < 0) {
+			throw new IllegalArgumentException("writeLinger must not be negative.");
+		}
+		this.mWriteLinger = writeLinger;
+	}
+
+	/**
+	 * @return bytes of messages sent but not written to the socket yet, like
+	 *         the bufferedAmount of the browser's WebSocket.
+	 */
+	public long getBufferedAmount() {
+		return mBufferedAmount.get();
+	}
+
+	/**
+	 * When {@link #getBufferedAmount()} goes above {@code high},
+	 * {@link BackpressureListener#onBackpressure()} is called and
+	 * {@code trySend} is refused. Once it drops back to {@code low},
+	 * {@link BackpressureListener#onWritable()} is called. Default is 256 KiB
+	 * and 1 MiB.
+	 */
+	public void setBufferWatermarks(long low, long high) {
+		if (low < 0 || high < low) {
+			throw new IllegalArgumentException("must be 0 <= low <= high.");
+		}
+		this.mLowWatermark = low;
+		this.mHighWatermark = high;
+	}
+
+	/**
+	 * @return false while the buffered amount is above the high watermark.
+	 */
+	public boolean isWritable() {
+		return mBufferedAmount.get() <= mHighWatermark;
+	}
+
+	/**
+	 * Starts reporting to {@code metrics}, or stops if null. Nothing is measured
+	 * while unset. See {@link CountingMetrics}.
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.mMetrics = metrics;
+	}
+
+	Metrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * Starts recording frames to {@code tracer}, or stops if null.
+	 */
+	public void setTracer(FrameTracer tracer) {
+		this.mTracer = tracer;
+	}
+
+	FrameTracer getTracer() {
+		return mTracer;
+	}
+
+	/**
+	 * Called once the TLS handshake of a connection is done.
+	 *
+	 * @param time the handshake took, in nanoseconds.
+	 */
+	void onTlsHandshake(long time, boolean resumed) {
+		mTlsHandshakeTime = time;
+		mTlsSessionResumed = resumed;
+		final Metrics metrics = mMetrics;
+		if (metrics != null) {
+			metrics.onTlsHandshake(time, resumed);
+		}
+	}
+
+	/**
+	 * @return how long the TLS handshake of the connection took, in
+	 * milliseconds, or -1 unless done.
+	 */
+	public long getTlsHandshakeMillis() {
+		final long time = mTlsHandshakeTime;
+		return time < 0 ? -1 : time / 1000000;
+	}
+
+	/**
+	 * @return true if the connection resumed a TLS session of an earlier
+	 * one to the same host, sparing a full handshake.
+	 */
+	public boolean isTlsSessionResumed() {
+		return mTlsSessionResumed;
+	}
+
+	/**
+	 * @return average number of frames written per flush of the socket.
+	 */
+	public double getFramesPerFlush() {
+		final long flushCount = mFlushCount;
+		return flushCount == 0 ? 0 : (double) mFlushedFrameCount / flushCount;
+	}
+
+	void setLastIO() {
+		mLastIO = currentTimeMillis();
     }
 
-	void onPong(final String message) {
+	/**
+	 * Times the heartbeat the pong answers. Others, to
+	 * {@link #sendPing(String)}, are ignored.
+	 */
+	void onPong(byte[] payload, int length) {
+		final long sequence = parseHeartbeat(payload, length);
+		final long roundTrip;
 		synchronized (mHeartbeat) {
-			if (mPingTimestamps != null) {
-				mPingTimestamps.remove();
+			if (sequence <= mPongSequence || sequence > mPingSequence
+					|| mPingSequence - sequence >= PING_WINDOW) {
+				return;
 			}
+			// a pong may answer only the last of several pings (RFC 6455 5.5.3),
+			// so the earlier ones count as answered too.
+			mPongSequence = sequence;
+			mPingPendingSince = sequence == mPingSequence ? 0
+					: mPingTimes[(int) (sequence + 1) & (PING_WINDOW - 1)];
+			roundTrip = currentTimeMillis() - mPingTimes[(int) sequence & (PING_WINDOW - 1)];
+			mRoundTrips[(int) (mRoundTripCount++ % mRoundTrips.length)] = roundTrip;
+		}
+		final Metrics metrics = mMetrics;
+		if (metrics != null) {
+			metrics.onHeartbeatRoundTrip(roundTrip);
 		}
 	}
 
-	public boolean checkTimeout() {
-		synchronized (mHeartbeat) {
-			final long now = currentTimeMillis();
-			if (mHeartbeatInterval > 0 && mPingTimestamps != null && !mPingTimestamps.isEmpty()) {
-				final long timestamp = mPingTimestamps.peek();
-				if (now >= timestamp + mHeartbeatInterval) {
-					Log.e(TAG, "Heartbeat is timeout. now:" + now + ", timestamp:" + timestamp
-							+ ", interval:" + mHeartbeatInterval);
-					destroy();
-					return true;
-				}
+	/**
+	 * @return the sequence number of a heartbeat payload, -1 if not one.
+	 */
+	private static long parseHeartbeat(byte[] payload, int length) {
+		final int prefix = HEARTBEAT_PREFIX.length();
+		if (length <= prefix || length > prefix + 18) {
+			return -1;
+		}
+		for (int i = 0; i < prefix; i++) {
+			if (payload[i] != HEARTBEAT_PREFIX.charAt(i)) {
+				return -1;
 			}
-
-			if (mTimeout > 0 && now >= mLastIO + mTimeout) {
-				Log.e(TAG, "IO is timeout. now:" + now + ", lastIO:" + mLastIO + ", timeout:" + mTimeout);
-				destroy();
-				return true;
+		}
+		long sequence = 0;
+		for (int i = prefix; i < length; i++) {
+			final int digit = payload[i] - '0';
+			if (digit < 0 || digit > 9) {
+				return -1;
 			}
-			return false;
+			sequence = sequence * 10 + digit;
+		}
+		return sequence;
+	}
+
+	/**
+	 * @return round-trip times of the heartbeats answered so far.
+	 */
+	public RoundTripStats getRoundTripStats() {
+		synchronized (mHeartbeat) {
+			return new RoundTripStats(mRoundTrips, mRoundTripCount);
 		}
 	}
 
+	public boolean checkTimeout() {
+		final long now = currentTimeMillis();
+		final long interval = mHeartbeatInterval;
+		final long timestamp = mPingPendingSince;
+		if (interval > 0 && timestamp > 0 && now >= timestamp + interval) {
+			Log.e(TAG, "Heartbeat is timeout. now:" + now + ", timestamp:" + timestamp
+					+ ", interval:" + interval);
+			destroy();
+			return true;
+		}
+
+		final long timeout = mTimeout;
+		final long lastIO = mLastIO;
+		if (timeout > 0 && now >= lastIO + timeout) {
+			Log.e(TAG, "IO is timeout. now:" + now + ", lastIO:" + lastIO + ", timeout:" + timeout);
+			destroy();
+			return true;
+		}
+		return false;
+	}
+
 	void validateTimeoutAndHeartbeatInterval() {
 		if (mHeartbeatInterval > 0 && mTimeout > 0 && mTimeout < mHeartbeatInterval * 2) {
 			Log.e(TAG, "timeout should be twice larger than heartbeat interval.");
@@ -187,115 +759,146 @@ public class WebSocketClient {
 		}
 	}
 
-    Socket getSocket() {
-		return mSocket;
+    Transport getTransport() {
+		return mTransport;
 	}
     
 	private boolean canSendFrame() {
 		return mHandShaked && !mCloseReceived && !mCloseSent;
 	}
 	
-	private boolean canSendClose() {
-		return mHandShaked && !mCloseSent;
-	}
     
     void postHeartbeat() {
     	synchronized (mHeartbeat) {
     		if (canSendFrame()) {
-    			mHandler.removeCallbacks(mHeartbeat);
 	    		if (mHeartbeatInterval > 0) {
-	    			mHandler.post(mHeartbeat);
+	    			HeartbeatScheduler.INSTANCE.schedule(mHeartbeat, mHeartbeatInterval);
+	    		} else {
+	    			HeartbeatScheduler.INSTANCE.cancel(mHeartbeat);
 	    		}
     		}
 		}
     }
 
     private void open() {
-        mHandler.post(new Runnable() {
-			@Override
-			public void run() {
-				try {
-		            int port = (mURI.getPort() != -1) ? mURI.getPort() : ((mURI.getScheme().equals("wss") || mURI.getScheme().equals("https")) ? 443 : 80);
-
-		            SocketFactory factory = (mURI.getScheme().equals("wss") || mURI.getScheme().equals("https")) ? getSSLSocketFactory() : SocketFactory.getDefault();
-		            mSocket = factory.createSocket(mURI.getHost(), port);
-		            String path = TextUtils.isEmpty(mURI.getPath()) ? "/" : mURI.getPath();
- 		            if (!TextUtils.isEmpty(mURI.getQuery())) {
- 		                path += "?" + mURI.getQuery();
- 		            }
-
- 		            String originScheme = mURI.getScheme().equals("wss") ? "https" : "http";
- 		            URI origin = new URI(originScheme, "//" + mURI.getHost(), null);
-                    PrintWriter out = new PrintWriter(mSocket.getOutputStream());
-                    out.print("GET " + path + " HTTP/1.1\r\n");
-                    out.print("Upgrade: websocket\r\n");
-                    out.print("Connection: Upgrade\r\n");
-                    out.print("Host: " + mURI.getHost() + ":" + port + "\r\n");
-                    out.print("Origin: " + origin.toString() + "\r\n");
-                    out.print("Sec-WebSocket-Key: " + createSecret() + "\r\n");
-                    out.print("Sec-WebSocket-Version: 13\r\n");
-                    if (mExtraHeaders != null) {
-                        for (NameValuePair pair : mExtraHeaders) {
-                            out.print(String.format("%s: %s\r\n", pair.getName(), pair.getValue()));
-                        }
-                    }
-                    out.print("\r\n");
-                    out.flush();
-
-					setLastIO();
-
-                    readThread = new WebSocketReadThread(WebSocketClient.this);
-                    readThread.start();
-		        } catch (IOException ex) {
-					onError(ex);
-					final String reason = WebSocketReadThread
-							.getDisconnectReason(ex);
-					Log.e(TAG, "WebSocket closed." + reason, ex);
-					onClose(CloseCodes.CLOSE_ABNORMAL, reason);
-                } catch (KeyManagementException ex) {
-                    throw new RuntimeException(ex);
-				} catch (NoSuchAlgorithmException ex) {
-					throw new RuntimeException(ex);
-				} catch (URISyntaxException ex) {
-					throw new RuntimeException(ex);
-				}
-			}
-		});
+        mEventLoop.post(mConnectTask);
     }
 
 	public void close() {
-		sendClose(1000,
-				"the purpose for which the connection was established has been fulfilled.");
-	}
-
-	void sendClose(final int code, final String reason) {
-		if (mHandlerThread.isAlive()) {
-			mHandler.post(new Runnable() {
+		mClosed = true;
+		if (mOptions.mReconnectMaxDelay > 0) {
+			// no connection to close while waiting to reconnect.
+			mEventLoop.post(new Runnable() {
 				@Override
 				public void run() {
-					if (!mCloseSent) {
-						final byte[] frame = mFrameMarshaller.createCloseFrame(
-								code, reason);
-						sendFrameSync(frame, true);
-						mCloseSent = true;
-						mHandler.postDelayed(new DestroyTask(), 5000);
+					if (mReconnectPending) {
+						mEventLoop.removeCallbacks(mConnectTask);
+						mReconnectPending = false;
+						finish();
 					}
 				}
 			});
 		}
+		sendClose(1000,
+				"the purpose for which the connection was established has been fulfilled.");
+	}
+
+	void sendClose(final int code, final String reason) {
+		if (mEventLoop.isAlive()) {
+			sendFrame(mFrameMarshaller.createCloseFrame(code, reason), true);
+		}
 	}
     
 	// 読込用スレッドを閉じた後，書込用スレッドで終了処理を実施する
 	void destroy() {
-		mHandler.post(new DestroyTask());
+		mEventLoop.post(new DestroyTask(mGeneration));
+	}
+
+	/**
+	 * Called by the reader of the connection once it stopped, after its last
+	 * callback.
+	 */
+	void onReadFinished() {
+		mReadFinished = true;
+		destroy();
+	}
+
+	private boolean isReconnecting() {
+		return mOptions.mReconnectMaxDelay > 0 && !mClosed;
+	}
+
+	// websocket-write-thread. after the connection is closed and read to its end.
+	private void reconnect() {
+		HeartbeatScheduler.INSTANCE.cancel(mHeartbeat);
+		HeartbeatScheduler.INSTANCE.cancel(mWatchdog);
+		if (!mDisconnectDispatched) {
+			onClose(CloseCodes.CLOSE_ABNORMAL, "Connection lost.");
+		}
+
+		mGeneration++;
+		mTransport = null;
+		mConnection = null;
+		mFrameWriter = null;
+		readThread = null;
+		mHandShaked = false;
+		mCloseReceived = false;
+		mCloseSent = false;
+		mDisconnectDispatched = false;
+		mReadFinished = false;
+		mPerMessageDeflate = null;
+		mFrameMarshaller.setPerMessageDeflate(null);
+		mTlsHandshakeTime = -1;
+		mTlsSessionResumed = false;
+		// frames and fragments of a message meant for the lost connection, some
+		// perhaps compressed with its context, mustn't go out on the next one.
+		synchronized (mMessageLock) {
+			mMessageStream.set(null);
+		}
+		discardFrames();
+		synchronized (mHeartbeat) {
+			mPongSequence = mPingSequence;
+			mPingPendingSince = 0;
+		}
+
+		final int attempt = ++mReconnectAttempt;
+		final long delay = getReconnectDelay(attempt);
+		Log.i(TAG, "Reconnecting in " + delay + "ms, attempt " + attempt + ".");
+		mReconnectPending = true;
+		mEventLoop.postDelayed(mConnectTask, delay);
+		if (mListener instanceof ReconnectListener) {
+			dispatch(CALLBACK_RECONNECT, Long.valueOf(delay), attempt, 0);
+		}
+	}
+
+	/**
+	 * @return the minimum delay doubled for each attempt but the first, up to
+	 * the maximum, less a random jitter.
+	 */
+	private long getReconnectDelay(int attempt) {
+		final long maxDelay = mOptions.mReconnectMaxDelay;
+		long delay = mOptions.mReconnectMinDelay;
+		for (int i = 1; i < attempt && delay < maxDelay; i++) {
+			delay *= 2;
+		}
+		delay = Math.min(delay, maxDelay);
+		return delay - (long) (delay * mOptions.mReconnectJitter * mReconnectRandom.nextDouble());
+	}
+
+	// websocket-write-thread. for good.
+	private void finish() {
+		HeartbeatScheduler.INSTANCE.cancel(mHeartbeat);
+		HeartbeatScheduler.INSTANCE.cancel(mWatchdog);
+		interruptWriteThread();
 	}
 	
 	private void closeSocket() {
-		if (mSocket != null) {
-			if (!mSocket.isClosed()) {
+		if (mConnection != null) {
+			mConnection.close();
+		} else if (mTransport != null) {
+			if (!mTransport.isClosed()) {
 				try {
 					Log.d(TAG, "Close socket.");
-					mSocket.close();
+					mTransport.close();
 				} catch (IOException ex) {
 					Log.e(TAG, "Error while disconnecting",
 							ex);
@@ -307,44 +910,193 @@ public class WebSocketClient {
 	}
 	
 	private void interruptWriteThread() {
-		mHandlerThread.quit();
+		mEventLoop.quit();
 	}
 
+    /**
+     * @throws IllegalStateException while a message stream is open.
+     */
     public void send(String data) {
-        sendFrame(mFrameMarshaller.createFrame(data), false);
+        sendMessage(mFrameMarshaller.createFrame(data));
+    }
+
+    /**
+     * The text is copied, unless a String, and may be modified once this
+     * returns.
+     *
+     * @throws IllegalStateException while a message stream is open.
+     */
+    public void send(CharSequence data) {
+        sendMessage(mFrameMarshaller.createFrame(data));
     }
 
+    /**
+     * The array is not copied: don't modify it until it has been sent.
+     *
+     * @throws IllegalStateException while a message stream is open.
+     */
     public void send(byte[] data) {
-        sendFrame(mFrameMarshaller.createFrame(data), false);
+        sendMessage(mFrameMarshaller.createFrame(data));
+    }
+
+    /**
+     * Sends the remaining bytes of the buffer as a binary message. Neither the
+     * buffer nor its position are touched: don't modify its content until it
+     * has been sent.
+     *
+     * @throws IllegalStateException while a message stream is open.
+     */
+    public void send(ByteBuffer data) {
+        sendMessage(mFrameMarshaller.createFrame(data));
+    }
+
+    /**
+     * Starts a binary message sent in fragments as it is written, so that it
+     * needn't be held in memory as a whole. A fragment goes out whenever 16 KiB
+     * are buffered or on flush(), and close() ends the message. Until then no
+     * other message may be sent. Messages sent this way are not compressed.
+     * If the client reconnects meanwhile, the stream throws an IOException:
+     * the message is lost with the connection.
+     *
+     * @throws IllegalStateException while another message stream is open.
+     */
+    public OutputStream openBinaryMessage() {
+        return openMessageStream(Frames.OP_BINARY);
+    }
+
+    /**
+     * Same as {@link #openBinaryMessage()}, for a text message written in
+     * UTF-8.
+     */
+    public Writer openTextMessage() {
+        return new OutputStreamWriter(openMessageStream(Frames.OP_TEXT), Utf8Codec.UTF_8);
+    }
+
+    private MessageOutputStream openMessageStream(int opcode) {
+        final MessageOutputStream stream = new MessageOutputStream(this, opcode);
+        if (!mMessageStream.compareAndSet(null, stream)) {
+            throw new IllegalStateException("Another message stream is open.");
+        }
+        return stream;
+    }
+
+    private void sendMessage(Frame frame) {
+        // counted before checking: a stream opened meanwhile waits for the
+        // message to be queued before queueing its first fragment.
+        mMessageSends.incrementAndGet();
+        final boolean backpressure;
+        try {
+            if (mMessageStream.get() != null) {
+                throw new IllegalStateException("A message stream is open.");
+            }
+            backpressure = queueFrame(frame, false);
+        } finally {
+            mMessageSends.decrementAndGet();
+        }
+        if (backpressure) {
+            onBackpressureChanged();
+        }
+    }
+
+    /**
+     * @return false if the stream was reset by a reconnection: the rest of the
+     * message can't be sent.
+     */
+    boolean sendFragment(MessageOutputStream stream, int opcode, byte[] payload, int length,
+            boolean pooled, boolean fin) {
+        boolean sent = false;
+        boolean backpressure = false;
+        synchronized (mMessageLock) {
+            if (mMessageStream.get() == stream) {
+                if (opcode != Frames.OP_CONTINUATION) {
+                    while (mMessageSends.get() > 0) {
+                        // a message that checked before the stream was opened.
+                        Thread.yield();
+                    }
+                }
+                final Frame frame = mFrameMarshaller.createFragment(opcode, payload, length, fin);
+                frame.mPooled = pooled;
+                backpressure = queueFrame(frame, false);
+                if (fin) {
+                    mMessageStream.set(null);
+                }
+                sent = true;
+            }
+        }
+        if (!sent) {
+            if (pooled) {
+                mBufferPool.release(payload);
+            }
+            return false;
+        }
+        // not holding the lock, which a reconnection takes on the write thread.
+        if (backpressure) {
+            onBackpressureChanged();
+        }
+        return true;
     }
     
+    /**
+     * Same as {@link #send(String)}, unless the send buffer is above its high
+     * watermark.
+     *
+     * @return false if the message was refused.
+     */
+    public boolean trySend(String data) {
+    	if (!isWritable()) {
+    		return false;
+    	}
+    	send(data);
+    	return true;
+    }
+
+    /**
+     * @see #trySend(String)
+     */
+    public boolean trySend(byte[] data) {
+    	if (!isWritable()) {
+    		return false;
+    	}
+    	send(data);
+    	return true;
+    }
+
+    /**
+     * @see #trySend(String)
+     */
+    public boolean trySend(ByteBuffer data) {
+    	if (!isWritable()) {
+    		return false;
+    	}
+    	send(data);
+    	return true;
+    }
+
     public void sendPong(final byte[] payload) {
     	sendFrame(mFrameMarshaller.createPongFrame(payload), false);
     }
     
+    /**
+     * Unlike heartbeats, the pong is neither awaited nor timed.
+     */
     public void sendPing(final String message) {
-		synchronized (mHeartbeat) {
-			if (checkTimeout()) {
-				return;
-			}
-
-			if (mPingTimestamps == null) {
-				mPingTimestamps = new LinkedList<Long>();
-			}
-			mPingTimestamps.add(currentTimeMillis());
+		if (checkTimeout()) {
+			return;
 		}
-
     	sendFrame(mFrameMarshaller.createPingFrame(message), false);
     }
 
 	// for unit test.
 	boolean isSocketDestroyed() {
-		return mSocket == null || mSocket.isClosed();
+		if (mConnection != null) {
+			return mConnection.isClosed();
+		}
+		return mTransport == null || mTransport.isClosed();
 	}
 	
 	// for unit test.
 	boolean isWriteThreadDestroyed() {
-		return !mHandlerThread.isAlive();
+		return !mEventLoop.isAlive();
 	}
 	
 	// for unit test.
@@ -360,77 +1112,648 @@ public class WebSocketClient {
         return Base64.encodeToString(nonce, Base64.DEFAULT).trim();
     }
 
-    void sendFrameSync(final byte[] frame, final boolean closeFrame) {
+    // websocket-write-thread. writes a batch of queued frames with a single flush.
+    private void drainFrames() {
 		if (checkTimeout()) {
+			// timed out and torn down: the queued frames can't be sent.
+			discardFrames();
 			return;
 		}
 
+		final int maxBatchSize = mMaxBatchSize;
+		final Metrics metrics = mMetrics;
+		final long start = metrics != null ? System.nanoTime() : 0;
+		final NioConnection connection = mConnection;
+		boolean drained = false;
+		boolean congested = false;
+		int written = 0;
     	try {
-        	if (mSocket == null) {
-        		Log.e(TAG, "Can't send frame because Socket is closed.");
-        		return;
-        	}
-        	
-        	if (!closeFrame && !canSendFrame()) {
-        		Log.e(TAG, "Can't send normal frame.");
-        		return;
-        	}
-        	
-        	if (closeFrame && !canSendClose()) {
-        		Log.e(TAG, "Can't send close frame.");
-        		return;
-        	}
-        	
-            OutputStream outputStream = mSocket.getOutputStream();
-            outputStream.write(frame);
-            outputStream.flush();
+    		for (int i = 0; i < maxBatchSize; i++) {
+    			if (connection != null && connection.isCongested()) {
+    				// the frames stay queued, and buffered amount, until the
+    				// channel takes what it has.
+    				congested = true;
+    				break;
+    			}
+    			final Frame frame = mOutboundFrames.poll();
+    			if (frame == null) {
+    				drained = true;
+    				break;
+    			}
+    			final boolean sent = writeFrame(frame);
+    			dequeued(frame);
+    			if (sent) {
+    				written++;
+    			}
+    		}
 
-			setLastIO();
+    		if (written > 0) {
+    			mFrameWriter.flush();
+    			mFlushCount++;
+    			mFlushedFrameCount += written;
+    			setLastIO();
+    			if (metrics != null) {
+    				metrics.onFlush(written, System.nanoTime() - start);
+    			}
+    		}
         } catch (IOException e) {
+        	// the connection is broken. the rest can't be sent either.
+        	discardFrames();
             onError(e);
+            return;
+        } finally {
+        	if (mBufferedAmount.get() <= mLowWatermark && mBackpressured.get()
+        			&& mBackpressured.compareAndSet(true, false)) {
+        		onBackpressureChanged();
+        	}
         }
+
+    	if (congested) {
+    		// still scheduled: onConnectionWritable() drains again.
+    		return;
+    	}
+    	if (drained) {
+    		mDrainScheduled.set(false);
+    		// a frame offered meanwhile may have seen the flag still set.
+    		if (mOutboundFrames.isEmpty() || !mDrainScheduled.compareAndSet(false, true)) {
+    			return;
+    		}
+    	}
+    	// let other tasks run before the next batch.
+    	mEventLoop.post(mDrainTask);
     }
-    
-    void sendFrame(final byte[] frame, final boolean closeFrame) {
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                sendFrameSync(frame, closeFrame);
-            }
-        });
+
+    // websocket-write-thread.
+    /**
+     * The engine's thread. The connection took the data that held the frames
+     * back.
+     */
+    void onConnectionWritable() {
+    	mEventLoop.post(mDrainTask);
+    }
+
+    /**
+     * websocket-write-thread. drops the queued frames, so that the buffered
+     * amount and the backpressure don't stay up for frames never written, and
+     * clears the drain flag, so that later frames aren't stranded behind it.
+     */
+    private void discardFrames() {
+    	Frame frame;
+    	while ((frame = mOutboundFrames.poll()) != null) {
+    		if (frame.mClose) {
+    			closing(false);
+    		}
+    		dequeued(frame);
+    	}
+    	mDrainScheduled.set(false);
+    	// a frame offered meanwhile may have seen the flag still set.
+    	if (!mOutboundFrames.isEmpty() && mDrainScheduled.compareAndSet(false, true)) {
+    		mEventLoop.post(mDrainTask);
+    	}
+    	if (mBufferedAmount.get() <= mLowWatermark && mBackpressured.get()
+    			&& mBackpressured.compareAndSet(true, false)) {
+    		onBackpressureChanged();
+    	}
     }
 
-    private SSLSocketFactory getSSLSocketFactory() throws NoSuchAlgorithmException, KeyManagementException {
-        SSLContext context = SSLContext.getInstance("TLS");
-        context.init(null, sTrustManagers, null);
-        return context.getSocketFactory();
+    private void dequeued(final Frame frame) {
+    	mBufferedAmount.addAndGet(-frame.mLength);
+    	if (frame.mPooled) {
+    		mBufferPool.release(frame.mPayload);
+    	}
+    	if (frame.mQueuedAt != 0) {
+    		mQueuedFrameCount.decrementAndGet();
+    	}
+    }
+
+    // websocket-write-thread. @return false if the frame was dropped.
+    private boolean writeFrame(final Frame frame) throws IOException {
+    	if (frame.mClose) {
+    		if (mCloseSent) {
+    			Log.e(TAG, "Close frame was sent already.");
+    			return false;
+    		}
+    		final boolean writable = mFrameWriter != null && mHandShaked;
+    		closing(writable);
+    		if (!writable) {
+    			Log.e(TAG, "Can't send close frame.");
+    			return false;
+    		}
+    	} else if (mFrameWriter == null) {
+    		Log.e(TAG, "Can't send frame because Socket is closed.");
+    		return false;
+    	} else if (!canSendFrame()) {
+    		Log.e(TAG, "Can't send normal frame.");
+    		return false;
+    	}
+
+    	mFrameWriter.write(frame);
+    	final Metrics metrics = mMetrics;
+    	if (metrics != null) {
+    		metrics.onFrameWritten(frame.mOpcode, frame.mLength,
+    				frame.mQueuedAt != 0 ? System.nanoTime() - frame.mQueuedAt : -1);
+    	}
+    	final FrameTracer tracer = mTracer;
+    	if (tracer != null) {
+    		tracer.onFrameSent(frame.mHeader[0], frame.mLength);
+    	}
+    	return true;
+    }
+
+    /**
+     * websocket-write-thread. Once a close frame is taken from the queue, the
+     * connection is torn down whether the frame can be written or not: 5
+     * seconds after it's written, for the server to answer, or right away.
+     */
+    private void closing(boolean written) {
+    	if (mCloseSent) {
+    		return;
+    	}
+    	mCloseSent = true;
+    	if (written) {
+    		mEventLoop.postDelayed(new DestroyTask(mGeneration), 5000);
+    	} else {
+    		mEventLoop.post(new DestroyTask(mGeneration));
+    	}
+    }
+
+    void sendFrame(final Frame frame, final boolean closeFrame) {
+    	if (queueFrame(frame, closeFrame)) {
+    		onBackpressureChanged();
+    	}
+    }
+
+    /**
+     * @return true if the frame took the send buffer above the high watermark:
+     * the caller then calls {@link #onBackpressureChanged()}, holding no lock.
+     */
+    private boolean queueFrame(final Frame frame, final boolean closeFrame) {
+    	frame.mClose = closeFrame;
+    	// before offering, so that the write thread sees the flag when it takes the frame.
+    	final boolean backpressure = mBufferedAmount.addAndGet(frame.mLength) > mHighWatermark
+    			&& !mBackpressured.get() && mBackpressured.compareAndSet(false, true);
+    	final Metrics metrics = mMetrics;
+    	if (metrics != null) {
+    		frame.mQueuedAt = System.nanoTime();
+    		metrics.onFrameQueued(frame.mOpcode, frame.mLength, mQueuedFrameCount.incrementAndGet());
+    	}
+    	mOutboundFrames.offer(frame);
+    	if (mDrainScheduled.get() || !mDrainScheduled.compareAndSet(false, true)) {
+    		return backpressure;
+    	}
+
+    	final long linger = mWriteLinger;
+    	if (linger > 0) {
+    		mEventLoop.postDelayed(mDrainTask, linger);
+    	} else {
+    		mEventLoop.post(mDrainTask);
+    	}
+    	return backpressure;
+    }
+
+    private static synchronized SSLContext getSSLContext()
+            throws NoSuchAlgorithmException, KeyManagementException {
+        if (sSSLContext == null) {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, sTrustManagers, null);
+            sSSLContext = context;
+        }
+        return sSSLContext;
+    }
+
+    private String createHandshake(int port) throws URISyntaxException {
+        String path = TextUtils.isEmpty(mURI.getPath()) ? "/" : mURI.getPath();
+        if (!TextUtils.isEmpty(mURI.getQuery())) {
+            path += "?" + mURI.getQuery();
+        }
+
+        String originScheme = mURI.getScheme().equals("wss") ? "https" : "http";
+        URI origin = new URI(originScheme, "//" + mURI.getHost(), null);
+        StringBuilder request = new StringBuilder();
+        request.append("GET " + path + " HTTP/1.1\r\n");
+        request.append("Upgrade: websocket\r\n");
+        request.append("Connection: Upgrade\r\n");
+        request.append("Host: " + mURI.getHost() + ":" + port + "\r\n");
+        request.append("Origin: " + origin.toString() + "\r\n");
+        request.append("Sec-WebSocket-Key: " + createSecret() + "\r\n");
+        request.append("Sec-WebSocket-Version: 13\r\n");
+        if (mOptions.mCompression) {
+            request.append("Sec-WebSocket-Extensions: " + PerMessageDeflate.createOffer(
+                    mOptions.mServerNoContextTakeover, mOptions.mServerMaxWindowBits) + "\r\n");
+        }
+        if (mExtraHeaders != null) {
+            for (NameValuePair pair : mExtraHeaders) {
+                request.append(String.format("%s: %s\r\n", pair.getName(), pair.getValue()));
+            }
+        }
+        request.append("\r\n");
+        return request.toString();
     }
     
-    private class HeartBeat implements Runnable {
+    /**
+     * Destroys the connection once timed out, though nothing is sent.
+     */
+    private class Watchdog extends HeartbeatScheduler.Beat {
+
+		@Override
+		boolean run() {
+			return mTimeout > 0 && !checkTimeout();
+		}
+
+    }
+
+    /**
+     * Sends a ping numbered for its pong to be matched, on
+     * websocket-heartbeat-thread along with the heartbeats of other clients.
+     */
+    private class HeartBeat extends HeartbeatScheduler.Beat {
     	
 		@Override
-		public void run() {
+		boolean run() {
+			final long sequence;
 			synchronized (this) {
-				if (mHeartbeatInterval <= 0 || !canSendFrame()) {
-					return;
+				if (mHeartbeatInterval <= 0 || !canSendFrame() || checkTimeout()) {
+					return false;
+				}
+				sequence = ++mPingSequence;
+				final long now = currentTimeMillis();
+				mPingTimes[(int) sequence & (PING_WINDOW - 1)] = now;
+				if (mPingPendingSince == 0) {
+					mPingPendingSince = now;
 				}
-
-				sendPing("heartbeat");
-				mHandler.removeCallbacks(this); // 二重で登録してしまわないように削除．
-				mHandler.postDelayed(this, mHeartbeatInterval);
 			}
+			sendFrame(mFrameMarshaller.createPingFrame(HEARTBEAT_PREFIX + sequence), false);
+			return true;
 		}
     	
     }
     
+	private class DrainTask implements Runnable {
+		@Override
+		public void run() {
+			drainFrames();
+		}
+	}
+
+	private class ConnectTask implements Runnable {
+		@Override
+		public void run() {
+			mReconnectPending = false;
+			if (mGeneration > 0) {
+				setLastIO();
+				startWatchdog();
+			}
+			try {
+	            final boolean secure = mURI.getScheme().equals("wss") || mURI.getScheme().equals("https");
+	            int port = (mURI.getPort() != -1) ? mURI.getPort() : (secure ? 443 : 80);
+
+	            if (mOptions.mEngine != null) {
+	                // connects and reads on the engine's thread.
+	                mConnection = mOptions.mEngine.connect(WebSocketClient.this, mURI.getHost(), port,
+	                        secure ? getSSLContext() : null, createHandshake(port));
+	                mFrameWriter = new FrameWriter(mConnection.getOutputStream());
+	                setLastIO();
+	                return;
+	            }
+
+	            final Transport transport = mOptions.mTransportFactory.createTransport();
+	            transport.connect(mURI.getHost(), port, secure ? getSSLContext() : null);
+	            mTransport = transport;
+	            if (transport instanceof SocketTransport) {
+	                final SocketTransport socketTransport = (SocketTransport) transport;
+	                if (socketTransport.getHandshakeTime() >= 0) {
+	                    onTlsHandshake(socketTransport.getHandshakeTime(),
+	                            socketTransport.isSessionResumed());
+	                }
+	            }
+	            mFrameWriter = new FrameWriter(transport.getOutputStream());
+                PrintWriter out = new PrintWriter(transport.getOutputStream());
+                out.print(createHandshake(port));
+                out.flush();
+
+				setLastIO();
+
+                readThread = new WebSocketReadThread(WebSocketClient.this);
+                readThread.start();
+	        } catch (IOException ex) {
+				onError(ex);
+				final String reason = WebSocketReadThread
+						.getDisconnectReason(ex);
+				Log.e(TAG, "WebSocket closed." + reason, ex);
+				onClose(CloseCodes.CLOSE_ABNORMAL, reason);
+				if (isReconnecting()) {
+					closeSocket();
+					reconnect();
+				}
+            } catch (KeyManagementException ex) {
+                throw new RuntimeException(ex);
+			} catch (NoSuchAlgorithmException ex) {
+				throw new RuntimeException(ex);
+			} catch (URISyntaxException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+
+	private class StableTask implements Runnable {
+		private final int mOpenGeneration;
+
+		StableTask(int generation) {
+			mOpenGeneration = generation;
+		}
+
+		@Override
+		public void run() {
+			if (mOpenGeneration == mGeneration && !mReadFinished) {
+				mReconnectAttempt = 0;
+			}
+		}
+	}
+
 	private class DestroyTask implements Runnable {
+		private final int mDestroyedGeneration;
+
+		DestroyTask(int generation) {
+			mDestroyedGeneration = generation;
+		}
+
 		@Override
 		public void run() {
+			if (mDestroyedGeneration != mGeneration || mReconnectPending) {
+				// a connection reconnected since, or none to destroy.
+				return;
+			}
 			closeSocket();
-			interruptWriteThread();
+			if (!isReconnecting()) {
+				finish();
+			} else if (mConnection != null || mReadFinished) {
+				reconnect();
+			}
+			// else websocket-read-thread stops reading the closed socket,
+			// then destroys again.
 		}
 	}
 
+    /**
+     * Connection options, read once when the client is created.
+     */
+    public static class Options {
+        private boolean mCompression;
+        private int     mCompressionThreshold = 256;
+        private boolean mServerNoContextTakeover;
+        private int     mServerMaxWindowBits;
+        private WebSocketEngine mEngine;
+        private Executor mCallbackExecutor;
+        private int      mMaxPendingCallbacks = 256;
+        private TransportFactory mTransportFactory = SocketTransport.FACTORY;
+        private long   mReconnectMinDelay;
+        private long   mReconnectMaxDelay;
+        private double mReconnectJitter = 0.5;
+
+        /**
+         * Offers permessage-deflate (RFC 7692). Off by default.
+         */
+        public Options setCompression(boolean compression) {
+            mCompression = compression;
+            return this;
+        }
+
+        /**
+         * Messages smaller than this, in bytes, are sent uncompressed. Default
+         * is 256.
+         */
+        public Options setCompressionThreshold(int compressionThreshold) {
+            if (compressionThreshold < 0) {
+                throw new IllegalArgumentException("compressionThreshold must not be negative.");
+            }
+            mCompressionThreshold = compressionThreshold;
+            return this;
+        }
+
+        /**
+         * Asks the server to compress each message on its own, which saves
+         * its memory at the cost of the compression ratio.
+         */
+        public Options setServerNoContextTakeover(boolean serverNoContextTakeover) {
+            mServerNoContextTakeover = serverNoContextTakeover;
+            return this;
+        }
+
+        /**
+         * Asks the server to use a smaller LZ77 window, 8 to 15. 0, the
+         * default, leaves it to the server.
+         */
+        public Options setServerMaxWindowBits(int serverMaxWindowBits) {
+            if (serverMaxWindowBits != 0 && (serverMaxWindowBits < 8 || serverMaxWindowBits > 15)) {
+                throw new IllegalArgumentException("serverMaxWindowBits must be 0 or 8 to 15.");
+            }
+            mServerMaxWindowBits = serverMaxWindowBits;
+            return this;
+        }
+
+        /**
+         * Runs the connection on {@code engine}, whose single thread serves
+         * many clients, instead of a read and a write thread of its own.
+         * Listener callbacks are then called on the engine's thread.
+         */
+        public Options setEngine(WebSocketEngine engine) {
+            mEngine = engine;
+            return this;
+        }
+
+        /**
+         * Calls the listener through {@code executor} instead of on the thread
+         * reading the socket, so that a slow listener doesn't hold up reading
+         * and heartbeats. Callbacks stay in order and never overlap, even on a
+         * pool of threads.
+         */
+        public Options setCallbackExecutor(Executor executor) {
+            mCallbackExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Calls the listener on {@code looper}'s thread, e.g. the main thread.
+         * See {@link #setCallbackExecutor(Executor)}.
+         */
+        public Options setCallbackLooper(Looper looper) {
+            final Handler handler = new Handler(looper);
+            mCallbackExecutor = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            };
+            return this;
+        }
+
+        /**
+         * Callbacks waiting for the callback executor, 256 by default. Once
+         * reached, the socket isn't read until the listener catches up. On an
+         * engine that holds up its other connections as well.
+         */
+        public Options setMaxPendingCallbacks(int maxPendingCallbacks) {
+            if (maxPendingCallbacks <= 0) {
+                throw new IllegalArgumentException("maxPendingCallbacks must be positive.");
+            }
+            mMaxPendingCallbacks = maxPendingCallbacks;
+            return this;
+        }
+
+        /**
+         * Carries the connection over transports created by {@code factory}
+         * instead of TCP sockets, e.g. a {@link LoopbackTransport}. Not
+         * supported on an engine.
+         */
+        public Options setTransportFactory(TransportFactory factory) {
+            if (factory == null) {
+                throw new IllegalArgumentException("factory must not be null.");
+            }
+            mTransportFactory = factory;
+            return this;
+        }
+
+        /**
+         * Connects again when the connection is lost or can't be made, unless
+         * closed with {@link WebSocketClient#close()}, reusing the client's
+         * threads and buffers. Waits {@code minDelayMillis} before the first
+         * attempt, doubled for each following one up to {@code maxDelayMillis},
+         * until a connection stays open for 10 seconds. Off by default.
+         * Messages sent meanwhile are dropped.
+         *
+         * @see ReconnectListener
+         */
+        public Options setReconnectDelay(long minDelayMillis, long maxDelayMillis) {
+            if (minDelayMillis <= 0 || maxDelayMillis < minDelayMillis) {
+                throw new IllegalArgumentException(
+                        "delays must be positive, the maximum not less than the minimum.");
+            }
+            mReconnectMinDelay = minDelayMillis;
+            mReconnectMaxDelay = maxDelayMillis;
+            return this;
+        }
+
+        /**
+         * Shortens each reconnect delay by a random fraction of it, up to
+         * {@code jitter}, 0 to 1, so that clients dropped together don't come
+         * back together. Default is 0.5.
+         */
+        public Options setReconnectJitter(double jitter) {
+            if (!(jitter >= 0 && jitter <= 1)) {
+                throw new IllegalArgumentException("jitter must be 0 to 1.");
+            }
+            mReconnectJitter = jitter;
+            return this;
+        }
+
+        Options copy() {
+            final Options copy = new Options();
+            copy.mCompression = mCompression;
+            copy.mCompressionThreshold = mCompressionThreshold;
+            copy.mServerNoContextTakeover = mServerNoContextTakeover;
+            copy.mServerMaxWindowBits = mServerMaxWindowBits;
+            copy.mEngine = mEngine;
+            copy.mCallbackExecutor = mCallbackExecutor;
+            copy.mMaxPendingCallbacks = mMaxPendingCallbacks;
+            copy.mTransportFactory = mTransportFactory;
+            copy.mReconnectMinDelay = mReconnectMinDelay;
+            copy.mReconnectMaxDelay = mReconnectMaxDelay;
+            copy.mReconnectJitter = mReconnectJitter;
+            return copy;
+        }
+    }
+
+    /**
+     * Byte stream a client's connection is carried over. Created per
+     * connection by a {@link TransportFactory}; the default is a TCP socket.
+     * Called on websocket-write-thread except for reading, which is done on
+     * websocket-read-thread.
+     */
+    public interface Transport {
+        /**
+         * Blocks until connected.
+         *
+         * @param sslContext null unless the URI is wss.
+         */
+        public void connect(String host, int port, SSLContext sslContext) throws IOException;
+
+        public InputStream getInputStream() throws IOException;
+
+        public OutputStream getOutputStream() throws IOException;
+
+        public boolean isClosed();
+
+        /**
+         * Closes both directions. A read blocked on the input stream must
+         * return or throw.
+         */
+        public void close() throws IOException;
+    }
+
+    public interface TransportFactory {
+        public Transport createTransport();
+    }
+
+    /**
+     * Receives measurements of a client, see {@link #setMetrics(Metrics)}.
+     * Called on the client's threads, so must be quick and thread-safe.
+     * Times are in nanoseconds unless noted.
+     */
+    public interface Metrics {
+        /**
+         * Called on websocket-read-thread once the header of a frame is read.
+         *
+         * @param opcode as in RFC 6455: 0 continuation, 1 text, 2 binary,
+         *               8 close, 9 ping, 10 pong.
+         */
+        public void onFrameReceived(int opcode, int payloadLength);
+
+        /**
+         * Called on the sending thread.
+         *
+         * @param queueDepth frames queued but not written yet, this one included.
+         */
+        public void onFrameQueued(int opcode, int payloadLength, int queueDepth);
+
+        /**
+         * Called on websocket-write-thread once the frame is written out.
+         *
+         * @param queueTime since the frame was sent, or -1 if it was queued
+         *                  before the metrics were set.
+         */
+        public void onFrameWritten(int opcode, int payloadLength, long queueTime);
+
+        /**
+         * Called on websocket-write-thread for each batch written to the socket.
+         *
+         * @param time writing and flushing the batch took.
+         */
+        public void onFlush(int frames, long time);
+
+        /**
+         * Called after a {@link Listener} message callback returns, on the
+         * thread that called it.
+         */
+        public void onListenerCallback(long time);
+
+        /**
+         * Called on websocket-read-thread when the pong of a heartbeat
+         * arrives.
+         *
+         * @param roundTripMillis in milliseconds.
+         */
+        public void onHeartbeatRoundTrip(long roundTripMillis);
+
+        /**
+         * Called on the connecting thread once the TLS handshake of a
+         * connection is done.
+         *
+         * @param resumed true if a session of an earlier connection was
+         *                resumed, sparing a full handshake.
+         */
+        public void onTlsHandshake(long time, boolean resumed);
+    }
+
     public interface Listener {
         public void onOpen();
         public void onMessage(String message);
@@ -438,4 +1761,105 @@ public class WebSocketClient {
         public void onClose(int code, String reason);
         public void onError(Exception error);
     }
+
+    /**
+     * Opt-in {@link Listener} receiving binary messages in pooled buffers, so
+     * that steady-state receiving doesn't allocate. {@link #onMessage(byte[])}
+     * is not called for them.
+     */
+    public interface BufferListener extends Listener {
+        /**
+         * @param data borrowed buffer. It may be kept after returning, but must
+         *             be {@link MessageBuffer#release() released} once done.
+         */
+        public void onMessage(MessageBuffer data);
+    }
+
+    /**
+     * Opt-in {@link Listener} receiving binary messages as a view into the
+     * client's receive buffer, without any copy when the message arrived in one
+     * read. Takes precedence over {@link BufferListener}.
+     * {@link #onMessage(byte[])} is not called for them.
+     */
+    public interface SliceListener extends Listener {
+        /**
+         * The message is {@code data[offset .. offset + length]}. It's valid only
+         * until this method returns; don't modify or keep the array.
+         */
+        public void onMessage(byte[] data, int offset, int length);
+    }
+
+    /**
+     * Opt-in {@link Listener} receiving binary messages piece by piece as they
+     * are read from the socket, so that a message of any size is received in
+     * constant memory. Takes precedence over the other binary listeners.
+     * {@link #onMessage(byte[])} is not called for binary messages.
+     */
+    public interface StreamingListener extends Listener {
+        public void onBinaryMessageStart();
+
+        /**
+         * The chunk is {@code data[offset .. offset + length]}. It's valid only
+         * until this method returns; don't modify or keep the array.
+         */
+        public void onBinaryMessageChunk(byte[] data, int offset, int length);
+
+        public void onBinaryMessageEnd();
+    }
+
+    /**
+     * Opt-in {@link Listener} receiving text messages piece by piece as they are
+     * read from the socket and decoded. The UTF-8 is validated as it arrives: on
+     * invalid data the connection is closed with
+     * {@link CloseCodes#CLOSE_INVALID_DATA}, possibly after some chunks of the
+     * message were delivered. {@link #onMessage(String)} is not called.
+     */
+    public interface TextStreamingListener extends Listener {
+        public void onTextMessageStart();
+
+        /**
+         * The chunk is {@code data[offset .. offset + length]}. It's valid only
+         * until this method returns; don't modify or keep the array.
+         */
+        public void onTextMessageChunk(char[] data, int offset, int length);
+
+        public void onTextMessageEnd();
+    }
+
+    /**
+     * Opt-in {@link Listener} told when the send buffer fills up and drains.
+     * See {@link WebSocketClient#setBufferWatermarks(long, long)}.
+     * The two calls alternate, starting with {@link #onBackpressure()}; a
+     * change undone before the listener is called may not be reported.
+     */
+    public interface BackpressureListener extends Listener {
+        /**
+         * Called on the thread whose send crossed the high watermark, or
+         * through the callback executor if there is one.
+         */
+        public void onBackpressure();
+
+        /**
+         * Called on websocket-write-thread, or through the callback executor
+         * if there is one.
+         */
+        public void onWritable();
+    }
+
+    /**
+     * Opt-in {@link Listener} told when a lost connection is to be made
+     * again. See {@link Options#setReconnectDelay(long, long)}.
+     */
+    public interface ReconnectListener extends Listener {
+        /**
+         * Called after {@link #onClose(int, String)} of the lost connection,
+         * or {@link #onError(Exception)} if it couldn't be made.
+         * {@link #onOpen()} is called again once reconnected.
+         *
+         * @param attempt 1 for the first since a connection stayed open for
+         * 10 seconds.
+         * @param delayMillis until connecting.
+         */
+        public void onReconnecting(int attempt, long delayMillis);
+    }
 }
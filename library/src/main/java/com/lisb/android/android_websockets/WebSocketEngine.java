@@ -0,0 +1,274 @@
+package com.lisb.android.android_websockets;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+import javax.net.ssl.SSLContext;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Single I/O thread serving any number of {@link WebSocketClient}s through
+ * non-blocking channels, instead of a read and a write thread per client.
+ * See {@link WebSocketClient.Options#setEngine(WebSocketEngine)}.
+ *
+ * All the clients' listener callbacks are called on this thread, so a slow
+ * listener delays the other connections, unless given a
+ * {@link WebSocketClient.Options#setCallbackExecutor(java.util.concurrent.Executor) callback executor}.
+ * A listener that throws fails its own connection, with onError and onClose.
+ */
+public class WebSocketEngine {
+
+	private static final String TAG = WebSocketEngine.class.getSimpleName();
+	private static final String THREAD_NAME = "websocket-engine-thread";
+	private static final String THREAD_NAME_RESOLVE = "websocket-resolve-thread";
+
+	private final Selector mSelector;
+	private final Thread mThread;
+	private volatile boolean mShutdown;
+
+	/** Must lock mTasks. */
+	private final PriorityQueue<Task> mTasks = new PriorityQueue<Task>();
+	private long mSequence;
+
+	public WebSocketEngine() throws IOException {
+		mSelector = Selector.open();
+		mThread = new Thread(THREAD_NAME) {
+			@Override
+			public void run() {
+				loop();
+			}
+		};
+		mThread.start();
+	}
+
+	/**
+	 * Closes every connection, without any close handshake, and stops the
+	 * thread.
+	 */
+	public void shutdown() {
+		mShutdown = true;
+		mSelector.wakeup();
+	}
+
+	EventLoop newEventLoop() {
+		return new Loop();
+	}
+
+	/**
+	 * Call on the engine's thread. The host is resolved on a thread of its own
+	 * so as not to hold up the other connections.
+	 *
+	 * @param sslContext null unless TLS.
+	 * @param handshake HTTP request sent once connected.
+	 */
+	NioConnection connect(final WebSocketClient client, final String host, final int port,
+			SSLContext sslContext, String handshake) {
+		final NioConnection connection = new NioConnection(client, mSelector, host, port,
+				sslContext, handshake);
+		final Loop loop = (Loop) client.getEventLoop();
+		loop.mConnection = connection;
+		new Thread(THREAD_NAME_RESOLVE) {
+			@Override
+			public void run() {
+				try {
+					final InetSocketAddress address = new InetSocketAddress(
+							InetAddress.getByName(host), port);
+					loop.post(new Runnable() {
+						@Override
+						public void run() {
+							connection.connect(address);
+						}
+					});
+				} catch (final UnknownHostException e) {
+					loop.post(new Runnable() {
+						@Override
+						public void run() {
+							connection.fail(e);
+						}
+					});
+				}
+			}
+		}.start();
+		return connection;
+	}
+
+	private void loop() {
+		final ArrayList<Task> due = new ArrayList<Task>();
+		try {
+			while (!mShutdown) {
+				final long now = SystemClock.uptimeMillis();
+				synchronized (mTasks) {
+					Task task;
+					while ((task = mTasks.peek()) != null && task.mWhen <= now) {
+						due.add(mTasks.poll());
+					}
+				}
+				for (int i = 0; i < due.size(); i++) {
+					final Task task = due.get(i);
+					// unless its client quit meanwhile.
+					if (task.mLoop.mAlive) {
+						try {
+							task.mTask.run();
+						} catch (RuntimeException e) {
+							fail(task.mLoop.mConnection, e);
+						}
+					}
+				}
+				due.clear();
+
+				final Task next;
+				synchronized (mTasks) {
+					next = mTasks.peek();
+				}
+				if (next == null) {
+					mSelector.select();
+				} else {
+					final long timeout = next.mWhen - SystemClock.uptimeMillis();
+					if (timeout > 0) {
+						mSelector.select(timeout);
+					} else {
+						mSelector.selectNow();
+					}
+				}
+
+				final Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					final NioConnection connection = (NioConnection) key.attachment();
+					try {
+						connection.onReady(key);
+					} catch (RuntimeException e) {
+						fail(connection, e);
+					}
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Selector failed.", e);
+		} catch (ClosedSelectorException e) {
+			Log.e(TAG, "Selector closed.", e);
+		} finally {
+			for (SelectionKey key : mSelector.keys()) {
+				final NioConnection connection = (NioConnection) key.attachment();
+				connection.fail(new IOException("Engine was shut down."));
+				connection.close();
+			}
+			try {
+				mSelector.close();
+			} catch (IOException e) {
+				Log.e(TAG, "Error while closing selector.", e);
+			}
+			synchronized (mTasks) {
+				mTasks.clear();
+			}
+			Log.d(TAG, "finish WebSocket engine thread.");
+		}
+	}
+
+	/**
+	 * Fails the connection whose client's task or listener threw, rather than
+	 * letting it end the loop and every other connection with it.
+	 *
+	 * @param connection null if the client has none.
+	 */
+	private static void fail(NioConnection connection, RuntimeException e) {
+		Log.e(TAG, "Uncaught exception on a connection.", e);
+		if (connection != null) {
+			final IOException error = new IOException("Uncaught exception: " + e);
+			error.initCause(e);
+			connection.fail(error);
+		}
+	}
+
+	private void enqueue(Loop loop, Runnable runnable, long delayMillis) {
+		synchronized (mTasks) {
+			if (mShutdown) {
+				return;
+			}
+			mTasks.add(new Task(loop, runnable, SystemClock.uptimeMillis() + delayMillis, mSequence++));
+		}
+		if (Thread.currentThread() != mThread) {
+			mSelector.wakeup();
+		}
+	}
+
+	private void remove(Loop loop, Runnable runnable) {
+		synchronized (mTasks) {
+			final Iterator<Task> tasks = mTasks.iterator();
+			while (tasks.hasNext()) {
+				final Task task = tasks.next();
+				if (task.mLoop == loop && (runnable == null || task.mTask == runnable)) {
+					tasks.remove();
+				}
+			}
+		}
+	}
+
+	private static class Task implements Comparable<Task> {
+		final Loop mLoop;
+		final Runnable mTask;
+		final long mWhen;
+		final long mSequence;
+
+		Task(Loop loop, Runnable task, long when, long sequence) {
+			mLoop = loop;
+			mTask = task;
+			mWhen = when;
+			mSequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Task another) {
+			if (mWhen != another.mWhen) {
+				return mWhen < another.mWhen ? -1 : 1;
+			}
+			return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+		}
+	}
+
+	/**
+	 * A client's share of the engine's thread.
+	 */
+	private class Loop implements EventLoop {
+		volatile boolean mAlive = true;
+		NioConnection mConnection;  // the client's latest, on the engine's thread.
+
+		@Override
+		public void post(Runnable task) {
+			postDelayed(task, 0);
+		}
+
+		@Override
+		public void postDelayed(Runnable task, long delayMillis) {
+			if (mAlive) {
+				enqueue(this, task, delayMillis);
+			}
+		}
+
+		@Override
+		public void removeCallbacks(Runnable task) {
+			remove(this, task);
+		}
+
+		@Override
+		public boolean isAlive() {
+			return mAlive && !mShutdown;
+		}
+
+		@Override
+		public void quit() {
+			mAlive = false;
+			remove(this, null);
+		}
+	}
+}
@@ -30,7 +30,7 @@ class WebSocketReadThread extends Thread {
 			final WebSocketClient client) throws IOException {
 		super(THREAD_NAME);
 		this.mClient = client;
-		this.mInputStream = client.getSocket().getInputStream();
+		this.mInputStream = client.getTransport().getInputStream();
 		this.mFrameHandler = new FrameHandler(client);
 	}
 
@@ -38,45 +38,70 @@ class WebSocketReadThread extends Thread {
 	public void run() {
 		Log.i(TAG, "start WebSocket reading thread.");
 		try {
-			FrameHandler.HappyDataInputStream stream = new FrameHandler.HappyDataInputStream(
-					mInputStream);
-
-			// Read HTTP response status line.
-			StatusLine statusLine = parseStatusLine(readLine(stream));
-			if (statusLine == null) {
-				throw new HttpException("Received no reply from server.");
-			} else if (statusLine.getStatusCode() != HttpStatus.SC_SWITCHING_PROTOCOLS) {
-				throw new HttpResponseException(statusLine.getStatusCode(),
-						statusLine.getReasonPhrase());
-			}
+			ReceiveBuffer buffer = new ReceiveBuffer(mInputStream);
+			readHandshake(mClient, buffer);
+
+			// Now decode websocket frames.
+		    mFrameHandler.start(buffer);
+		} catch (Exception ex) {
+			onReadFailed(mClient, ex);
+		}
+
+		mClient.onReadFinished();
+		Log.d(TAG, "finish WebSocket reading thread. ");
+	}
+
+	/**
+	 * Reads the HTTP response to the handshake, and opens the client.
+	 */
+	static void readHandshake(WebSocketClient client, ReceiveBuffer buffer)
+			throws IOException, HttpException {
+		// Read HTTP response status line.
+		StatusLine statusLine = parseStatusLine(buffer.readLine());
+		if (statusLine == null) {
+			throw new HttpException("Received no reply from server.");
+		} else if (statusLine.getStatusCode() != HttpStatus.SC_SWITCHING_PROTOCOLS) {
+			throw new HttpResponseException(statusLine.getStatusCode(),
+					statusLine.getReasonPhrase());
+		}
 
-			// Read HTTP response headers.
-			String line;
-			while (!TextUtils.isEmpty(line = readLine(stream))) {
-				Header header = parseHeader(line);
-				if (header.getName().equals("Sec-WebSocket-Accept")) {
-					// FIXME: Verify the response...
-				}
+		// Read HTTP response headers.
+		String line;
+		while (!TextUtils.isEmpty(line = buffer.readLine())) {
+			Header header = parseHeader(line);
+			if (header.getName().equals("Sec-WebSocket-Accept")) {
+				// FIXME: Verify the response...
+			} else if (header.getName().equalsIgnoreCase("Sec-WebSocket-Extensions")) {
+				client.onExtensions(header.getValue());
 			}
+		}
 
-			mClient.onOpen();
-			mClient.postHeartbeat();
+		client.onOpen();
+		client.postHeartbeat();
+	}
 
-			// Now decode websocket frames.
-		    mFrameHandler.start(stream);
-		} catch (IOException ex) {
-			mClient.onError(ex);
-			final String reason = getDisconnectReason(ex);
+	/**
+	 * Reports why reading stopped. The client is to be destroyed afterwards.
+	 */
+	static void onReadFailed(WebSocketClient client, Exception ex) {
+		if (ex instanceof FrameHandler.ProtocolError) {
+			final FrameHandler.ProtocolError error = (FrameHandler.ProtocolError) ex;
+			client.onError(error);
+			Log.e(TAG, "WebSocket protocol error.", error);
+			client.sendClose(error.getCloseCode(), error.getMessage());
+			client.onClose(error.getCloseCode(), error.getMessage());
+		} else if (ex instanceof IOException) {
+			client.onError(ex);
+			final String reason = getDisconnectReason((IOException) ex);
 			Log.e(TAG, "WebSocket closed." + reason, ex);
-			mClient.onClose(CloseCodes.CLOSE_ABNORMAL, reason);	
-		} catch (HttpException ex) {
-			mClient.onError(ex);
+			client.onClose(CloseCodes.CLOSE_ABNORMAL, reason);
+		} else if (ex instanceof HttpException) {
+			client.onError(ex);
 			Log.e(TAG, "Received no reply from server.", ex);
-			mClient.onClose(CloseCodes.CLOSE_ABNORMAL, "Received no reply from server.");	
+			client.onClose(CloseCodes.CLOSE_ABNORMAL, "Received no reply from server.");
+		} else {
+			throw (RuntimeException) ex;
 		}
-
-		mClient.destroy();
-		Log.d(TAG, "finish WebSocket reading thread. ");
 	}
 	
 	public static String getDisconnectReason (final IOException e) {
@@ -90,36 +115,15 @@ class WebSocketReadThread extends Thread {
 	}
 	
 
-	private StatusLine parseStatusLine(String line) {
+	private static StatusLine parseStatusLine(String line) {
 		if (TextUtils.isEmpty(line)) {
 			return null;
 		}
 		return BasicLineParser.parseStatusLine(line, new BasicLineParser());
 	}
 
-	private Header parseHeader(String line) {
+	private static Header parseHeader(String line) {
 		return BasicLineParser.parseHeader(line, new BasicLineParser());
 	}
 
-	// Can't use BufferedReader because it buffers past the HTTP data.
-	private String readLine(FrameHandler.HappyDataInputStream reader)
-			throws IOException {
-		int readChar = reader.read();
-		if (readChar == -1) {
-			return null;
-		}
-		StringBuilder string = new StringBuilder("");
-		while (readChar != '\n') {
-			if (readChar != '\r') {
-				string.append((char) readChar);
-			}
-
-			readChar = reader.read();
-			if (readChar == -1) {
-				return null;
-			}
-		}
-		return string.toString();
-	}
-
 }
@@ -0,0 +1,384 @@
+package com.lisb.android.android_websockets.testserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A connection to {@link TestServer}, behaving as its request URI asks.
+ */
+class TestConnection {
+
+	private static final String THREAD_NAME = "test-server-connection";
+	private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private static final char[] BASE64 =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	private static final int FIN = 0x80;
+	private static final int OP_CONTINUATION = 0;
+	private static final int OP_TEXT = 1;
+	private static final int OP_BINARY = 2;
+	private static final int OP_CLOSE = 8;
+	private static final int OP_PING = 9;
+	private static final int OP_PONG = 10;
+
+	private final TestServer mServer;
+	private final Socket mSocket;
+	private volatile boolean mClosed;
+
+	private DataInputStream mIn;
+	/** Must lock mOut. */
+	private OutputStream mOut;
+
+	// asked for in the request URI.
+	private boolean mFlood;
+	private int mSize = 1024;
+	private int mRate;
+	private long mCount;
+	private boolean mText;
+	private int mFragments = 1;
+	private long mPingInterval;
+	private long mStall;
+	private long mStallEvery = 1000;
+	private long mDrop = -1;
+
+	// the message being received is mMessage[0 .. mMessageLength].
+	private byte[] mMessage = new byte[4096];
+	private int mMessageLength;
+	private int mMessageOpcode;
+
+	TestConnection(TestServer server, Socket socket) {
+		mServer = server;
+		mSocket = socket;
+	}
+
+	void start() {
+		new Thread(THREAD_NAME) {
+			@Override
+			public void run() {
+				serve();
+			}
+		}.start();
+	}
+
+	/**
+	 * Drops the connection.
+	 */
+	void close() {
+		mClosed = true;
+		try {
+			mSocket.close();
+		} catch (IOException e) {
+			// ignore.
+		}
+		mServer.onClosed(this);
+	}
+
+	private void serve() {
+		try {
+			mSocket.setTcpNoDelay(true);
+			mIn = new DataInputStream(new BufferedInputStream(mSocket.getInputStream()));
+			mOut = new BufferedOutputStream(mSocket.getOutputStream(), 64 * 1024);
+			if (!handshake()) {
+				return;
+			}
+			if (mPingInterval > 0) {
+				startPinging();
+			}
+			if (mFlood) {
+				startFlooding();
+			}
+			if (mDrop >= 0) {
+				startDropping();
+			}
+			read();
+		} catch (IOException e) {
+			// the client went away, or the server was stopped.
+		} catch (InterruptedException e) {
+			// stopped.
+		} finally {
+			close();
+		}
+	}
+
+	// @return false if the request isn't a WebSocket handshake.
+	private boolean handshake() throws IOException {
+		final String[] requestLine = readLine(mIn).split(" ");
+		String key = null;
+		String line;
+		while ((line = readLine(mIn)).length() > 0) {
+			if (line.regionMatches(true, 0, "Sec-WebSocket-Key:", 0, 18)) {
+				key = line.substring(18).trim();
+			}
+		}
+		if (requestLine.length != 3 || !requestLine[0].equals("GET") || key == null) {
+			synchronized (mOut) {
+				mOut.write("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\n\r\n".getBytes("US-ASCII"));
+				mOut.flush();
+			}
+			return false;
+		}
+		configure(URI.create(requestLine[1]));
+
+		synchronized (mOut) {
+			mOut.write(("HTTP/1.1 101 Switching Protocols\r\n"
+					+ "Upgrade: websocket\r\n"
+					+ "Connection: Upgrade\r\n"
+					+ "Sec-WebSocket-Accept: " + accept(key) + "\r\n"
+					+ "\r\n").getBytes("US-ASCII"));
+			mOut.flush();
+		}
+		return true;
+	}
+
+	private void configure(URI uri) {
+		final Map<String, String> query = new HashMap<String, String>();
+		if (uri.getQuery() != null) {
+			for (String parameter : uri.getQuery().split("&")) {
+				final int separator = parameter.indexOf('=');
+				if (separator > 0) {
+					query.put(parameter.substring(0, separator), parameter.substring(separator + 1));
+				}
+			}
+		}
+		mFlood = "/flood".equals(uri.getPath());
+		mSize = (int) getLong(query, "size", mSize);
+		mRate = (int) getLong(query, "rate", mRate);
+		mCount = getLong(query, "count", mCount);
+		mText = Boolean.parseBoolean(query.get("text"));
+		mFragments = Math.max(1, (int) getLong(query, "fragments", mFragments));
+		mPingInterval = getLong(query, "ping", mPingInterval);
+		mStall = getLong(query, "stall", mStall);
+		mStallEvery = getLong(query, "stallEvery", mStallEvery);
+		mDrop = getLong(query, "drop", mDrop);
+	}
+
+	private static long getLong(Map<String, String> query, String name, long defaultValue) {
+		final String value = query.get(name);
+		return value != null ? Long.parseLong(value) : defaultValue;
+	}
+
+	private void read() throws IOException, InterruptedException {
+		byte[] payload = new byte[4096];
+		final byte[] mask = new byte[4];
+		long nextStall = mStall > 0 ? System.currentTimeMillis() + mStallEvery : Long.MAX_VALUE;
+		while (true) {
+			if (System.currentTimeMillis() >= nextStall) {
+				Thread.sleep(mStall);
+				nextStall = System.currentTimeMillis() + mStallEvery;
+			}
+
+			final int b0 = mIn.readUnsignedByte();
+			final int b1 = mIn.readUnsignedByte();
+			long length = b1 & 0x7F;
+			if (length == 126) {
+				length = mIn.readUnsignedShort();
+			} else if (length == 127) {
+				length = mIn.readLong();
+			}
+			if (length < 0 || length > Integer.MAX_VALUE - mMessageLength) {
+				throw new IOException("Message too large.");
+			}
+			final boolean masked = (b1 & 0x80) != 0;
+			if (masked) {
+				mIn.readFully(mask);
+			}
+			if (payload.length < length) {
+				payload = new byte[(int) length];
+			}
+			mIn.readFully(payload, 0, (int) length);
+			if (masked) {
+				for (int i = 0; i < length; i++) {
+					payload[i] ^= mask[i & 3];
+				}
+			}
+
+			final int opcode = b0 & 0x0F;
+			if (opcode == OP_CLOSE) {
+				send(OP_CLOSE, payload, (int) length, 1, true);
+				return;
+			} else if (opcode == OP_PING) {
+				send(OP_PONG, payload, (int) length, 1, true);
+			} else if (opcode == OP_PONG) {
+				// answers our ping.
+			} else {
+				if (opcode != OP_CONTINUATION) {
+					mMessageOpcode = opcode;
+					mMessageLength = 0;
+				}
+				appendMessage(payload, (int) length);
+				if ((b0 & FIN) != 0 && !mFlood) {
+					// batches the echoes of messages that arrived together.
+					send(mMessageOpcode, mMessage, mMessageLength, mFragments, mIn.available() == 0);
+				}
+			}
+		}
+	}
+
+	private void appendMessage(byte[] data, int length) {
+		if (mMessage.length - mMessageLength < length) {
+			final byte[] message = new byte[Math.max(mMessage.length * 2, mMessageLength + length)];
+			System.arraycopy(mMessage, 0, message, 0, mMessageLength);
+			mMessage = message;
+		}
+		System.arraycopy(data, 0, mMessage, mMessageLength, length);
+		mMessageLength += length;
+	}
+
+	private void startPinging() {
+		new Thread(THREAD_NAME) {
+			@Override
+			public void run() {
+				try {
+					for (long i = 0; !mClosed; i++) {
+						Thread.sleep(mPingInterval);
+						final byte[] payload = Long.toString(i).getBytes("US-ASCII");
+						send(OP_PING, payload, payload.length, 1, true);
+					}
+				} catch (IOException e) {
+					close();
+				} catch (InterruptedException e) {
+					close();
+				}
+			}
+		}.start();
+	}
+
+	private void startDropping() {
+		new Thread(THREAD_NAME) {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(mDrop);
+				} catch (InterruptedException e) {
+					// dropped all the same.
+				}
+				close();
+			}
+		}.start();
+	}
+
+	private void startFlooding() {
+		new Thread(THREAD_NAME) {
+			@Override
+			public void run() {
+				try {
+					flood();
+				} catch (IOException e) {
+					close();
+				} catch (InterruptedException e) {
+					close();
+				}
+			}
+		}.start();
+	}
+
+	private void flood() throws IOException, InterruptedException {
+		final byte[] data = new byte[mSize];
+		if (mText) {
+			for (int i = 0; i < data.length; i++) {
+				data[i] = (byte) ('a' + i % 26);
+			}
+		} else {
+			new Random(0).nextBytes(data);
+		}
+		final int opcode = mText ? OP_TEXT : OP_BINARY;
+		final long interval = mRate > 0 ? 1000000000L / mRate : 0;
+		long next = System.nanoTime();
+		for (long i = 0; (mCount == 0 || i < mCount) && !mClosed; i++) {
+			if (interval > 0) {
+				// behind schedule, messages go out back to back until caught up.
+				final long wait = next - System.nanoTime();
+				if (wait > 0) {
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				}
+				next += interval;
+			}
+			send(opcode, data, data.length, mFragments, interval > 0 || (i & 63) == 63);
+		}
+		synchronized (mOut) {
+			mOut.flush();
+		}
+	}
+
+	private void send(int opcode, byte[] data, int length, int fragments, boolean flush)
+			throws IOException {
+		synchronized (mOut) {
+			final int fragmentLength = Math.max(1, (length + fragments - 1) / fragments);
+			int offset = 0;
+			do {
+				final int count = Math.min(fragmentLength, length - offset);
+				final boolean fin = offset + count == length;
+				writeHeader(offset == 0 ? opcode : OP_CONTINUATION, fin, count);
+				mOut.write(data, offset, count);
+				offset += count;
+			} while (offset < length);
+			if (flush) {
+				mOut.flush();
+			}
+		}
+	}
+
+	// unmasked, as a server sends.
+	private void writeHeader(int opcode, boolean fin, int length) throws IOException {
+		mOut.write((fin ? FIN : 0) | opcode);
+		if (length < 126) {
+			mOut.write(length);
+		} else if (length < 65536) {
+			mOut.write(126);
+			mOut.write(length >>> 8);
+			mOut.write(length);
+		} else {
+			mOut.write(127);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				mOut.write((int) ((long) length >>> shift));
+			}
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		final StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c == -1) {
+				throw new EOFException();
+			}
+			if (c != '\r') {
+				line.append((char) c);
+			}
+		}
+		return line.toString();
+	}
+
+	private static String accept(String key) throws IOException {
+		final byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1").digest((key + GUID).getBytes("US-ASCII"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.toString());
+		}
+		final StringBuilder out = new StringBuilder();
+		for (int i = 0; i < digest.length; i += 3) {
+			final int remaining = digest.length - i;
+			final int bits = (digest[i] & 0xFF) << 16
+					| (remaining > 1 ? (digest[i + 1] & 0xFF) << 8 : 0)
+					| (remaining > 2 ? digest[i + 2] & 0xFF : 0);
+			out.append(BASE64[bits >>> 18]);
+			out.append(BASE64[(bits >>> 12) & 0x3F]);
+			out.append(remaining > 1 ? BASE64[(bits >>> 6) & 0x3F] : '=');
+			out.append(remaining > 2 ? BASE64[bits & 0x3F] : '=');
+		}
+		return out.toString();
+	}
+}
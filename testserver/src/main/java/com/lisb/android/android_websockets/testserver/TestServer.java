@@ -0,0 +1,138 @@
+package com.lisb.android.android_websockets.testserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * RFC 6455 server on 127.0.0.1 standing in for a real backend in load and
+ * soak tests. Plain or TLS sockets, a thread per connection.
+ *
+ * What a connection does is asked for in the request URI:
+ * <ul>
+ * <li>{@code /echo}, or any other path: sends every message back.</li>
+ * <li>{@code /flood?size=1024&rate=1000&count=0&text=false}: sends
+ * {@code count} messages (0 for as many as it can until closed) of
+ * {@code size} bytes, {@code rate} a second (0 for as fast as it can).
+ * Messages from the client are dropped.</li>
+ * </ul>
+ * and for either:
+ * <ul>
+ * <li>{@code fragments=4}: splits each message sent into that many frames.</li>
+ * <li>{@code ping=1000}: pings every that many milliseconds.</li>
+ * <li>{@code stall=500&stallEvery=2000}: stops reading for 500 ms every
+ * 2 seconds, so that the client's sends back up.</li>
+ * <li>{@code drop=500}: drops the connection that many milliseconds after
+ * the handshake, without a close handshake.</li>
+ * </ul>
+ */
+public class TestServer {
+
+	private static final String THREAD_NAME = "test-server-accept";
+
+	private final ServerSocket mServerSocket;
+	private final boolean mSecure;
+	private final Thread mThread;
+	/** Must lock mConnections. */
+	private final Set<TestConnection> mConnections = new HashSet<TestConnection>();
+
+	/**
+	 * Listens on an ephemeral port.
+	 */
+	public TestServer() throws IOException {
+		this(0);
+	}
+
+	public TestServer(int port) throws IOException {
+		this(port, null);
+	}
+
+	/**
+	 * @param sslContext initialized with the server's key, for wss; null for
+	 * plain ws.
+	 */
+	public TestServer(int port, SSLContext sslContext) throws IOException {
+		final InetAddress address = InetAddress.getByName("127.0.0.1");
+		mServerSocket = sslContext != null
+				? sslContext.getServerSocketFactory().createServerSocket(port, 50, address)
+				: new ServerSocket(port, 50, address);
+		mSecure = sslContext != null;
+		mThread = new Thread(THREAD_NAME) {
+			@Override
+			public void run() {
+				accept();
+			}
+		};
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	public int getPort() {
+		return mServerSocket.getLocalPort();
+	}
+
+	/**
+	 * @param pathAndQuery e.g. "/flood?size=16&rate=10000".
+	 */
+	public URI getUri(String pathAndQuery) {
+		return URI.create((mSecure ? "wss" : "ws") + "://127.0.0.1:" + getPort() + pathAndQuery);
+	}
+
+	/**
+	 * Stops listening and drops every connection, without a close handshake.
+	 */
+	public void stop() {
+		try {
+			mServerSocket.close();
+		} catch (IOException e) {
+			// ignore.
+		}
+		final List<TestConnection> connections;
+		synchronized (mConnections) {
+			connections = new ArrayList<TestConnection>(mConnections);
+		}
+		for (TestConnection connection : connections) {
+			connection.close();
+		}
+	}
+
+	void onClosed(TestConnection connection) {
+		synchronized (mConnections) {
+			mConnections.remove(connection);
+		}
+	}
+
+	private void accept() {
+		while (true) {
+			final Socket socket;
+			try {
+				socket = mServerSocket.accept();
+			} catch (IOException e) {
+				// stopped.
+				return;
+			}
+			final TestConnection connection = new TestConnection(this, socket);
+			synchronized (mConnections) {
+				mConnections.add(connection);
+			}
+			connection.start();
+		}
+	}
+
+	/**
+	 * Runs until killed. The only argument is the port, 8080 by default.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		final TestServer server = new TestServer(args.length > 0 ? Integer.parseInt(args[0]) : 8080);
+		System.out.println("Listening on " + server.getUri("/"));
+		server.mThread.join();
+	}
+}